@@ -0,0 +1,496 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.HashSorter;
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+import ca.markjenkins.geoclusterrocks.PointColumns;
+import ca.markjenkins.geoclusterrocks.PointFeatures;
+import ca.markjenkins.geoclusterrocks.PointGroup;
+import ca.markjenkins.geoclusterrocks.solr.GeoclusterComponent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * The points our benchmarks work with, either the 2000 entries in
+ * solr-rocks/data/US_2000_entries.xml or a synthetic data set of any size
+ * made by scattering points around those.
+ *
+ * Points are kept in columns sorted by their full length geohash, so the
+ * points in any geohash cell of any length are next to each other and we
+ * can make the groups Solr would give GeoSearch with one pass.
+ */
+public class BenchmarkPoints {
+    public static final String US_2000 = "US_2000";
+    public static final String DATA_FILE_PROPERTY =
+	"geoclusterrocks.benchmark.data";
+    // depending on whether we're run from the top or from this module
+    static final String[] DEFAULT_DATA_FILES = {
+	"solr-rocks/data/US_2000_entries.xml",
+	"../solr-rocks/data/US_2000_entries.xml" };
+
+    // fixed so that every run benchmarks the same points
+    static final long SYNTHETIC_SEED = 2000;
+    // standard deviation of how far a synthetic point is from the real one
+    // it is made from, enough to make dense areas at high zooms
+    static final double SYNTHETIC_SPREAD_DEGREES = 0.5;
+
+    // what we pretend the map is showing, centered on Alabama which is
+    // where the US_2000 points are thickest (outside of the Aleutians)
+    public static final String MAP_VIEW = "map";
+    static final int VIEWPORT_WIDTH = 1280;
+    static final int VIEWPORT_HEIGHT = 800;
+    static final double VIEWPORT_CENTER_LONGITUDE = -87;
+    static final double VIEWPORT_CENTER_LATITUDE = 33;
+    // or every point, the worst case at any zoom
+    public static final String WORLD_VIEW = "world";
+    static final double[] WORLD_BOUNDS = {-180, -90, 180, 90};
+
+    static final Map<String, BenchmarkPoints> loaded =
+	new HashMap<String, BenchmarkPoints>();
+
+    final int size;
+    final long[] hashes;
+    final double[] longitudes;
+    final double[] latitudes;
+    // which of the real points each point was made from
+    final int[] sites;
+
+    final String[] site_ids;
+    // synthetic points share the name of the real point they were made
+    // from
+    final String[] site_names;
+
+    BenchmarkPoints(int size, String[] site_ids, String[] site_names){
+	this.size = size;
+	this.site_ids = site_ids;
+	this.site_names = site_names;
+	hashes = new long[size];
+	longitudes = new double[size];
+	latitudes = new double[size];
+	sites = new int[size];
+    }
+
+    /**
+     * US_2000 or the number of synthetic points wanted, loaded once
+     * per JVM and shared by all of the benchmarks and their parameters
+     */
+    public static synchronized BenchmarkPoints get(String dataset)
+	throws IOException, XMLStreamException {
+	BenchmarkPoints points = loaded.get(dataset);
+	if (points == null){
+	    BenchmarkPoints us_2000 = loaded.get(US_2000);
+	    if (us_2000 == null){
+		us_2000 = load_us_2000();
+		loaded.put(US_2000, us_2000);
+	    }
+	    if (dataset.equals(US_2000))
+		points = us_2000;
+	    else {
+		points = synthesize(us_2000, Integer.parseInt(dataset));
+		loaded.put(dataset, points);
+	    }
+	}
+	return points;
+    }
+
+    static File data_file(){
+	String configured = System.getProperty(DATA_FILE_PROPERTY);
+	if (configured != null)
+	    return new File(configured);
+	for (String path: DEFAULT_DATA_FILES){
+	    File f = new File(path);
+	    if (f.exists())
+		return f;
+	}
+	throw new IllegalStateException
+	    ("can't find US_2000_entries.xml, set " + DATA_FILE_PROPERTY);
+    }
+
+    static BenchmarkPoints load_us_2000()
+	throws IOException, XMLStreamException {
+	List<String> ids = new ArrayList<String>();
+	List<String> names = new ArrayList<String>();
+	List<Double> point_longitudes = new ArrayList<Double>();
+	List<Double> point_latitudes = new ArrayList<Double>();
+
+	InputStream in = new FileInputStream(data_file());
+	try {
+	    XMLStreamReader xml =
+		XMLInputFactory.newInstance().createXMLStreamReader(in);
+	    while (xml.hasNext()){
+		if (xml.next() != XMLStreamConstants.START_ELEMENT ||
+		    !xml.getLocalName().equals("field") )
+		    continue;
+		String field = xml.getAttributeValue(null, "name");
+		if (field.equals("id"))
+		    ids.add(xml.getElementText());
+		else if (field.equals("name"))
+		    names.add(xml.getElementText());
+		else if (field.equals("longitude"))
+		    point_longitudes.add(Double.valueOf(xml.getElementText()));
+		else if (field.equals("latitude"))
+		    point_latitudes.add(Double.valueOf(xml.getElementText()));
+	    }
+	    xml.close();
+	}
+	finally {
+	    in.close();
+	}
+
+	int n = ids.size();
+	double[] site_longitudes = new double[n];
+	double[] site_latitudes = new double[n];
+	for (int i = 0; i < n; i++){
+	    site_longitudes[i] = point_longitudes.get(i);
+	    site_latitudes[i] = point_latitudes.get(i);
+	}
+	BenchmarkPoints points =
+	    new BenchmarkPoints(n, ids.toArray(new String[n]),
+				names.toArray(new String[n]) );
+	for (int i = 0; i < n; i++)
+	    points.set(i, site_longitudes[i], site_latitudes[i], i);
+	points.sort();
+	return points;
+    }
+
+    static BenchmarkPoints synthesize(BenchmarkPoints real, int size){
+	double[] site_longitudes = new double[real.site_ids.length];
+	double[] site_latitudes = new double[real.site_ids.length];
+	for (int i = 0; i < real.size; i++){
+	    site_longitudes[real.sites[i]] = real.longitudes[i];
+	    site_latitudes[real.sites[i]] = real.latitudes[i];
+	}
+	BenchmarkPoints points =
+	    new BenchmarkPoints(size, real.site_ids, real.site_names);
+	Random random = new Random(SYNTHETIC_SEED);
+	for (int i = 0; i < size; i++){
+	    int site = random.nextInt(site_longitudes.length);
+	    double longitude = site_longitudes[site] +
+		random.nextGaussian() * SYNTHETIC_SPREAD_DEGREES;
+	    double latitude = site_latitudes[site] +
+		random.nextGaussian() * SYNTHETIC_SPREAD_DEGREES;
+	    longitude = Math.max(-180, Math.min(179.999999, longitude));
+	    latitude = Math.max(-90, Math.min(89.999999, latitude));
+	    points.set(i, longitude, latitude, site);
+	}
+	points.sort();
+	return points;
+    }
+
+    void set(int i, double longitude, double latitude, int site){
+	hashes[i] = LongGeohash.encode(latitude, longitude,
+				       LongGeohash.MAX_HASH_LENGTH);
+	longitudes[i] = longitude;
+	latitudes[i] = latitude;
+	sites[i] = site;
+    }
+
+    /**
+     * The bounds (same order as GeoSearch.parse_bounds()) for MAP_VIEW or
+     * WORLD_VIEW at zoom
+     */
+    public static double[] bounds(String view, int zoom){
+	if (view.equals(WORLD_VIEW))
+	    return WORLD_BOUNDS;
+	else if (view.equals(MAP_VIEW))
+	    return viewport(zoom);
+	else
+	    throw new IllegalArgumentException("no such view " + view);
+    }
+
+    /**
+     * The bounds of our pretend map at zoom, as much of the world as
+     * there is once it doesn't fit anymore
+     */
+    static double[] viewport(int zoom){
+	double degrees_per_pixel =
+	    360.0 / (Clustering.PIXELS_PER_TILE * Math.pow(2, zoom));
+	double half_width = VIEWPORT_WIDTH * degrees_per_pixel / 2;
+	// close enough to mercator for a map this small
+	double half_height = VIEWPORT_HEIGHT * degrees_per_pixel / 2 *
+	    Math.cos(Math.toRadians(VIEWPORT_CENTER_LATITUDE));
+	return new double[] {
+	    Math.max(-180, VIEWPORT_CENTER_LONGITUDE - half_width),
+	    Math.max(-90, VIEWPORT_CENTER_LATITUDE - half_height),
+	    Math.min(180, VIEWPORT_CENTER_LONGITUDE + half_width),
+	    Math.min(90, VIEWPORT_CENTER_LATITUDE + half_height) };
+    }
+
+    boolean in_bounds(int i, double[] bounds){
+	return longitudes[i] >= bounds[0] && latitudes[i] >= bounds[1] &&
+	    longitudes[i] <= bounds[2] && latitudes[i] <= bounds[3];
+    }
+
+    /**
+     * The groups GeoSearch would have loaded from Solr (with stats) for
+     * the points in bounds, sorted and ready for clustering
+     */
+    public GeohashGroupStore groups(int hash_len, int max_group_size,
+				    double[] bounds){
+	GeohashGroupStore store =
+	    new GeohashGroupStore(hash_len, max_group_size, 0);
+	int shift = (LongGeohash.MAX_HASH_LENGTH - hash_len) *
+	    LongGeohash.BITS_PER_CHAR;
+	int i = 0;
+	while (i < size){
+	    long cell = hashes[i] >>> shift;
+	    int run_end = i;
+	    long count = 0;
+	    double longitude_sum = 0;
+	    double latitude_sum = 0;
+	    for (; run_end < size && (hashes[run_end] >>> shift) == cell;
+		 run_end++){
+		if (!in_bounds(run_end, bounds))
+		    continue;
+		count++;
+		longitude_sum += longitudes[run_end];
+		latitude_sum += latitudes[run_end];
+	    }
+	    if (count > 0){
+		int row = store.add_group(cell, count, longitude_sum / count,
+					  latitude_sum / count);
+		if (count <= max_group_size){
+		    for (int p = i; p < run_end; p++)
+			if (in_bounds(p, bounds))
+			    store.add_point(row, site_names[sites[p]], null,
+					    null, longitudes[p], latitudes[p]);
+		}
+	    }
+	    i = run_end;
+	}
+	store.sort();
+	return store;
+    }
+
+    /**
+     * A PointColumns file of our points, for MappedGroupSource, gone when
+     * the JVM is
+     */
+    public File points_file() throws IOException {
+	PointColumns.Builder builder = new PointColumns.Builder();
+	for (int i = 0; i < size; i++)
+	    builder.add(longitudes[i], latitudes[i], site_names[sites[i]],
+			site_ids[sites[i]], PointColumns.NO_ICON_GROUP);
+	File file = File.createTempFile("geoclusterrocks-points", null);
+	file.deleteOnExit();
+	builder.write(file);
+	return file;
+    }
+
+    /**
+     * What Solr would have sent GeoSearch for the points in bounds, the
+     * geohash_N groups with at most max_group_size docs each plus the
+     * latitude and longitude stats faceted on geohash_N
+     */
+    public NamedList<Object> solr_response(int hash_len, int max_group_size,
+					   double[] bounds){
+	String field = "geohash_" + hash_len;
+	int shift = (LongGeohash.MAX_HASH_LENGTH - hash_len) *
+	    LongGeohash.BITS_PER_CHAR;
+
+	List<NamedList<Object>> groups = new ArrayList<NamedList<Object>>();
+	NamedList<Object> latitude_facets = new NamedList<Object>();
+	NamedList<Object> longitude_facets = new NamedList<Object>();
+	long matches = 0;
+
+	int i = 0;
+	while (i < size){
+	    long cell = hashes[i] >>> shift;
+	    int run_end = i;
+	    while (run_end < size && (hashes[run_end] >>> shift) == cell)
+		run_end++;
+
+	    SolrDocumentList docs = new SolrDocumentList();
+	    double[] latitude_stats = new double[STATS_VALUES];
+	    double[] longitude_stats = new double[STATS_VALUES];
+	    long count = 0;
+	    for (int p = i; p < run_end; p++){
+		if (!in_bounds(p, bounds))
+		    continue;
+		count++;
+		add_to_stats(latitude_stats, latitudes[p], count);
+		add_to_stats(longitude_stats, longitudes[p], count);
+		if (docs.size() < max_group_size)
+		    docs.add(doc(p));
+	    }
+	    if (count > 0){
+		// Solr hands back the same String for a term everywhere
+		String geohash = LongGeohash.decode(cell, hash_len);
+		docs.setNumFound(count);
+		NamedList<Object> group = new NamedList<Object>();
+		group.add("groupValue", geohash);
+		group.add("doclist", docs);
+		groups.add(group);
+		latitude_facets.add(geohash, stats(latitude_stats, count));
+		longitude_facets.add(geohash, stats(longitude_stats, count));
+		matches += count;
+	    }
+	    i = run_end;
+	}
+
+	NamedList<Object> grouped_field = new NamedList<Object>();
+	grouped_field.add("matches", matches);
+	grouped_field.add("groups", groups);
+	NamedList<Object> grouped = new NamedList<Object>();
+	grouped.add(field, grouped_field);
+
+	NamedList<Object> stats_fields = new NamedList<Object>();
+	stats_fields.add("longitude", faceted_stats(field, longitude_facets));
+	stats_fields.add("latitude", faceted_stats(field, latitude_facets));
+	NamedList<Object> stats = new NamedList<Object>();
+	stats.add("stats_fields", stats_fields);
+
+	NamedList<Object> response = new NamedList<Object>();
+	response.add("grouped", grouped);
+	response.add("stats", stats);
+	return response;
+    }
+
+    /**
+     * What solr.GeoclusterComponent would have sent GeoSearch for the
+     * points in bounds with geocluster.merge=false, each cell's count and
+     * mean center plus the points of cells with max_group_size or fewer
+     */
+    public NamedList<Object> component_response(int hash_len,
+						int max_group_size,
+						double[] bounds){
+	GeohashGroupStore geohash_groups =
+	    groups(hash_len, max_group_size, bounds);
+	List<NamedList<Object>> groups = new ArrayList<NamedList<Object>>();
+	PointGroup pg = geohash_groups.group(0);
+	for (int row = 0; row < geohash_groups.size(); row++){
+	    pg.moveTo(row);
+	    NamedList<Object> group = new NamedList<Object>();
+	    group.add(GeoclusterComponent.GEOHASH,
+		      geohash_groups.getGeohash(row));
+	    group.add(GeoclusterComponent.COUNT, pg.getPointCount());
+	    group.add(GeoclusterComponent.LONGITUDE, pg.getLongitude());
+	    group.add(GeoclusterComponent.LATITUDE, pg.getLatitude());
+	    if (!pg.cluster_collection()){
+		group.add(GeoclusterComponent.POINTS,
+			  PointFeatures.to_docs(geohash_groups, row));
+	    }
+	    groups.add(group);
+	}
+	NamedList<Object> geocluster = new NamedList<Object>();
+	geocluster.add(GeoclusterComponent.HASH_LENGTH, hash_len);
+	geocluster.add(GeoclusterComponent.GROUPS, groups);
+	NamedList<Object> response = new NamedList<Object>();
+	response.add(GeoclusterComponent.COMPONENT_NAME, geocluster);
+	return response;
+    }
+
+    SolrDocument doc(int p){
+	SolrDocument doc = new SolrDocument();
+	// what GeoSearch's fl (PointFeatures.SOLR_FIELD_LIST) gets back
+	doc.setField(PointFeatures.NAME_FIELD, site_names[sites[p]]);
+	doc.setField(PointFeatures.LONGITUDE_FIELD, longitudes[p]);
+	doc.setField(PointFeatures.LATITUDE_FIELD, latitudes[p]);
+	return doc;
+    }
+
+    /**
+     * Point p the way solr-rocks-indexer's LocationDocuments would index
+     * it, for SolrGroupSourceBenchmark
+     */
+    SolrInputDocument input_doc(int p){
+	SolrInputDocument doc = new SolrInputDocument();
+	// synthetic points share the id of their real point, not Solr's
+	doc.setField("id", Integer.toString(p));
+	doc.setField(PointFeatures.NAME_FIELD, site_names[sites[p]]);
+	doc.setField(PointFeatures.ORG_ID_FIELD, site_ids[sites[p]]);
+	doc.setField(PointFeatures.LATITUDE_FIELD, latitudes[p]);
+	doc.setField(PointFeatures.LONGITUDE_FIELD, longitudes[p]);
+	// no exponents, the spatial field can't read those
+	doc.setField(PointFeatures.LOCATION_FIELD,
+		     BigDecimal.valueOf(latitudes[p]).toPlainString() + ", " +
+		     BigDecimal.valueOf(longitudes[p]).toPlainString() );
+	String geohash =
+	    LongGeohash.decode(hashes[p], LongGeohash.MAX_HASH_LENGTH);
+	for (int len = 1; len <= LongGeohash.MAX_HASH_LENGTH; len++)
+	    doc.setField("geohash_" + len, geohash.substring(0, len));
+	return doc;
+    }
+
+    // min, max, sum and sum of squares as we go along
+    static final int STATS_VALUES = 4;
+
+    static void add_to_stats(double[] stats, double value, long count){
+	if (count == 1 || value < stats[0])
+	    stats[0] = value;
+	if (count == 1 || value > stats[1])
+	    stats[1] = value;
+	stats[2] += value;
+	stats[3] += value * value;
+    }
+
+    /**
+     * The stats for one facet, in the order Solr 4 gives them to us
+     */
+    static NamedList<Object> stats(double[] stats, long count){
+	double mean = stats[2] / count;
+	double variance = count > 1 ?
+	    (stats[3] - mean * stats[2]) / (count - 1) : 0;
+	NamedList<Object> result = new NamedList<Object>();
+	result.add("min", stats[0]);
+	result.add("max", stats[1]);
+	result.add("count", count);
+	result.add("missing", 0L);
+	result.add("sum", stats[2]);
+	result.add("sumOfSquares", stats[3]);
+	result.add("mean", mean);
+	result.add("stddev", Math.sqrt(Math.max(0, variance)));
+	return result;
+    }
+
+    static NamedList<Object> faceted_stats(String field,
+					   NamedList<Object> field_facets){
+	NamedList<Object> facets = new NamedList<Object>();
+	facets.add(field, field_facets);
+	NamedList<Object> result = new NamedList<Object>();
+	result.add("facets", facets);
+	return result;
+    }
+
+    void sort(){
+	new HashSorter(){
+	    protected void swap(int a, int b){
+		BenchmarkPoints.this.swap(a, b);
+	    }
+	}.sort(hashes, size);
+    }
+
+    private void swap(int a, int b){
+	long hash = hashes[a];
+	hashes[a] = hashes[b];
+	hashes[b] = hash;
+	double longitude = longitudes[a];
+	longitudes[a] = longitudes[b];
+	longitudes[b] = longitude;
+	double latitude = latitudes[a];
+	latitudes[a] = latitudes[b];
+	latitudes[b] = latitude;
+	int site = sites[a];
+	sites[a] = sites[b];
+	sites[b] = site;
+    }
+}
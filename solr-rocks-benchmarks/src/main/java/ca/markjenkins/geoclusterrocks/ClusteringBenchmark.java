@@ -0,0 +1,124 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.BenchmarkPoints;
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Clustering.clusterByNeighborCheck() on the groups GeoSearch would have
+ * loaded for our pretend map (or for the whole world) at different zooms
+ * and distance thresholds.
+ *
+ * Clustering.clusterByNeighborCheck() is measured on one thread and
+ * with the neighbour checks spread over a ForkJoinPool (parallel=true),
+ * whatever the number of groups. Before measuring the parallel pass we
+ * check that it ends up with exactly the same clusters as the sequential
+ * one, row for row, and give up if it doesn't.
+ *
+ * Clustering merges rows in place, so every invocation gets a fresh copy
+ * of the groups, the copy isn't part of what's measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ClusteringBenchmark {
+    @Param({"US_2000", "100000", "1000000", "10000000"})
+    public String dataset;
+
+    @Param({"3", "6", "9", "12", "15", "18"})
+    public int zoom;
+
+    @Param({"33", "65", "130"})
+    public int distance_threshold;
+
+    @Param({BenchmarkPoints.MAP_VIEW, BenchmarkPoints.WORLD_VIEW})
+    public String view;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    ForkJoinPool pool;
+    GeohashGroupStore loaded_groups;
+    GeohashGroupStore geohash_groups;
+
+    @Setup(Level.Trial)
+    public void load_groups() throws Exception {
+	int hash_len = Clustering.get_geohash_length(distance_threshold, zoom);
+	loaded_groups = BenchmarkPoints.get(dataset).groups
+	    (hash_len, GeoSearch.max_group_size_for_zoom(zoom),
+	     BenchmarkPoints.bounds(view, zoom) );
+	pool = parallel ? new ForkJoinPool() : null;
+	if (parallel)
+	    check_parallel(loaded_groups, zoom, pool);
+    }
+
+    static GeohashGroupStore copy(GeohashGroupStore groups){
+	GeohashGroupStore copy = new GeohashGroupStore
+	    (groups.getHashLength(), groups.force_cluster_threshold,
+	     groups.size());
+	copy.add_all(groups);
+	return copy;
+    }
+
+    /**
+     * Cluster copies of groups on one thread and on pool and throw
+     * IllegalStateException unless every row comes out the same
+     */
+    static void check_parallel(GeohashGroupStore groups, int zoom,
+			       ForkJoinPool pool){
+	GeohashGroupStore sequential = copy(groups);
+	GeohashGroupStore parallel = copy(groups);
+	Clustering.clusterByNeighborCheck(sequential, zoom, null);
+	Clustering.clusterByNeighborCheck(parallel, zoom, pool);
+	for (int row = 0; row < sequential.size(); row++){
+	    if (sequential.isRemoved(row) != parallel.isRemoved(row) ||
+		(!sequential.isRemoved(row) &&
+		 (sequential.counts[row] != parallel.counts[row] ||
+		  sequential.longitudes[row] != parallel.longitudes[row] ||
+		  sequential.latitudes[row] != parallel.latitudes[row] ||
+		  sequential.first_points[row] != parallel.first_points[row] ||
+		  sequential.last_points[row] != parallel.last_points[row])))
+		throw new IllegalStateException
+		    ("parallel clustering differs at row " + row + " (" +
+		     sequential.getGeohash(row) + ") at zoom " + zoom);
+	}
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown_pool(){
+	if (pool != null)
+	    pool.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void copy_groups(){
+	geohash_groups = copy(loaded_groups);
+    }
+
+    @Benchmark
+    public GeohashGroupStore clusterByNeighborCheck(){
+	Clustering.clusterByNeighborCheck(geohash_groups, zoom, pool);
+	return geohash_groups;
+    }
+}
@@ -0,0 +1,95 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geojson.Point;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Clustering.distance_pixels() between neighbouring centers, with and
+ * without geojson Points, and the squared distance between centers
+ * already projected into pixels, the way clusterByNeighborCheck() does
+ * it now
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DistanceBenchmark {
+    static final int PAIRS = 1024;
+
+    @Param({"3", "9", "15"})
+    public int zoom;
+
+    double resolution;
+    double[] longitudes = new double[PAIRS*2];
+    double[] latitudes = new double[PAIRS*2];
+    Point[] points = new Point[PAIRS*2];
+    double world_pixels;
+    double[] xs = new double[PAIRS*2];
+    double[] ys = new double[PAIRS*2];
+
+    @Setup
+    public void make_pairs(){
+	resolution = Clustering.resolutions[zoom];
+	// each pair about a screen of pixels apart at this zoom
+	double spread = 1000 * resolution / 111000;
+	Random random = new Random(PAIRS);
+	for (int i = 0; i < PAIRS*2; i += 2){
+	    longitudes[i] = random.nextDouble() * 100 - 150;
+	    latitudes[i] = random.nextDouble() * 50 + 15;
+	    longitudes[i+1] = longitudes[i] + random.nextDouble() * spread;
+	    latitudes[i+1] = latitudes[i] + random.nextDouble() * spread;
+	}
+	for (int i = 0; i < PAIRS*2; i++)
+	    points[i] = new Point(longitudes[i], latitudes[i]);
+	world_pixels = Clustering.world_pixels(resolution);
+	for (int i = 0; i < PAIRS*2; i++){
+	    xs[i] = Clustering.pixel_x(longitudes[i], world_pixels);
+	    ys[i] = Clustering.pixel_y(latitudes[i], world_pixels);
+	}
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void distance_pixels(Blackhole bh){
+	for (int i = 0; i < PAIRS*2; i += 2)
+	    bh.consume(Clustering.distance_pixels
+		       (longitudes[i], latitudes[i],
+			longitudes[i+1], latitudes[i+1], resolution) );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void distance_pixels_points(Blackhole bh){
+	for (int i = 0; i < PAIRS*2; i += 2)
+	    bh.consume(Clustering.distance_pixels
+		       (points[i], points[i+1], resolution) );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void squared_distance_pixels_projected(Blackhole bh){
+	for (int i = 0; i < PAIRS*2; i += 2)
+	    bh.consume(Clustering.squared_distance_pixels
+		       (xs[i], ys[i], xs[i+1], ys[i+1], world_pixels) );
+    }
+}
@@ -0,0 +1,121 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.BenchmarkPoints;
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.VectorTileWriter;
+import ca.markjenkins.geoclusterrocks.solr.GeoclusterComponent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.util.NamedList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Everything GeoSearch does with a Solr response, loading the groups and
+ * their statistics, clustering and turning the result into JSON, either
+ * as a String (render_json()) or streamed (GeoJsonWriter), or into a
+ * vector tile (VectorTileWriter).
+ *
+ * The response is made up front by BenchmarkPoints to look like what Solr
+ * sends us for our pretend map, so Solr itself isn't part of this (see
+ * SolrGroupSourceBenchmark for that). It's
+ * either result grouping plus stats (GroupingGroupSource) or the one pass
+ * aggregation of solr.GeoclusterComponent (AggregationGroupSource).
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class GeoSearchBenchmark {
+    @Param({"US_2000", "100000", "1000000", "10000000"})
+    public String dataset;
+
+    @Param({"3", "6", "9", "12", "15", "18"})
+    public int zoom;
+
+    @Param({"33", "65", "130"})
+    public int distance_threshold;
+
+    @Param({BenchmarkPoints.MAP_VIEW, BenchmarkPoints.WORLD_VIEW})
+    public String view;
+
+    @Param({GeoSearch.GROUPING_GROUPS, GeoSearch.AGGREGATION_GROUPS})
+    public String groups;
+
+    int hash_len;
+    int max_group_size;
+    double[] bounds;
+    NamedList<Object> solr_response;
+
+    @Setup
+    public void record_response() throws Exception {
+	hash_len = Clustering.get_geohash_length(distance_threshold, zoom);
+	max_group_size = GeoSearch.max_group_size_for_zoom(zoom);
+	BenchmarkPoints points = BenchmarkPoints.get(dataset);
+	bounds = BenchmarkPoints.bounds(view, zoom);
+	if (groups.equals(GeoSearch.AGGREGATION_GROUPS))
+	    solr_response = points.component_response
+		(hash_len, max_group_size, bounds);
+	else
+	    solr_response = points.solr_response
+		(hash_len, max_group_size, bounds);
+    }
+
+    @Benchmark
+    public GeohashGroupStore load_groups(){
+	if (groups.equals(GeoSearch.AGGREGATION_GROUPS))
+	    return GeoSearch.load_component_groups
+		( (NamedList<Object>)solr_response
+		  .get(GeoclusterComponent.COMPONENT_NAME),
+		  max_group_size );
+	else
+	    return GeoSearch.load_groups_from_response
+		(solr_response, zoom, hash_len, max_group_size, true);
+    }
+
+    @Benchmark
+    public String load_cluster_render(){
+	GeohashGroupStore geohash_groups = load_groups();
+	Clustering.clusterByNeighborCheck(geohash_groups, zoom);
+	return GeoSearch.render_json(geohash_groups);
+    }
+
+    // where our streamed JSON goes, so we're only measuring making it
+    static final OutputStream nowhere = new OutputStream(){
+	    public void write(int b){}
+	    public void write(byte[] b, int off, int len){}
+	};
+
+    @Benchmark
+    public GeohashGroupStore load_cluster_stream() throws IOException {
+	GeohashGroupStore geohash_groups = load_groups();
+	Clustering.clusterByNeighborCheck(geohash_groups, zoom);
+	GeoJsonWriter.write(geohash_groups, nowhere);
+	return geohash_groups;
+    }
+
+    @Benchmark
+    public GeohashGroupStore load_cluster_mvt() throws IOException {
+	GeohashGroupStore geohash_groups = load_groups();
+	Clustering.clusterByNeighborCheck(geohash_groups, zoom);
+	VectorTileWriter.write(geohash_groups, bounds, nowhere);
+	return geohash_groups;
+    }
+}
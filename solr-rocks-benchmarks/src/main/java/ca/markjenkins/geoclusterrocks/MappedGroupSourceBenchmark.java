@@ -0,0 +1,72 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.BenchmarkPoints;
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+import ca.markjenkins.geoclusterrocks.MappedGroupSource;
+import ca.markjenkins.geoclusterrocks.PointColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading the groups for our pretend map (or the whole world) from a
+ * PointColumns file of the benchmark points with MappedGroupSource, what
+ * GeoSearchBenchmark.load_groups() does with a Solr response. Clustering
+ * them is the same either way, see ClusteringBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MappedGroupSourceBenchmark {
+    @Param({"US_2000", "100000", "1000000", "10000000"})
+    public String dataset;
+
+    @Param({"3", "6", "9", "12", "15", "18"})
+    public int zoom;
+
+    @Param({BenchmarkPoints.MAP_VIEW, BenchmarkPoints.WORLD_VIEW})
+    public String view;
+
+    MappedGroupSource source;
+    LocationsQuery query;
+
+    @Setup
+    public void map_points() throws Exception {
+	PointColumns points = PointColumns.open
+	    (BenchmarkPoints.get(dataset).points_file());
+	// there's no text searching here, so no Solr to fall back on
+	source = new MappedGroupSource(points, null);
+	double[] bounds = BenchmarkPoints.bounds(view, zoom);
+	query = new LocationsQuery
+	    (bounds[0] + "," + bounds[1] + "," + bounds[2] + "," + bounds[3],
+	     zoom, null, null, true, GeoSearch.max_group_size_for_zoom(zoom),
+	     Clustering.GEOCLUSTER_DEFAULT_DISTANCE,
+	     new HashMap<String, List<String>>(), new ArrayList<String>(),
+	     null);
+    }
+
+    @Benchmark
+    public GeohashGroupStore load_groups(){
+	return source.load_groups(query, null);
+    }
+}
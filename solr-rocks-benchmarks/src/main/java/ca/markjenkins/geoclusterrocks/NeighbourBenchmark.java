@@ -0,0 +1,82 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+
+import com.github.davidmoten.geo.GeoHash;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The four neighbours of a geohash cell with LongGeohash, the way
+ * clusterByNeighborCheck() finds them now, and with the Strings of
+ * davidmoten's GeoHash, the way it used to. That they're the same
+ * neighbours (but for the poles) is LongGeohashTest's business.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NeighbourBenchmark {
+    static final int HASHES = 1024;
+
+    @Param({"4", "8", "12"})
+    public int hash_len;
+
+    long latitude_mask;
+    long longitude_mask;
+    long[] hashes = new long[HASHES];
+    String[] geohashes = new String[HASHES];
+
+    @Setup
+    public void make_hashes(){
+	latitude_mask = LongGeohash.latitude_mask(hash_len);
+	longitude_mask = LongGeohash.longitude_mask(hash_len);
+	Random random = new Random(HASHES);
+	for (int i = 0; i < HASHES; i++){
+	    // clear of the poles, where GeoHash wraps and we don't
+	    geohashes[i] = GeoHash.encodeHash
+		(random.nextDouble() * 160 - 80,
+		 random.nextDouble() * 360 - 180, hash_len);
+	    hashes[i] = LongGeohash.encode(geohashes[i]);
+	}
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HASHES)
+    public void long_neighbours(Blackhole bh){
+	for (int i = 0; i < HASHES; i++){
+	    bh.consume(LongGeohash.top(hashes[i], latitude_mask));
+	    bh.consume(LongGeohash.bottom(hashes[i], latitude_mask));
+	    bh.consume(LongGeohash.right(hashes[i], longitude_mask));
+	    bh.consume(LongGeohash.left(hashes[i], longitude_mask));
+	}
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HASHES)
+    public void string_neighbours(Blackhole bh){
+	for (int i = 0; i < HASHES; i++){
+	    bh.consume(GeoHash.top(geohashes[i]));
+	    bh.consume(GeoHash.bottom(geohashes[i]));
+	    bh.consume(GeoHash.right(geohashes[i]));
+	    bh.consume(GeoHash.left(geohashes[i]));
+	}
+    }
+}
@@ -0,0 +1,90 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.PointGroup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * PointGroup.mergeIn() and PointGroup.getFactoredCenter() on their own.
+ *
+ * Each invocation merges PAIRS pairs of rows, the odd row into the even
+ * one, on a freshly made store, as either grouped points or clusters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PointGroupBenchmark {
+    static final int PAIRS = 1024;
+    static final int MAX_GROUP_SIZE = 80;
+
+    @Param({"true", "false"})
+    public boolean grouped_points;
+
+    double[] longitudes = new double[PAIRS*2];
+    double[] latitudes = new double[PAIRS*2];
+    long[] counts = new long[PAIRS*2];
+    GeohashGroupStore geohash_groups;
+
+    @Setup(Level.Trial)
+    public void make_groups(){
+	Random random = new Random(PAIRS);
+	for (int i = 0; i < PAIRS*2; i++){
+	    longitudes[i] = random.nextDouble() * 360 - 180;
+	    latitudes[i] = random.nextDouble() * 180 - 90;
+	    counts[i] = grouped_points ?
+		1 + random.nextInt(MAX_GROUP_SIZE/2) :
+		1 + random.nextInt(100000);
+	}
+    }
+
+    @Setup(Level.Invocation)
+    public void fill_store(){
+	geohash_groups = new GeohashGroupStore(1, MAX_GROUP_SIZE, PAIRS*2);
+	for (int i = 0; i < PAIRS*2; i++){
+	    int row = geohash_groups.add_group(i, counts[i], longitudes[i],
+					       latitudes[i]);
+	    if (grouped_points)
+		for (int p = 0; p < counts[i]; p++)
+		    geohash_groups.add_point(row, "point", null, null,
+					     longitudes[i], latitudes[i]);
+	}
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public GeohashGroupStore mergeIn(){
+	PointGroup pg = geohash_groups.group(0);
+	PointGroup other_pg = geohash_groups.group(1);
+	for (int i = 0; i < PAIRS*2; i += 2)
+	    pg.moveTo(i).mergeIn(other_pg.moveTo(i+1));
+	return geohash_groups;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void getFactoredCenter(Blackhole bh){
+	for (int i = 0; i < PAIRS*2; i += 2)
+	    bh.consume(PointGroup.getFactoredCenter
+		       (longitudes[i], longitudes[i+1], counts[i], counts[i+1]));
+    }
+}
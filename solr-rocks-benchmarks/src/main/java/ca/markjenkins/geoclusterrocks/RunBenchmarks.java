@@ -0,0 +1,23 @@
+package ca.markjenkins.geoclusterrocks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * java -jar target/benchmarks.jar [JMH options]
+ *
+ * The same as JMH's own Main, except we always want the allocation rate
+ * reported along with throughput, so the gc profiler is on unless other
+ * profilers are asked for.
+ */
+public class RunBenchmarks {
+    public static void main(String[] args) throws Exception {
+	List<String> jmh_args = new ArrayList<String>(Arrays.asList(args));
+	if (!jmh_args.contains("-prof")){
+	    jmh_args.add("-prof");
+	    jmh_args.add("gc");
+	}
+	org.openjdk.jmh.Main.main(jmh_args.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,219 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.AggregationGroupSource;
+import ca.markjenkins.geoclusterrocks.BenchmarkPoints;
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupSource;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.GroupingGroupSource;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * GroupingGroupSource against AggregationGroupSource with Solr doing its
+ * part for real, loading the groups for our pretend map (or the whole
+ * world) from an EmbeddedSolrServer over a core with the benchmark points
+ * indexed in it. GeoSearchBenchmark only has made up responses to parse.
+ *
+ * The core is solr-rocks/solr/conf in a directory of its own per dataset
+ * under geoclusterrocks.benchmark.solr_home (java.io.tmpdir by default).
+ * The points are indexed the first time and the index is kept for every
+ * trial after that, forks and all. Before measuring anything we check
+ * that both sources load the same groups from it, and give up if they
+ * don't.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SolrGroupSourceBenchmark {
+    public static final String SOLR_CONF_PROPERTY =
+	"geoclusterrocks.benchmark.solr_conf";
+    public static final String SOLR_HOME_PROPERTY =
+	"geoclusterrocks.benchmark.solr_home";
+    // depending on whether we're run from the top or from this module
+    static final String[] DEFAULT_SOLR_CONFS = {
+	"solr-rocks/solr/conf", "../solr-rocks/solr/conf" };
+    static final String CORE_NAME = "collection1";
+    static final String SOLR_XML =
+	"<solr persistent=\"false\">\n" +
+	"  <cores adminPath=\"null\" defaultCoreName=\"" + CORE_NAME +
+	"\">\n" +
+	"    <core name=\"" + CORE_NAME +
+	"\" instanceDir=\".\" dataDir=\"data\"/>\n" +
+	"  </cores>\n" +
+	"</solr>\n";
+    static final int INDEX_BATCH_SIZE = 1000;
+    // centers are Solr's stats means one way and GeoclusterComponent's
+    // own sums the other, which needn't add up in the same order
+    static final double CENTER_TOLERANCE = 1e-9;
+
+    // indexing 10M points takes longer than all of the rest
+    @Param({"US_2000", "100000", "1000000"})
+    public String dataset;
+
+    @Param({"3", "6", "9", "12", "15", "18"})
+    public int zoom;
+
+    @Param({BenchmarkPoints.MAP_VIEW, BenchmarkPoints.WORLD_VIEW})
+    public String view;
+
+    @Param({GeoSearch.GROUPING_GROUPS, GeoSearch.AGGREGATION_GROUPS})
+    public String groups;
+
+    CoreContainer cores;
+    GeohashGroupSource source;
+    LocationsQuery query;
+
+    @Setup(Level.Trial)
+    public void index_points() throws Exception {
+	BenchmarkPoints points = BenchmarkPoints.get(dataset);
+	cores = new CoreContainer(solr_home(dataset).getPath());
+	cores.load();
+	SolrServer solr = new EmbeddedSolrServer(cores, CORE_NAME);
+	SolrQuery everything = new SolrQuery("*:*");
+	everything.setRows(0);
+	if (solr.query(everything).getResults().getNumFound() != points.size){
+	    solr.deleteByQuery("*:*");
+	    index(solr, points);
+	    solr.commit();
+	}
+
+	double[] bounds = BenchmarkPoints.bounds(view, zoom);
+	query = new LocationsQuery
+	    (GeoSearch.bounds_param(bounds), zoom, null, null, true,
+	     GeoSearch.max_group_size_for_zoom(zoom),
+	     Clustering.GEOCLUSTER_DEFAULT_DISTANCE,
+	     new HashMap<String, List<String>>(), new ArrayList<String>(),
+	     null);
+	GeohashGroupSource grouping = new GroupingGroupSource(solr);
+	GeohashGroupSource aggregation = new AggregationGroupSource(solr);
+	check_same(grouping.load_groups(query, null),
+		   aggregation.load_groups(query, null), zoom);
+	source = groups.equals(GeoSearch.AGGREGATION_GROUPS) ?
+	    aggregation : grouping;
+    }
+
+    /**
+     * A Solr home for dataset with our conf copied into it
+     */
+    static File solr_home(String dataset) throws IOException {
+	File home = new File
+	    (System.getProperty(SOLR_HOME_PROPERTY,
+				System.getProperty("java.io.tmpdir")),
+	     "geoclusterrocks-benchmark-solr-" + dataset);
+	File conf = new File(home, "conf");
+	conf.mkdirs();
+	for (File f: solr_conf().listFiles())
+	    if (f.isFile())
+		Files.copy(f, new File(conf, f.getName()));
+	Files.write(SOLR_XML.getBytes(Charsets.UTF_8),
+		    new File(home, "solr.xml"));
+	return home;
+    }
+
+    static File solr_conf(){
+	String configured = System.getProperty(SOLR_CONF_PROPERTY);
+	if (configured != null)
+	    return new File(configured);
+	for (String path: DEFAULT_SOLR_CONFS){
+	    File f = new File(path);
+	    if (f.isDirectory())
+		return f;
+	}
+	throw new IllegalStateException
+	    ("can't find solr-rocks/solr/conf, set " + SOLR_CONF_PROPERTY);
+    }
+
+    static void index(SolrServer solr, BenchmarkPoints points)
+	throws IOException, SolrServerException {
+	List<SolrInputDocument> batch =
+	    new ArrayList<SolrInputDocument>(INDEX_BATCH_SIZE);
+	for (int p = 0; p < points.size; p++){
+	    batch.add(points.input_doc(p));
+	    if (batch.size() == INDEX_BATCH_SIZE){
+		solr.add(batch);
+		batch.clear();
+	    }
+	}
+	if (!batch.isEmpty())
+	    solr.add(batch);
+    }
+
+    /**
+     * Throw IllegalStateException unless both sources loaded the same
+     * cells with the same counts and (near enough) the same centers
+     */
+    static void check_same(GeohashGroupStore grouping,
+			   GeohashGroupStore aggregation, int zoom){
+	if (grouping == null || aggregation == null)
+	    throw new IllegalStateException
+		("Solr let us down at zoom " + zoom + ", see the log");
+	if (grouping.size() != aggregation.size())
+	    throw new IllegalStateException
+		("grouping loaded " + grouping.size() + " groups and " +
+		 "aggregation " + aggregation.size() + " at zoom " + zoom);
+	for (int row = 0; row < grouping.size(); row++){
+	    if (grouping.hashes[row] != aggregation.hashes[row] ||
+		grouping.counts[row] != aggregation.counts[row] ||
+		Math.abs(grouping.longitudes[row] -
+			 aggregation.longitudes[row]) > CENTER_TOLERANCE ||
+		Math.abs(grouping.latitudes[row] -
+			 aggregation.latitudes[row]) > CENTER_TOLERANCE)
+		throw new IllegalStateException
+		    ("grouping and aggregation differ at row " + row + " (" +
+		     grouping.getGeohash(row) + ") at zoom " + zoom);
+	}
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown_cores(){
+	if (cores != null)
+	    cores.shutdown();
+    }
+
+    @Benchmark
+    public GeohashGroupStore load_groups(){
+	return source.load_groups(query, null);
+    }
+
+    @Benchmark
+    public GeohashGroupStore load_cluster(){
+	GeohashGroupStore geohash_groups = load_groups();
+	Clustering.clusterByNeighborCheck(geohash_groups, zoom);
+	return geohash_groups;
+    }
+}
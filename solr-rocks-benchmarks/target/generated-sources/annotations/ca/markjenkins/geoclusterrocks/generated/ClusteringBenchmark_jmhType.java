@@ -0,0 +1,4 @@
+package ca.markjenkins.geoclusterrocks.generated;
+public class ClusteringBenchmark_jmhType extends ClusteringBenchmark_jmhType_B3 {
+}
+
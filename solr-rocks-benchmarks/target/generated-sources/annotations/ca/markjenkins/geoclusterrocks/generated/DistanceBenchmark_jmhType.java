@@ -0,0 +1,4 @@
+package ca.markjenkins.geoclusterrocks.generated;
+public class DistanceBenchmark_jmhType extends DistanceBenchmark_jmhType_B3 {
+}
+
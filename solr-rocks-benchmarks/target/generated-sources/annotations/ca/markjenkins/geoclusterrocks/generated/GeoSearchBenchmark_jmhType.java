@@ -0,0 +1,4 @@
+package ca.markjenkins.geoclusterrocks.generated;
+public class GeoSearchBenchmark_jmhType extends GeoSearchBenchmark_jmhType_B3 {
+}
+
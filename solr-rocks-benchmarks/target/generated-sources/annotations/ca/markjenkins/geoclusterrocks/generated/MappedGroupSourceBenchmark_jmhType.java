@@ -0,0 +1,4 @@
+package ca.markjenkins.geoclusterrocks.generated;
+public class MappedGroupSourceBenchmark_jmhType extends MappedGroupSourceBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package ca.markjenkins.geoclusterrocks.generated;
+public class NeighbourBenchmark_jmhType extends NeighbourBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package ca.markjenkins.geoclusterrocks.generated;
+public class PointGroupBenchmark_jmhType extends PointGroupBenchmark_jmhType_B3 {
+}
+
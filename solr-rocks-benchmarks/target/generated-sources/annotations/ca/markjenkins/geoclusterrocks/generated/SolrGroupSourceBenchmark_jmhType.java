@@ -0,0 +1,4 @@
+package ca.markjenkins.geoclusterrocks.generated;
+public class SolrGroupSourceBenchmark_jmhType extends SolrGroupSourceBenchmark_jmhType_B3 {
+}
+
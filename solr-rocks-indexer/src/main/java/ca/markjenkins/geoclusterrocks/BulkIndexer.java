@@ -0,0 +1,272 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.LocationDocuments;
+import ca.markjenkins.geoclusterrocks.SolrServers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * java -jar target/indexer.jar allCountries.zip [more files]
+ *
+ * Loads GeoNames dumps (or CSV, see LocationDocuments) into the index
+ * GeoSearch uses, instead of data/to_xml.py making XML for Solr to parse.
+ * Files can be plain, .gz or (GeoNames only) the .zip GeoNames hands
+ * them out as.
+ *
+ * One thread reads lines and hands them out in batches, the rest turn
+ * them into documents (geohashes and all) and send them to Solr, as
+ * javabin rather than XML over HTTP, or straight into the core when
+ * embedded. Which Solr is up to the same system properties as the webapp
+ * (SolrServers), -Dgeoclusterrocks.solr.mode=embedded
+ * -Dgeoclusterrocks.solr.home=solr-rocks/solr writes to our own core
+ * without Solr running, as long as nothing else has it open. And
+ *
+ *   geoclusterrocks.indexer.threads     sending threads (processors)
+ *   geoclusterrocks.indexer.batch_size  documents per update (1000)
+ *   geoclusterrocks.indexer.limit       lines per file, for trying it out
+ *   geoclusterrocks.indexer.replace     true to delete what's in the
+ *                                       index first, for a full reload
+ *
+ * There's one commit at the end, after every file.
+ */
+public class BulkIndexer {
+    public static final String THREADS_PROPERTY =
+	"geoclusterrocks.indexer.threads";
+    public static final String BATCH_SIZE_PROPERTY =
+	"geoclusterrocks.indexer.batch_size";
+    public static final String LIMIT_PROPERTY =
+	"geoclusterrocks.indexer.limit";
+    public static final String REPLACE_PROPERTY =
+	"geoclusterrocks.indexer.replace";
+
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    static final int READ_BUFFER_SIZE = 1 << 16;
+    static final long PROGRESS_EVERY = 1000000;
+
+    static Logger log_l4 = LoggerFactory.getLogger( BulkIndexer.class );
+
+    // no more batches, one per sending thread
+    static final List<String> END = new ArrayList<String>();
+
+    final SolrServer solr;
+    final int threads;
+    final int batch_size;
+
+    final AtomicLong indexed = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+    // whatever stopped a sending thread, we give up on the rest then
+    volatile Exception failure = null;
+
+    public BulkIndexer(SolrServer solr, int threads, int batch_size){
+	this.solr = solr;
+	this.threads = threads;
+	this.batch_size = batch_size;
+    }
+
+    public static void main(String[] args) throws Exception {
+	if (args.length == 0){
+	    System.err.println("usage: java [-D...] -jar indexer.jar " +
+			       "file.txt|file.csv[.gz|.zip] ...");
+	    System.exit(1);
+	}
+	int threads = Integer.getInteger
+	    (THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+	int batch_size = Integer.getInteger(BATCH_SIZE_PROPERTY,
+					    DEFAULT_BATCH_SIZE);
+	long limit = Long.getLong(LIMIT_PROPERTY, Long.MAX_VALUE);
+
+	SolrServer solr = SolrServers.create(null, null, null, null);
+	// javabin is much less for Solr to parse than XML
+	if (solr instanceof HttpSolrServer)
+	    ((HttpSolrServer)solr).setRequestWriter(new BinaryRequestWriter());
+	try {
+	    BulkIndexer indexer = new BulkIndexer(solr, threads, batch_size);
+	    long start = System.currentTimeMillis();
+	    if (Boolean.getBoolean(REPLACE_PROPERTY)){
+		log_l4.info("deleting everything in the index first");
+		solr.deleteByQuery("*:*");
+	    }
+	    for (String file: args)
+		indexer.index(new File(file), limit);
+	    log_l4.info("committing");
+	    solr.commit();
+	    log_l4.info("indexed " + indexer.indexed.get() + " locations (" +
+			indexer.skipped.get() + " lines skipped) in " +
+			(System.currentTimeMillis() - start) / 1000 + "s");
+	}
+	finally {
+	    SolrServers.shutdown(solr);
+	}
+    }
+
+    /**
+     * Send up to limit lines of file to Solr, without committing them
+     */
+    public void index(File file, long limit)
+	throws IOException, SolrServerException, InterruptedException {
+	log_l4.info("indexing " + file);
+	BufferedReader in = open(file);
+	try {
+	    LocationDocuments documents;
+	    String name = base_name(file);
+	    if (name.endsWith(".csv")){
+		String header = in.readLine();
+		if (header == null)
+		    return;
+		documents = LocationDocuments.csv(header);
+	    }
+	    else
+		documents = LocationDocuments.geonames();
+
+	    BlockingQueue<List<String>> batches =
+		new ArrayBlockingQueue<List<String>>(threads * 2);
+	    List<Thread> senders = new ArrayList<Thread>();
+	    for (int i = 0; i < threads; i++){
+		Thread sender = new Thread(new Sender(batches, documents),
+					   "indexer " + i);
+		sender.start();
+		senders.add(sender);
+	    }
+
+	    long lines = 0;
+	    List<String> batch = new ArrayList<String>(batch_size);
+	    String line;
+	    while (failure == null && lines < limit &&
+		   (line = in.readLine()) != null){
+		lines++;
+		batch.add(line);
+		if (batch.size() == batch_size){
+		    hand_out(batches, batch);
+		    batch = new ArrayList<String>(batch_size);
+		}
+		if (lines % PROGRESS_EVERY == 0)
+		    log_l4.info("read " + lines + " lines, indexed " +
+				indexed.get());
+	    }
+	    if (!batch.isEmpty())
+		hand_out(batches, batch);
+	    for (int i = 0; i < threads; i++)
+		hand_out(batches, END);
+	    for (Thread sender: senders)
+		sender.join();
+	}
+	finally {
+	    in.close();
+	}
+
+	if (failure instanceof IOException)
+	    throw (IOException)failure;
+	if (failure instanceof SolrServerException)
+	    throw (SolrServerException)failure;
+	if (failure instanceof RuntimeException)
+	    throw (RuntimeException)failure;
+	if (failure != null)
+	    throw new IOException(failure);
+    }
+
+    // if the senders have given up nobody will ever take batch, so don't
+    // wait forever for them to
+    void hand_out(BlockingQueue<List<String>> batches, List<String> batch)
+	throws InterruptedException {
+	while (!batches.offer(batch, 1, TimeUnit.SECONDS))
+	    if (failure != null)
+		return;
+    }
+
+    class Sender implements Runnable {
+	final BlockingQueue<List<String>> batches;
+	final LocationDocuments documents;
+
+	Sender(BlockingQueue<List<String>> batches,
+	       LocationDocuments documents){
+	    this.batches = batches;
+	    this.documents = documents;
+	}
+
+	public void run(){
+	    try {
+		List<SolrInputDocument> docs =
+		    new ArrayList<SolrInputDocument>(batch_size);
+		List<String> batch;
+		while ((batch = batches.take()) != END && failure == null){
+		    docs.clear();
+		    for (String line: batch){
+			SolrInputDocument doc = documents.document(line);
+			if (doc != null)
+			    docs.add(doc);
+		    }
+		    skipped.addAndGet(batch.size() - docs.size());
+		    if (docs.isEmpty())
+			continue;
+		    solr.add(docs);
+		    indexed.addAndGet(docs.size());
+		}
+	    }
+	    catch (Exception e){
+		log_l4.error("indexing failed", e);
+		if (failure == null)
+		    failure = e;
+	    }
+	}
+    }
+
+    static String base_name(File file){
+	String name = file.getName().toLowerCase();
+	if (name.endsWith(".gz"))
+	    return name.substring(0, name.length() - ".gz".length());
+	return name;
+    }
+
+    /**
+     * The lines of file, of the first .txt in it if it's a zip (which is
+     * how GeoNames gives them out, with a readme.txt too)
+     */
+    static BufferedReader open(File file) throws IOException {
+	InputStream in = new FileInputStream(file);
+	String name = file.getName().toLowerCase();
+	try {
+	    if (name.endsWith(".gz"))
+		in = new GZIPInputStream(in, READ_BUFFER_SIZE);
+	    else if (name.endsWith(".zip")){
+		ZipInputStream zip = new ZipInputStream(in);
+		in = zip;
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null &&
+		       (entry.getName().equals("readme.txt") ||
+			!entry.getName().endsWith(".txt") ))
+		    ;
+		if (entry == null)
+		    throw new IOException("nothing to index in " + file);
+	    }
+	}
+	catch (IOException e){
+	    in.close();
+	    throw e;
+	}
+	return new BufferedReader(new InputStreamReader(in, "UTF-8"),
+				  READ_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,198 @@
+package ca.markjenkins.geoclusterrocks;
+
+import com.github.davidmoten.geo.GeoHash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Makes the documents our schema (solr/conf/schema.xml) wants from lines
+ * of locations, what data/to_xml.py does but without going through XML:
+ * id, name, latitude, longitude, location and geohash_1 to geohash_12,
+ * the geohashes worked out here.
+ *
+ * GeoNames dumps (US.txt, allCountries.txt, see data/readme.txt) are tab
+ * separated with no header, we want columns 0, 1, 4 and 5 of them. CSV
+ * needs a header naming its id, name, latitude and longitude columns, it
+ * can also have any of our other fields (EXTRA_FIELDS, the ones GeoSearch
+ * filters on), anything else is ignored. CSV fields can be quoted, but
+ * not over more than one line.
+ *
+ * Nothing here changes once made, the indexer's threads share one.
+ */
+public class LocationDocuments {
+    public static final int GEOHASH_LEVELS = 12;
+    static final String[] GEOHASH_FIELDS = new String[GEOHASH_LEVELS + 1];
+    static {
+	for (int len = 1; len <= GEOHASH_LEVELS; len++)
+	    GEOHASH_FIELDS[len] = "geohash_" + len;
+    }
+
+    // what CSV can have besides id, name, latitude and longitude
+    static final String[] EXTRA_FIELDS = {
+	"org_id", "type_name", "state_two_letter", "city", "zip", "country",
+	"icon_group_id" };
+
+    static final int GEONAMES_ID = 0;
+    static final int GEONAMES_NAME = 1;
+    static final int GEONAMES_LATITUDE = 4;
+    static final int GEONAMES_LONGITUDE = 5;
+
+    final char separator;
+    final int id_column;
+    final int name_column;
+    final int latitude_column;
+    final int longitude_column;
+    final String[] extra_fields;
+    final int[] extra_columns;
+    // we don't split a line any further than this, GeoNames' alternate
+    // names can go on for thousands of characters
+    final int columns;
+
+    LocationDocuments(char separator, int id_column, int name_column,
+		      int latitude_column, int longitude_column,
+		      String[] extra_fields, int[] extra_columns){
+	this.separator = separator;
+	this.id_column = id_column;
+	this.name_column = name_column;
+	this.latitude_column = latitude_column;
+	this.longitude_column = longitude_column;
+	this.extra_fields = extra_fields;
+	this.extra_columns = extra_columns;
+	int last = Math.max(Math.max(id_column, name_column),
+			    Math.max(latitude_column, longitude_column));
+	for (int column: extra_columns)
+	    last = Math.max(last, column);
+	columns = last + 1;
+    }
+
+    public static LocationDocuments geonames(){
+	return new LocationDocuments('\t', GEONAMES_ID, GEONAMES_NAME,
+				     GEONAMES_LATITUDE, GEONAMES_LONGITUDE,
+				     new String[0], new int[0]);
+    }
+
+    /**
+     * For CSV with header as its first line
+     */
+    public static LocationDocuments csv(String header){
+	List<String> names = split(header, ',', Integer.MAX_VALUE);
+	for (int i = 0; i < names.size(); i++)
+	    names.set(i, names.get(i).trim().toLowerCase());
+	List<String> extra_fields = new ArrayList<String>();
+	List<Integer> extra_columns = new ArrayList<Integer>();
+	for (String field: EXTRA_FIELDS)
+	    if (names.contains(field)){
+		extra_fields.add(field);
+		extra_columns.add(names.indexOf(field));
+	    }
+	int[] extra = new int[extra_columns.size()];
+	for (int i = 0; i < extra.length; i++)
+	    extra[i] = extra_columns.get(i);
+	return new LocationDocuments(',', column(names, "id"),
+				     column(names, "name"),
+				     column(names, "latitude"),
+				     column(names, "longitude"),
+				     extra_fields.toArray(new String[0]),
+				     extra);
+    }
+
+    static int column(List<String> names, String name){
+	int column = names.indexOf(name);
+	if (column < 0)
+	    throw new IllegalArgumentException
+		("CSV header " + names + " has no " + name + " column");
+	return column;
+    }
+
+    /**
+     * The document for line, null if it isn't a location we can index
+     * (too few columns, no id or coordinates that aren't)
+     */
+    public SolrInputDocument document(String line){
+	List<String> fields = split(line, separator, columns);
+	if (fields.size() < columns)
+	    return null;
+	String id = fields.get(id_column).trim();
+	String latitude = fields.get(latitude_column).trim();
+	String longitude = fields.get(longitude_column).trim();
+	if (id.isEmpty())
+	    return null;
+
+	double lat;
+	double lon;
+	try {
+	    lat = Double.parseDouble(latitude);
+	    lon = Double.parseDouble(longitude);
+	}
+	catch (NumberFormatException e){
+	    return null;
+	}
+	if (Double.isNaN(lat) || Double.isNaN(lon) ||
+	    lat < -90 || lat > 90 || lon < -180 || lon > 180)
+	    return null;
+
+	SolrInputDocument doc = new SolrInputDocument();
+	doc.setField("id", id);
+	doc.setField("name", fields.get(name_column));
+	// as given, like to_xml.py, rather than whatever Double.toString()
+	// makes of them
+	doc.setField("latitude", latitude);
+	doc.setField("longitude", longitude);
+	doc.setField("location", latitude + ", " + longitude);
+	String geohash = GeoHash.encodeHash(lat, lon, GEOHASH_LEVELS);
+	for (int len = 1; len <= GEOHASH_LEVELS; len++)
+	    doc.setField(GEOHASH_FIELDS[len], geohash.substring(0, len));
+	for (int i = 0; i < extra_fields.length; i++){
+	    String value = fields.get(extra_columns[i]);
+	    if (!value.isEmpty())
+		doc.setField(extra_fields[i], value);
+	}
+	return doc;
+    }
+
+    /**
+     * The first (up to) max fields of line. With a comma separator fields
+     * can be in double quotes, with "" for a quote inside them
+     */
+    static List<String> split(String line, char separator, int max){
+	List<String> fields = new ArrayList<String>();
+	boolean quoting = separator == ',';
+	int start = 0;
+	while (fields.size() < max && start <= line.length()){
+	    if (quoting && start < line.length() &&
+		line.charAt(start) == '"'){
+		StringBuilder field = new StringBuilder();
+		int i = start + 1;
+		while (i < line.length()){
+		    char c = line.charAt(i);
+		    if (c == '"'){
+			if (i + 1 < line.length() &&
+			    line.charAt(i + 1) == '"'){
+			    field.append('"');
+			    i += 2;
+			    continue;
+			}
+			i++;
+			break;
+		    }
+		    field.append(c);
+		    i++;
+		}
+		fields.add(field.toString());
+		int end = line.indexOf(separator, i);
+		start = end < 0 ? line.length() + 1 : end + 1;
+	    }
+	    else {
+		int end = line.indexOf(separator, start);
+		if (end < 0)
+		    end = line.length();
+		fields.add(line.substring(start, end));
+		start = end + 1;
+	    }
+	}
+	return fields;
+    }
+}
@@ -0,0 +1,336 @@
+package ca.markjenkins.geoclusterrocks;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * java -jar target/loadtest.jar [locations.csv]
+ *
+ * Some number of people using the map at once, each going through
+ * MapSessions one after the other as fast as they're answered, against
+ * a running solr-rocks. Then throughput and latency percentiles for
+ * each band of zooms, to size hardware with and to compare builds.
+ *
+ * To test against something like production, load LoadTestData's
+ * locations into the embedded core with solr-rocks-indexer, start
+ * StartManually embedded and point this at it. Sessions head for the
+ * locations in the CSV given (a sample of them), or anywhere in the
+ * continental US without one. Settings are system properties
+ *
+ *   geoclusterrocks.loadtest.url             http://localhost:8080/geosearch
+ *   geoclusterrocks.loadtest.users           people at once (16)
+ *   geoclusterrocks.loadtest.seconds         how long to measure (60)
+ *   geoclusterrocks.loadtest.warmup_seconds  unmeasured before that (10)
+ *   geoclusterrocks.loadtest.session_steps   requests per session (30)
+ *   geoclusterrocks.loadtest.think_ms        pause between requests (0)
+ *   geoclusterrocks.loadtest.seed            for the same sessions (2000)
+ *   geoclusterrocks.loadtest.deltas          pans ask for deltas (false)
+ *   geoclusterrocks.loadtest.max_p99_ms      fail (exit 1) when the p99
+ *                                            of all requests is over this
+ *
+ * Any request that doesn't come back 200 is an error, those fail the
+ * run too.
+ */
+public class LoadTest {
+    static final String PREFIX = "geoclusterrocks.loadtest.";
+    static final String DEFAULT_URL = "http://localhost:8080/geosearch";
+
+    // zoom bands, the first zoom of each
+    static final int[] BANDS = {0, 6, 9, 12, 15};
+    static final String[] BAND_NAMES = {"0-5", "6-8", "9-11", "12-14", "15+"};
+
+    static final int TIMEOUT_MILLIS = 60000;
+    static final int MAX_PLACES = 10000;
+    // the continental US, for when we're not given places
+    static final double[] US_BOUNDS = {-125, 25, -67, 49};
+
+    final String url;
+    final int session_steps;
+    final long think_ms;
+    final boolean deltas;
+    final List<double[]> places;
+
+    public LoadTest(String url, int session_steps, long think_ms,
+		    boolean deltas, List<double[]> places){
+	this.url = url;
+	this.session_steps = session_steps;
+	this.think_ms = think_ms;
+	this.deltas = deltas;
+	this.places = places;
+    }
+
+    /**
+     * Latencies in nanoseconds by zoom band, for one user and then all
+     * of them
+     */
+    static class Latencies {
+	long[][] nanos = new long[BANDS.length][1024];
+	int[] counts = new int[BANDS.length];
+	long[] bytes = new long[BANDS.length];
+	long errors = 0;
+
+	void add(int zoom, long time, long size){
+	    int band = band(zoom);
+	    if (counts[band] == nanos[band].length)
+		nanos[band] = Arrays.copyOf(nanos[band], counts[band] * 2);
+	    nanos[band][counts[band]++] = time;
+	    bytes[band] += size;
+	}
+
+	void add_all(Latencies other){
+	    for (int band = 0; band < BANDS.length; band++)
+		for (int i = 0; i < other.counts[band]; i++){
+		    if (counts[band] == nanos[band].length)
+			nanos[band] = Arrays.copyOf(nanos[band],
+						    counts[band] * 2);
+		    nanos[band][counts[band]++] = other.nanos[band][i];
+		}
+	    for (int band = 0; band < BANDS.length; band++)
+		bytes[band] += other.bytes[band];
+	    errors += other.errors;
+	}
+
+	static int band(int zoom){
+	    int band = 0;
+	    while (band + 1 < BANDS.length && zoom >= BANDS[band + 1])
+		band++;
+	    return band;
+	}
+    }
+
+    class User extends Thread {
+	final Random random;
+	final long measure_from;
+	final long until;
+	final Latencies latencies = new Latencies();
+
+	User(int user, long seed, long measure_from, long until){
+	    super("user " + user);
+	    random = new Random(seed + user);
+	    this.measure_from = measure_from;
+	    this.until = until;
+	}
+
+	public void run(){
+	    byte[] buffer = new byte[1 << 16];
+	    while (System.nanoTime() < until){
+		MapSession session = new MapSession
+		    (random, places.get(random.nextInt(places.size())));
+		for (int step = 0; step < session_steps; step++){
+		    String query = session.next(deltas);
+		    long start = System.nanoTime();
+		    if (start >= until)
+			return;
+		    long size = fetch(url + "?" + query, buffer);
+		    long time = System.nanoTime() - start;
+		    if (start >= measure_from){
+			if (size < 0)
+			    latencies.errors++;
+			else
+			    latencies.add(session.zoom(), time, size);
+		    }
+		    if (think_ms > 0){
+			try {
+			    Thread.sleep(think_ms);
+			}
+			catch (InterruptedException e){
+			    return;
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * The size of what we get back from url, -1 if it isn't a 200
+     */
+    static long fetch(String url, byte[] buffer){
+	HttpURLConnection connection = null;
+	try {
+	    connection = (HttpURLConnection)new URL(url).openConnection();
+	    connection.setConnectTimeout(TIMEOUT_MILLIS);
+	    connection.setReadTimeout(TIMEOUT_MILLIS);
+	    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK){
+		System.err.println(connection.getResponseCode() + " " + url);
+		connection.disconnect();
+		return -1;
+	    }
+	    long size = 0;
+	    InputStream in = connection.getInputStream();
+	    try {
+		// reading it all lets the connection be kept alive
+		int read;
+		while ((read = in.read(buffer)) > 0)
+		    size += read;
+	    }
+	    finally {
+		in.close();
+	    }
+	    return size;
+	}
+	catch (IOException e){
+	    System.err.println(e + " " + url);
+	    if (connection != null)
+		connection.disconnect();
+	    return -1;
+	}
+    }
+
+    public Latencies run(int users, long warmup_seconds, long seconds,
+			 long seed) throws InterruptedException {
+	long now = System.nanoTime();
+	long measure_from = now + warmup_seconds * 1000000000L;
+	long until = measure_from + seconds * 1000000000L;
+	List<User> running = new ArrayList<User>();
+	for (int user = 0; user < users; user++){
+	    User u = new User(user, seed, measure_from, until);
+	    u.start();
+	    running.add(u);
+	}
+	Latencies all = new Latencies();
+	for (User u: running){
+	    u.join();
+	    all.add_all(u.latencies);
+	}
+	return all;
+    }
+
+    /**
+     * Prints a line per zoom band and one for everything, returns the
+     * p99 of everything in milliseconds
+     */
+    static double report(Latencies latencies, long seconds){
+	System.out.println(String.format
+			   ("%-6s %9s %8s %9s %9s %9s %9s %9s", "zoom",
+			    "requests", "req/s", "p50_ms", "p95_ms", "p99_ms",
+			    "max_ms", "kb/req") );
+	long[] all = new long[0];
+	long all_bytes = 0;
+	for (int band = 0; band < BANDS.length; band++){
+	    long[] nanos = Arrays.copyOf(latencies.nanos[band],
+					 latencies.counts[band]);
+	    report_line(BAND_NAMES[band], nanos, latencies.bytes[band],
+			seconds);
+	    int from = all.length;
+	    all = Arrays.copyOf(all, from + nanos.length);
+	    System.arraycopy(nanos, 0, all, from, nanos.length);
+	    all_bytes += latencies.bytes[band];
+	}
+	double p99 = report_line("all", all, all_bytes, seconds);
+	System.out.println("errors " + latencies.errors);
+	return p99;
+    }
+
+    static double report_line(String name, long[] nanos, long bytes,
+			      long seconds){
+	Arrays.sort(nanos);
+	int n = nanos.length;
+	System.out.println(String.format
+			   ("%-6s %9d %8.1f %9.1f %9.1f %9.1f %9.1f %9.1f",
+			    name, n, (double)n / seconds,
+			    percentile(nanos, 0.5), percentile(nanos, 0.95),
+			    percentile(nanos, 0.99),
+			    n == 0 ? 0 : nanos[n - 1] / 1000000.0,
+			    n == 0 ? 0 : bytes / 1024.0 / n) );
+	return percentile(nanos, 0.99);
+    }
+
+    // of sorted nanos, in milliseconds
+    static double percentile(long[] nanos, double fraction){
+	if (nanos.length == 0)
+	    return 0;
+	int i = (int)Math.ceil(nanos.length * fraction) - 1;
+	return nanos[Math.max(0, i)] / 1000000.0;
+    }
+
+    /**
+     * {latitude, longitude} of up to MAX_PLACES of the locations in a
+     * LoadTestData CSV, picked at random
+     */
+    static List<double[]> load_places(String file, Random random)
+	throws IOException {
+	List<double[]> places = new ArrayList<double[]>();
+	BufferedReader in = new BufferedReader
+	    (new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	try {
+	    String header = in.readLine();
+	    if (header == null || !header.startsWith(LoadTestData.HEADER))
+		throw new IOException(file + " isn't from LoadTestData");
+	    String line;
+	    long seen = 0;
+	    while ((line = in.readLine()) != null){
+		String[] fields = line.split(",", 4);
+		double[] place = new double[] {
+		    Double.parseDouble(fields[1]),
+		    Double.parseDouble(fields[2]) };
+		// reservoir sampling, every location as likely as any other
+		seen++;
+		if (places.size() < MAX_PLACES)
+		    places.add(place);
+		else {
+		    long replace = (long)(random.nextDouble() * seen);
+		    if (replace < MAX_PLACES)
+			places.set((int)replace, place);
+		}
+	    }
+	}
+	finally {
+	    in.close();
+	}
+	return places;
+    }
+
+    static List<double[]> us_places(Random random){
+	List<double[]> places = new ArrayList<double[]>();
+	for (int i = 0; i < MAX_PLACES; i++)
+	    places.add(new double[] {
+		    US_BOUNDS[1] +
+		    random.nextDouble() * (US_BOUNDS[3] - US_BOUNDS[1]),
+		    US_BOUNDS[0] +
+		    random.nextDouble() * (US_BOUNDS[2] - US_BOUNDS[0]) });
+	return places;
+    }
+
+    public static void main(String[] args) throws Exception {
+	String url = System.getProperty(PREFIX + "url", DEFAULT_URL);
+	int users = Integer.getInteger(PREFIX + "users", 16);
+	long seconds = Long.getLong(PREFIX + "seconds", 60);
+	long warmup_seconds = Long.getLong(PREFIX + "warmup_seconds", 10);
+	int session_steps = Integer.getInteger(PREFIX + "session_steps", 30);
+	long think_ms = Long.getLong(PREFIX + "think_ms", 0);
+	long seed = Long.getLong(PREFIX + "seed", LoadTestData.SEED);
+	boolean deltas = Boolean.getBoolean(PREFIX + "deltas");
+	String max_p99_ms = System.getProperty(PREFIX + "max_p99_ms");
+
+	Random random = new Random(seed);
+	List<double[]> places = args.length > 0 ?
+	    load_places(args[0], random) : us_places(random);
+	if (places.isEmpty())
+	    throw new IllegalArgumentException("no locations in " + args[0]);
+
+	System.out.println(users + " users for " + seconds + "s (after " +
+			   warmup_seconds + "s warmup) against " + url);
+	LoadTest test = new LoadTest(url, session_steps, think_ms, deltas,
+				     places);
+	Latencies latencies = test.run(users, warmup_seconds, seconds, seed);
+	double p99 = report(latencies, seconds);
+
+	boolean failed = latencies.errors > 0;
+	if (max_p99_ms != null && p99 > Double.parseDouble(max_p99_ms)){
+	    System.out.println("p99 " + p99 + "ms is over " + max_p99_ms +
+			       "ms");
+	    failed = true;
+	}
+	System.exit(failed ? 1 : 0);
+    }
+}
@@ -0,0 +1,155 @@
+package ca.markjenkins.geoclusterrocks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * java -cp target/loadtest.jar ca.markjenkins.geoclusterrocks.LoadTestData
+ *     US_2000|number of points locations.csv
+ *
+ * Writes the locations for a load test as CSV that solr-rocks-indexer
+ * loads, either the 2000 in solr-rocks/data/US_2000_entries.xml or any
+ * number of synthetic ones scattered around those (the same way as
+ * solr-rocks-benchmarks' BenchmarkPoints). Neither has icon groups or
+ * states, so every location gets a random icon_group_id and
+ * state_two_letter for MapSession's filters to have something to
+ * narrow down.
+ */
+public class LoadTestData {
+    public static final String US_2000 = "US_2000";
+    public static final String DATA_FILE_PROPERTY =
+	"geoclusterrocks.loadtest.data";
+    // depending on whether we're run from the top or from this module
+    static final String[] DEFAULT_DATA_FILES = {
+	"solr-rocks/data/US_2000_entries.xml",
+	"../solr-rocks/data/US_2000_entries.xml" };
+
+    // fixed so that every run makes the same locations
+    static final long SEED = 2000;
+    static final double SYNTHETIC_SPREAD_DEGREES = 0.5;
+
+    public static final String HEADER =
+	"id,latitude,longitude,icon_group_id,state_two_letter,name";
+
+    public static void main(String[] args) throws Exception {
+	if (args.length != 2){
+	    System.err.println("usage: LoadTestData US_2000|points file.csv");
+	    System.exit(1);
+	}
+	List<String> ids = new ArrayList<String>();
+	List<String> names = new ArrayList<String>();
+	List<double[]> sites = new ArrayList<double[]>();
+	load_us_2000(ids, names, sites);
+
+	Random random = new Random(SEED);
+	Writer out = new BufferedWriter(new OutputStreamWriter
+					(new FileOutputStream(args[1]),
+					 "UTF-8") );
+	try {
+	    out.write(HEADER);
+	    out.write('\n');
+	    if (args[0].equals(US_2000))
+		for (int i = 0; i < ids.size(); i++)
+		    write(out, random, ids.get(i), names.get(i),
+			  sites.get(i)[0], sites.get(i)[1]);
+	    else {
+		int size = Integer.parseInt(args[0]);
+		for (int i = 0; i < size; i++){
+		    int site = random.nextInt(sites.size());
+		    double latitude = Math.max(-90, Math.min(90,
+			sites.get(site)[0] +
+			random.nextGaussian() * SYNTHETIC_SPREAD_DEGREES));
+		    double longitude = Math.max(-180, Math.min(180,
+			sites.get(site)[1] +
+			random.nextGaussian() * SYNTHETIC_SPREAD_DEGREES));
+		    write(out, random, "synthetic-" + i, names.get(site),
+			  latitude, longitude);
+		}
+	    }
+	}
+	finally {
+	    out.close();
+	}
+    }
+
+    static void write(Writer out, Random random, String id, String name,
+		      double latitude, double longitude) throws IOException {
+	out.write(id);
+	out.write(',');
+	out.write(String.valueOf(latitude));
+	out.write(',');
+	out.write(String.valueOf(longitude));
+	out.write(',');
+	out.write(String.valueOf(random.nextInt(MapSession.ICON_TYPES)));
+	out.write(',');
+	out.write(MapSession.STATES[random.nextInt(MapSession.STATES.length)]);
+	out.write(",\"");
+	out.write(name.replace("\"", "\"\""));
+	out.write("\"\n");
+    }
+
+    static File data_file(){
+	String configured = System.getProperty(DATA_FILE_PROPERTY);
+	if (configured != null)
+	    return new File(configured);
+	for (String path: DEFAULT_DATA_FILES){
+	    File f = new File(path);
+	    if (f.exists())
+		return f;
+	}
+	throw new IllegalStateException
+	    ("can't find US_2000_entries.xml, set " + DATA_FILE_PROPERTY);
+    }
+
+    /**
+     * The ids, names and {latitude, longitude} of US_2000_entries.xml
+     */
+    static void load_us_2000(List<String> ids, List<String> names,
+			     List<double[]> sites)
+	throws IOException, XMLStreamException {
+	InputStream in = new FileInputStream(data_file());
+	try {
+	    XMLStreamReader xml =
+		XMLInputFactory.newInstance().createXMLStreamReader(in);
+	    double[] site = null;
+	    while (xml.hasNext()){
+		int event = xml.next();
+		if (event == XMLStreamConstants.START_ELEMENT &&
+		    xml.getLocalName().equals("doc") ){
+		    site = new double[2];
+		    sites.add(site);
+		}
+		if (event != XMLStreamConstants.START_ELEMENT ||
+		    !xml.getLocalName().equals("field") )
+		    continue;
+		String field = xml.getAttributeValue(null, "name");
+		if (field.equals("id"))
+		    ids.add(xml.getElementText());
+		else if (field.equals("name"))
+		    names.add(xml.getElementText());
+		else if (field.equals("latitude"))
+		    site[0] = Double.parseDouble(xml.getElementText());
+		else if (field.equals("longitude"))
+		    site[1] = Double.parseDouble(xml.getElementText());
+	    }
+	    xml.close();
+	}
+	finally {
+	    in.close();
+	}
+    }
+}
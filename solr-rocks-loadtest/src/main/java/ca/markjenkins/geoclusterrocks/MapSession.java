@@ -0,0 +1,177 @@
+package ca.markjenkins.geoclusterrocks;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Random;
+
+/**
+ * One person's visit to the map, as the geosearch requests it makes. It
+ * starts out on the continental US like markers_and_clusters_US.js does
+ * and then, a step at a time, zooms in on a place it has picked (with a
+ * pan towards it), pans around, zooms back out now and then and changes
+ * its filters, ignore_icon_types, state_two_letter and search_text.
+ *
+ * The view is worked out in Web Mercator like Leaflet does, for a
+ * browser window of VIEWPORT_WIDTH by VIEWPORT_HEIGHT, so the bounds and
+ * zooms are the ones a real map would ask for.
+ */
+public class MapSession {
+    static final int VIEWPORT_WIDTH = 1280;
+    static final int VIEWPORT_HEIGHT = 800;
+    static final int TILE_SIZE = 256;
+
+    static final int START_ZOOM = 4;
+    static final double START_LONGITUDE = -96;
+    static final double START_LATITUDE = 38;
+    static final int MIN_ZOOM = 3;
+    static final int MAX_ZOOM = 16;
+    // as far north and south as Web Mercator goes, Clustering.MAX_LATITUDE
+    // in solr-rocks, which we only talk to over HTTP
+    static final double MAX_LATITUDE = 85.0511287798;
+
+    // what LoadTestData gives out, see ICONS in markers_and_clusters_US.js
+    static final int ICON_TYPES = 7;
+    static final String[] STATES = {
+	"AK", "AL", "AR", "AZ", "CA", "CO", "CT", "DE", "FL", "GA", "HI",
+	"IA", "ID", "IL", "IN", "KS", "KY", "LA", "MA", "MD", "ME", "MI",
+	"MN", "MO", "MS", "MT", "NC", "ND", "NE", "NH", "NJ", "NM", "NV",
+	"NY", "OH", "OK", "OR", "PA", "RI", "SC", "SD", "TN", "TX", "UT",
+	"VA", "VT", "WA", "WI", "WV", "WY" };
+    static final String[] SEARCH_TEXTS = {
+	"coop", "food", "housing", "credit union", "farm", "market" };
+
+    // how likely each kind of step is, out of 100, what's left over
+    // changes the search text
+    static final int ZOOM_IN = 30;
+    static final int PAN = 40;
+    static final int ZOOM_OUT = 12;
+    static final int TOGGLE_ICON_TYPE = 10;
+    static final int TOGGLE_STATE = 4;
+
+    final Random random;
+    // {latitude, longitude} of where we're headed
+    final double[] place;
+
+    int zoom = START_ZOOM;
+    // the center of the view, from 0 to 1 across and down the world
+    double x = mercator_x(START_LONGITUDE);
+    double y = mercator_y(START_LATITUDE);
+    boolean started = false;
+
+    final boolean[] ignored_icon_types = new boolean[ICON_TYPES];
+    String state = null;
+    String search_text = null;
+
+    public MapSession(Random random, double[] place){
+	this.random = random;
+	this.place = place;
+    }
+
+    public int zoom(){
+	return zoom;
+    }
+
+    /**
+     * The query string for the next request, the first one is the view
+     * we start out with. With deltas a pan also has previous_bounds and
+     * previous_zoom, see ViewportDelta
+     */
+    public String next(boolean deltas){
+	String before = bounds();
+	int zoom_before = zoom;
+	boolean panned = false;
+	if (started){
+	    int step = random.nextInt(100);
+	    if (step < ZOOM_IN){
+		if (zoom < MAX_ZOOM){
+		    zoom++;
+		    // half way there each time
+		    x += (mercator_x(place[1]) - x) / 2;
+		    y += (mercator_y(place[0]) - y) / 2;
+		}
+	    }
+	    else if ((step -= ZOOM_IN) < PAN){
+		double world = TILE_SIZE * Math.pow(2, zoom);
+		x += (random.nextDouble() - 0.5) * VIEWPORT_WIDTH / world;
+		y += (random.nextDouble() - 0.5) * VIEWPORT_HEIGHT / world;
+		x = Math.max(0, Math.min(1, x));
+		y = Math.max(0, Math.min(1, y));
+		panned = true;
+	    }
+	    else if ((step -= PAN) < ZOOM_OUT){
+		if (zoom > MIN_ZOOM)
+		    zoom--;
+	    }
+	    else if ((step -= ZOOM_OUT) < TOGGLE_ICON_TYPE){
+		int icon_type = random.nextInt(ICON_TYPES);
+		ignored_icon_types[icon_type] = !ignored_icon_types[icon_type];
+	    }
+	    else if ((step -= TOGGLE_ICON_TYPE) < TOGGLE_STATE)
+		state = state != null ? null :
+		    STATES[random.nextInt(STATES.length)];
+	    else
+		search_text = search_text != null ? null :
+		    SEARCH_TEXTS[random.nextInt(SEARCH_TEXTS.length)];
+	}
+	started = true;
+
+	StringBuilder query = new StringBuilder();
+	query.append("bounds=").append(bounds()).append("&zoom=").append(zoom);
+	for (int icon_type = 0; icon_type < ICON_TYPES; icon_type++)
+	    if (ignored_icon_types[icon_type])
+		query.append("&ignore_icon_types=").append(icon_type);
+	if (state != null)
+	    query.append("&state_two_letter=").append(state);
+	if (search_text != null)
+	    query.append("&search_text=").append(encode(search_text));
+	if (deltas && panned)
+	    query.append("&previous_bounds=").append(before)
+		.append("&previous_zoom=").append(zoom_before);
+	return query.toString();
+    }
+
+    /**
+     * west,south,east,north of the view, like Leaflet's toBBoxString()
+     */
+    String bounds(){
+	double world = TILE_SIZE * Math.pow(2, zoom);
+	double half_width = VIEWPORT_WIDTH / 2.0 / world;
+	double half_height = VIEWPORT_HEIGHT / 2.0 / world;
+	return round(longitude(Math.max(0, x - half_width))) + "," +
+	    round(latitude(Math.min(1, y + half_height))) + "," +
+	    round(longitude(Math.min(1, x + half_width))) + "," +
+	    round(latitude(Math.max(0, y - half_height)));
+    }
+
+    static double mercator_x(double longitude){
+	return (longitude + 180) / 360;
+    }
+
+    static double mercator_y(double latitude){
+	// the poles are infinitely far down and up
+	latitude = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+	double sin = Math.sin(Math.toRadians(latitude));
+	return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    static double longitude(double x){
+	return x * 360 - 180;
+    }
+
+    static double latitude(double y){
+	return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+    }
+
+    static double round(double degrees){
+	return Math.round(degrees * 1000000) / 1000000.0;
+    }
+
+    static String encode(String value){
+	try {
+	    return URLEncoder.encode(value, "UTF-8");
+	}
+	catch (UnsupportedEncodingException e){
+	    throw new IllegalStateException(e);
+	}
+    }
+}
@@ -0,0 +1,58 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.ClusterPyramid;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeoSearchMetrics;
+import ca.markjenkins.geoclusterrocks.GeohashGroupSource;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+
+import java.util.Collection;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Instead of grouping and stats, which are two passes over the same
+ * buckets that we then have to zip back together, have
+ * solr.GeoclusterComponent (with geocluster.merge=false) work out each
+ * geohash cell's count and mean center in one pass, fetching docs only
+ * for the cells with max_group_size or fewer. We do the clustering.
+ *
+ * The centers are always the means, the stats flag doesn't matter here.
+ */
+public class AggregationGroupSource implements GeohashGroupSource {
+    // null for GeoSearch's, otherwise one shard's, see ShardedGroupSource
+    final SolrServer solr;
+
+    public AggregationGroupSource(){
+	this(null);
+    }
+
+    public AggregationGroupSource(SolrServer solr){
+	this.solr = solr;
+    }
+
+    public GeohashGroupStore load_groups(LocationsQuery query,
+					 Collection<String> geohash_cells){
+	NamedList<Object> geocluster = GeoSearch.query_geocluster_in_solr
+	    (solr != null ? solr : GeoSearch.getSolrServer(), query,
+	     geohash_cells, false);
+	if (geocluster == null)
+	    return null;
+	long start = System.nanoTime();
+	GeohashGroupStore geohash_groups =
+	    GeoSearch.load_component_groups(geocluster, query.max_group_size);
+	GeoSearchMetrics.LOAD_GROUPS.record(query.zoom, start);
+	return geohash_groups;
+    }
+
+    public boolean clustered(){
+	return false;
+    }
+
+    public Long index_version(){
+	return ClusterPyramid.index_version
+	    (solr != null ? solr : GeoSearch.getSolrServer());
+    }
+}
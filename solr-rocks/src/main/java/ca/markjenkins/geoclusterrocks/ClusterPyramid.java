@@ -0,0 +1,435 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.AggregationGroupSource;
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashCellCache;
+import ca.markjenkins.geoclusterrocks.GeohashGroupSource;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+
+import com.github.davidmoten.geo.GeoHash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.LukeRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The clusters at every zoom for all of our locations, the unfiltered map
+ * view that most requests are for. These only change when the index
+ * does, so we work them all out once per index version and answer those
+ * requests by picking out the clusters in bounds, no Solr involved.
+ *
+ * We load the groups for zoom 30 (the longest geohashes) from Solr just
+ * like a request would, then go up a zoom at a time, merging the cells of
+ * the zoom below into the shorter geohash cells of this one (their
+ * geohashes just lose characters off the end, so rows stay sorted) and
+ * clustering a copy of those with the usual
+ * Clustering.clusterByNeighborCheck(). Only the clustered levels are kept.
+ *
+ * Clusters near the edge of a view are the ones for the whole map rather
+ * than just what's in bounds, which is arguably better, they don't change
+ * as you pan.
+ *
+ * We check the source's index version (see
+ * GeohashGroupSource.index_version()) at most every
+ * geoclusterrocks.pyramid.check_seconds. A new version gets a new
+ * pyramid built on a thread of our own, meanwhile requests are answered
+ * from the one we have, or by Solr if we don't have one yet.
+ * Set geoclusterrocks.pyramid.max_groups to 0 to turn this off, and
+ * indexes with more zoom 30 groups than that aren't kept in memory.
+ *
+ * Filtered requests don't use the pyramid but they still have us check,
+ * a new version empties the GeohashCellCache too.
+ */
+public class ClusterPyramid {
+    public static final String MAX_GROUPS_PROPERTY =
+	"geoclusterrocks.pyramid.max_groups";
+    public static final String CHECK_SECONDS_PROPERTY =
+	"geoclusterrocks.pyramid.check_seconds";
+
+    static final int DEFAULT_MAX_GROUPS = 100000;
+    static final long DEFAULT_CHECK_SECONDS = 60;
+
+    static final int max_groups =
+	Integer.getInteger(MAX_GROUPS_PROPERTY, DEFAULT_MAX_GROUPS);
+    static final long check_millis =
+	Long.getLong(CHECK_SECONDS_PROPERTY, DEFAULT_CHECK_SECONDS) * 1000;
+
+    static Logger log_l4 = LoggerFactory.getLogger( ClusterPyramid.class );
+
+    // the pyramid we answer from, null until we've built one
+    private static volatile ClusterPyramid current = null;
+    // when we last checked that current is for the index Solr has now,
+    // only changed with building held
+    private static volatile long checked_millis = 0;
+    // the index version we last saw, only touched with building held
+    private static Long seen_version = null;
+    // the version being built, null if none is, only touched with
+    // building held
+    private static Long building_version = null;
+    // bumped by invalidate(), so a build for what we had before isn't
+    // put in place after it. Only touched with building held
+    private static int generation = 0;
+    private static final ReentrantLock building = new ReentrantLock();
+
+    static final ThreadFactory builder_threads = new ThreadFactory(){
+	    public Thread newThread(Runnable r){
+		Thread t = new Thread(r, "cluster pyramid");
+		t.setDaemon(true);
+		return t;
+	    }
+	};
+    // one build at a time, see refresh()
+    private static final ExecutorService builder =
+	Executors.newSingleThreadExecutor(builder_threads);
+
+    final long index_version;
+    // the clustered groups for each zoom, null if there were too many
+    final GeohashGroupStore[] levels;
+
+    ClusterPyramid(long index_version, GeohashGroupStore[] levels){
+	this.index_version = index_version;
+	this.levels = levels;
+    }
+
+    /**
+     * The clustered groups for query if it's for the unfiltered map and we
+     * have a pyramid for it, null if it has to go to Solr like always
+     */
+    public static GeohashGroupStore lookup(LocationsQuery query,
+					   GeohashGroupSource source){
+	ClusterPyramid pyramid = pyramid_for(query, source);
+	if (pyramid == null)
+	    return null;
+	return pyramid.groups_in(query.zoom,
+				 GeoSearch.parse_bounds(query.bounds));
+    }
+
+    /**
+     * The pyramid to answer query from (whatever its bounds) if it's for
+     * the unfiltered map and we have one, null if it has to go to Solr
+     */
+    static ClusterPyramid pyramid_for(LocationsQuery query,
+				      GeohashGroupSource source){
+	if (max_groups > 0 || GeohashCellCache.getCache() != null)
+	    refresh(source);
+	if (max_groups <= 0 || !unfiltered(query))
+	    return null;
+	ClusterPyramid pyramid = current;
+	if (pyramid == null || pyramid.levels == null)
+	    return null;
+	return pyramid;
+    }
+
+    /**
+     * Forget the pyramid we have, say because where the groups come from
+     * has changed, the next lookup() builds a new one
+     */
+    public static void invalidate(){
+	building.lock();
+	try {
+	    current = null;
+	    checked_millis = 0;
+	    seen_version = null;
+	    building_version = null;
+	    generation++;
+	}
+	finally {
+	    building.unlock();
+	}
+    }
+
+    /**
+     * Nothing but bounds and zoom to narrow things down, and the default
+     * distance threshold and stats, which is what the pyramid is built with.
+     *
+     * types_to_exclude and require_type aren't part of the query right now
+     * (see GeoSearch.locations_filter_queries()) so they don't matter here
+     */
+    static boolean unfiltered(LocationsQuery query){
+	if (!query.stats_enabled ||
+	    query.distance_threshold != Clustering.GEOCLUSTER_DEFAULT_DISTANCE)
+	    return false;
+	if (query.icon_types_to_ignore != null &&
+	    query.icon_types_to_ignore.length > 0)
+	    return false;
+	for (List<String> matches: query.match_criteria.values())
+	    if (!matches.isEmpty())
+		return false;
+	return query.search_text_words.isEmpty();
+    }
+
+    /**
+     * Let the builder thread go, for when the webapp is undeployed. No
+     * more pyramids are built after this
+     */
+    public static void shutdown(){
+	builder.shutdownNow();
+    }
+
+    /**
+     * Make sure the GeohashCellCache is for the index we have and start
+     * building a pyramid for it if current isn't, if it's time to check
+     * and nobody else is already at it
+     */
+    static void refresh(GeohashGroupSource source){
+	long now = System.currentTimeMillis();
+	if (now - checked_millis < check_millis || !building.tryLock())
+	    return;
+	try {
+	    // somebody might have beaten us to it
+	    if (now - checked_millis < check_millis)
+		return;
+	    checked_millis = now;
+	    Long version = source.index_version();
+	    // if Solr won't tell us we stick with what we've got
+	    if (version == null)
+		return;
+	    if (!version.equals(seen_version)){
+		GeohashCellCache cell_cache = GeohashCellCache.getCache();
+		if (cell_cache != null)
+		    cell_cache.invalidateAll();
+		seen_version = version;
+	    }
+	    if (max_groups <= 0 || builder.isShutdown() ||
+		version.equals(building_version))
+		return;
+	    ClusterPyramid pyramid = current;
+	    if (pyramid != null && pyramid.index_version == version)
+		return;
+	    building_version = version;
+	    builder.execute(new Build(version, source, generation));
+	}
+	finally {
+	    building.unlock();
+	}
+    }
+
+    /**
+     * build() on the builder thread, putting the pyramid in place unless
+     * we've been invalidated since
+     */
+    static class Build implements Runnable {
+	final long index_version;
+	final GeohashGroupSource source;
+	final int generation;
+
+	Build(long index_version, GeohashGroupSource source, int generation){
+	    this.index_version = index_version;
+	    this.source = source;
+	    this.generation = generation;
+	}
+
+	public void run(){
+	    ClusterPyramid pyramid = null;
+	    try {
+		pyramid = build(index_version, source);
+	    }
+	    catch (RuntimeException e){
+		log_l4.warn( "unable to build cluster pyramid for index " +
+			     "version " + index_version, e );
+	    }
+	    building.lock();
+	    try {
+		// a failed build is tried again at the next check
+		if (generation == ClusterPyramid.generation){
+		    if (pyramid != null)
+			current = pyramid;
+		    // there may be a newer one queued up behind us
+		    if (building_version != null &&
+			building_version == index_version)
+			building_version = null;
+		}
+	    }
+	    finally {
+		building.unlock();
+	    }
+	}
+    }
+
+    /**
+     * The version of solr's index, null if it won't tell us
+     */
+    static Long index_version(SolrServer solr){
+	LukeRequest luke = new LukeRequest();
+	luke.setNumTerms(0);
+	luke.setShowSchema(false);
+	try {
+	    return ((Number)luke.process(solr)
+		    .getIndexInfo().get("version")).longValue();
+	}
+	catch (SolrServerException ex) {
+	    log_l4.warn( "unable to get index version", ex );
+	}
+	catch (IOException ex) {
+	    log_l4.warn( "unable to get index version", ex );
+	}
+	return null;
+    }
+
+    /**
+     * Load every group at zoom 30 from source and work our way up, null if
+     * Solr lets us down
+     */
+    static ClusterPyramid build(long index_version,
+				GeohashGroupSource source){
+	// we need the groups before they're clustered
+	if (source.clustered())
+	    source = new AggregationGroupSource();
+	int zoom = Clustering.ZOOMS - 1;
+	LocationsQuery everything = new LocationsQuery
+	    (null, zoom, null, null, true,
+	     GeoSearch.max_group_size_for_zoom(zoom),
+	     Clustering.GEOCLUSTER_DEFAULT_DISTANCE,
+	     new HashMap<String, List<String>>(), new ArrayList<String>(),
+	     null);
+	long start = System.currentTimeMillis();
+	GeohashGroupStore groups = source.load_groups(everything, null);
+	if (groups == null)
+	    return null;
+	if (groups.size() > max_groups){
+	    log_l4.info( "not keeping a cluster pyramid for index version " +
+			 index_version + ", " + groups.size() +
+			 " groups is more than " + MAX_GROUPS_PROPERTY );
+	    return new ClusterPyramid(index_version, null);
+	}
+
+	GeohashGroupStore[] levels = new GeohashGroupStore[Clustering.ZOOMS];
+	for (; zoom >= 0; zoom--){
+	    groups = coarsen
+		(groups, Clustering.get_geohash_length
+		 (Clustering.GEOCLUSTER_DEFAULT_DISTANCE, zoom),
+		 GeoSearch.max_group_size_for_zoom(zoom) );
+	    GeohashGroupStore clustered = new GeohashGroupStore
+		(groups.getHashLength(), groups.force_cluster_threshold,
+		 groups.size() );
+	    clustered.add_all(groups);
+	    Clustering.clusterByNeighborCheck(clustered, zoom);
+	    // leave the removed rows behind
+	    levels[zoom] = new GeohashGroupStore
+		(clustered.getHashLength(), clustered.force_cluster_threshold,
+		 clustered.size() - clustered.removed_count );
+	    levels[zoom].add_all(clustered);
+	}
+	log_l4.info( "built cluster pyramid for index version " +
+		     index_version + " in " +
+		     (System.currentTimeMillis() - start) + "ms" );
+	return new ClusterPyramid(index_version, levels);
+    }
+
+    /**
+     * The groups of sorted groups merged into cells of length hash_len,
+     * with their points if they all have them and there's max_group_size
+     * or fewer. Centers are the means, like the stats give us
+     */
+    static GeohashGroupStore coarsen(GeohashGroupStore groups, int hash_len,
+				     int max_group_size){
+	int shift = (groups.getHashLength() - hash_len) *
+	    LongGeohash.BITS_PER_CHAR;
+	GeohashGroupStore coarser =
+	    new GeohashGroupStore(hash_len, max_group_size, 0);
+	int row = 0;
+	while (row < groups.size()){
+	    long hash = groups.hashes[row] >>> shift;
+	    int cell_end = row;
+	    long count = 0;
+	    double longitude_sum = 0;
+	    double latitude_sum = 0;
+	    boolean all_points = true;
+	    for (; cell_end < groups.size() &&
+		     groups.hashes[cell_end] >>> shift == hash; cell_end++){
+		long group_count = groups.counts[cell_end];
+		count += group_count;
+		longitude_sum += groups.longitudes[cell_end] * group_count;
+		latitude_sum += groups.latitudes[cell_end] * group_count;
+		if (groups.first_points[cell_end] == GeohashGroupStore.NO_POINTS)
+		    all_points = false;
+	    }
+	    int coarser_row = coarser.add_group(hash, count,
+						longitude_sum / count,
+						latitude_sum / count);
+	    if (all_points && count <= max_group_size)
+		for (int p = row; p < cell_end; p++)
+		    for (int point = groups.first_points[p];
+			 point != GeohashGroupStore.NO_POINTS;
+			 point = groups.next_points[point])
+			coarser.add_point(coarser_row, groups, point);
+	    row = cell_end;
+	}
+	return coarser;
+    }
+
+    /**
+     * The clustered groups at zoom with their centers in bounds, see
+     * GeoSearch.parse_bounds().
+     *
+     * The rows are sorted by the cell they started out in, so we find the
+     * ones in bounds with a binary search per covering cell, using shorter
+     * cells than the level's until there are few enough of them. Bounds
+     * across the antimeridian we do a side at a time
+     */
+    GeohashGroupStore groups_in(int zoom, double[] bounds){
+	GeohashGroupStore level = levels[zoom];
+	if (bounds[0] > bounds[2]){
+	    GeohashGroupStore geohash_groups = groups_in
+		(zoom, new double[] {bounds[0], bounds[1], 180, bounds[3]});
+	    geohash_groups.add_all(groups_in
+		(zoom, new double[] {-180, bounds[1], bounds[2], bounds[3]}));
+	    geohash_groups.sort();
+	    return geohash_groups;
+	}
+	int hash_len = level.getHashLength();
+	// a group's center is somewhere in its cell and merging in
+	// neighbours moves it by less than another cell, mostly up and to
+	// the right, so it can be up to two cells from where its cell starts
+	double cell_width = GeoHash.widthDegrees(hash_len);
+	double cell_height = GeoHash.heightDegrees(hash_len);
+	double bot_left_long = Math.max(-180, bounds[0] - 2*cell_width);
+	double bot_left_lat = Math.max(-90, bounds[1] - 2*cell_height);
+	double top_right_long = Math.min(180, bounds[2] + cell_width);
+	double top_right_lat = Math.min(90, bounds[3] + cell_height);
+
+	Collection<String> covering = null;
+	int cover_len = hash_len;
+	for (; covering == null && cover_len > 0; cover_len--)
+	    covering = GeohashCellCache.covering_cells
+		(bot_left_lat, bot_left_long, top_right_lat, top_right_long,
+		 cover_len);
+	cover_len++;
+	GeohashGroupStore geohash_groups =
+	    new GeohashGroupStore(hash_len, level.force_cluster_threshold, 0);
+	// bounds that make no sense
+	if (covering == null)
+	    return geohash_groups;
+	int shift = (hash_len - cover_len) * LongGeohash.BITS_PER_CHAR;
+	for (String cell: covering){
+	    long prefix = LongGeohash.encode(cell);
+	    long end = (prefix + 1) << shift;
+	    for (int row = level.find_from(prefix << shift);
+		 row < level.size() && level.hashes[row] < end; row++){
+		double longitude = level.longitudes[row];
+		double latitude = level.latitudes[row];
+		if (longitude >= bounds[0] && longitude <= bounds[2] &&
+		    latitude >= bounds[1] && latitude <= bounds[3])
+		    geohash_groups.add_row(level, row);
+	    }
+	}
+	geohash_groups.sort();
+	return geohash_groups;
+    }
+}
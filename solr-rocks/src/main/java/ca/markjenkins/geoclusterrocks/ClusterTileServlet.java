@@ -0,0 +1,308 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeoJsonWriter;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeoSearchMetrics;
+import ca.markjenkins.geoclusterrocks.GeohashGroupSource;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+import ca.markjenkins.geoclusterrocks.VectorTileWriter;
+
+import com.github.davidmoten.geo.GeoHash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The unfiltered map as web mercator tiles, /clusters/{z}/{x}/{y} for
+ * GeoSearch's JSON or /clusters/{z}/{x}/{y}.mvt for a vector tile (see
+ * VectorTileWriter). Unlike GeoSearch's bounds every user asks for the
+ * same handful of URLs, so responses say they can be cached
+ * (geoclusterrocks.tiles.max_age_seconds) by browsers and CDNs alike.
+ *
+ * Tile zooms are the same as GeoSearch's, so a tile is clustered at the
+ * geohash length Clustering has for its zoom with the default distance
+ * threshold. We load and cluster a halo of geohash cells around the tile
+ * so that the groups on the other side of an edge still get merged in,
+ * and keep the groups with their centers in the tile. Those come
+ * from ClusterPyramid when it's there, which clusters the whole map at
+ * once and has no edges to worry about at all.
+ *
+ * Set geoclusterrocks.tiles.prewarm_zoom (an init-param or a system
+ * property) to make every tile from zoom 0 up to that one when we start
+ * and hold on to them, remade every geoclusterrocks.tiles.prewarm_seconds
+ * so they keep up with the index. Low zooms are few tiles with the most
+ * points in each, so that's where it pays.
+ */
+public class ClusterTileServlet extends HttpServlet {
+    public static final String PREWARM_ZOOM_PROPERTY =
+	"geoclusterrocks.tiles.prewarm_zoom";
+    public static final String PREWARM_SECONDS_PROPERTY =
+	"geoclusterrocks.tiles.prewarm_seconds";
+    public static final String MAX_AGE_SECONDS_PROPERTY =
+	"geoclusterrocks.tiles.max_age_seconds";
+
+    static final int DEFAULT_PREWARM_ZOOM = -1;
+    // 87381 tiles, past this it's too many to hold
+    static final int MAX_PREWARM_ZOOM = 8;
+    static final long DEFAULT_PREWARM_SECONDS = 600;
+    static final long DEFAULT_MAX_AGE_SECONDS = 300;
+
+    static final String MVT_EXTENSION = ".mvt";
+    static final String JSON_CONTENT_TYPE = "application/json";
+
+    static Logger log_l4 = LoggerFactory.getLogger( ClusterTileServlet.class );
+
+    int prewarm_zoom;
+    long max_age_seconds;
+    ScheduledExecutorService prewarming;
+    // z/x/y and z/x/y.mvt for every tile we've made ahead of time
+    final Map<String, byte[]> prewarmed = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * A tile's bounds, like GeoSearch.parse_bounds() gives us
+     */
+    static double[] tile_bounds(int z, int x, int y){
+	int tiles = 1 << z;
+	double[] bounds = new double[] {
+	    360.0 * x / tiles - 180,
+	    tile_latitude((y + 1.0) / tiles),
+	    360.0 * (x + 1) / tiles - 180,
+	    tile_latitude((double)y / tiles) };
+	// the top and bottom rows go all the way to the poles, even if
+	// mercator doesn't
+	if (y == 0)
+	    bounds[3] = 90;
+	if (y == tiles - 1)
+	    bounds[1] = -90;
+	return bounds;
+    }
+
+    static double tile_latitude(double fraction){
+	return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2*fraction))));
+    }
+
+    /**
+     * The clustered groups with their centers in tile z/x/y, null if Solr
+     * lets us down
+     */
+    static GeohashGroupStore tile_groups(GeohashGroupSource source,
+					 int z, int x, int y){
+	double[] tile = tile_bounds(z, x, y);
+	int hash_len = Clustering.get_geohash_length
+	    (Clustering.GEOCLUSTER_DEFAULT_DISTANCE, z);
+	double halo_long =
+	    Clustering.HALO_CELLS * GeoHash.widthDegrees(hash_len);
+	double halo_lat =
+	    Clustering.HALO_CELLS * GeoHash.heightDegrees(hash_len);
+	double[] halo = new double[] {
+	    Math.max(-180, tile[0] - halo_long),
+	    Math.max(-90, tile[1] - halo_lat),
+	    Math.min(180, tile[2] + halo_long),
+	    Math.min(90, tile[3] + halo_lat) };
+	LocationsQuery query = new LocationsQuery
+	    (GeoSearch.bounds_param(halo), z, null, null, true,
+	     GeoSearch.max_group_size_for_zoom(z),
+	     Clustering.GEOCLUSTER_DEFAULT_DISTANCE,
+	     new HashMap<String, List<String>>(), new ArrayList<String>(),
+	     null);
+	GeohashGroupStore halo_groups =
+	    GeoSearch.clustered_groups(source, query);
+	if (halo_groups == null)
+	    return null;
+
+	GeohashGroupStore geohash_groups = new GeohashGroupStore
+	    (halo_groups.getHashLength(), halo_groups.force_cluster_threshold,
+	     0);
+	for (int row = 0; row < halo_groups.size(); row++)
+	    if (!halo_groups.isRemoved(row) &&
+		in_tile(tile, halo_groups.longitudes[row],
+			halo_groups.latitudes[row]) )
+		geohash_groups.add_row(halo_groups, row);
+	geohash_groups.sort();
+	return geohash_groups;
+    }
+
+    // tiles share their edges, a center right on one belongs to the tile
+    // to the east or north of it, unless there's no such tile
+    static boolean in_tile(double[] tile, double longitude, double latitude){
+	return longitude >= tile[0] &&
+	    (longitude < tile[2] || tile[2] == 180) &&
+	    latitude >= tile[1] &&
+	    (latitude < tile[3] || tile[3] == 90);
+    }
+
+    static byte[] tile_bytes(GeohashGroupStore geohash_groups, int z, int x,
+			     int y, boolean mvt) throws IOException {
+	long start = System.nanoTime();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	if (mvt)
+	    VectorTileWriter.write(geohash_groups, tile_bounds(z, x, y), bytes);
+	else
+	    GeoJsonWriter.write(geohash_groups, bytes);
+	GeoSearchMetrics.serialized(z, start, bytes.size());
+	return bytes.toByteArray();
+    }
+
+    static String tile_key(int z, int x, int y, boolean mvt){
+	return z + "/" + x + "/" + y + (mvt ? MVT_EXTENSION : "");
+    }
+
+    String setting(String name){
+	String value = getInitParameter(name);
+	return value != null ? value : System.getProperty(name);
+    }
+
+    long setting(String name, long default_value){
+	String value = setting(name);
+	return value == null ? default_value : Long.parseLong(value);
+    }
+
+    @Override
+    public void init() throws ServletException {
+	prewarm_zoom = (int)setting(PREWARM_ZOOM_PROPERTY, DEFAULT_PREWARM_ZOOM);
+	max_age_seconds =
+	    setting(MAX_AGE_SECONDS_PROPERTY, DEFAULT_MAX_AGE_SECONDS);
+	if (prewarm_zoom > MAX_PREWARM_ZOOM){
+	    log_l4.warn( PREWARM_ZOOM_PROPERTY + " " + prewarm_zoom +
+			 " is more tiles than we'll hold, using " +
+			 MAX_PREWARM_ZOOM );
+	    prewarm_zoom = MAX_PREWARM_ZOOM;
+	}
+	if (prewarm_zoom < 0)
+	    return;
+
+	prewarming = Executors.newSingleThreadScheduledExecutor
+	    (new ThreadFactory(){
+		    public Thread newThread(Runnable r){
+			Thread t = new Thread(r, "cluster tile prewarming");
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+	// in the background, Solr might not even be up yet
+	prewarming.scheduleWithFixedDelay
+	    (new Runnable(){
+		    public void run(){
+			prewarm();
+		    }
+		},
+	     0, setting(PREWARM_SECONDS_PROPERTY, DEFAULT_PREWARM_SECONDS),
+	     TimeUnit.SECONDS);
+    }
+
+    /**
+     * (Re)make every tile up to prewarm_zoom, the old ones are served
+     * until the new ones are ready
+     */
+    void prewarm(){
+	long start = System.currentTimeMillis();
+	int failed = 0;
+	for (int z = 0; z <= prewarm_zoom; z++){
+	    int tiles = 1 << z;
+	    for (int x = 0; x < tiles; x++)
+		for (int y = 0; y < tiles; y++){
+		    if (Thread.currentThread().isInterrupted())
+			return;
+		    try {
+			GeohashGroupStore geohash_groups =
+			    tile_groups(GeoSearch.getGroupSource(), z, x, y);
+			if (geohash_groups == null){
+			    failed++;
+			    continue;
+			}
+			prewarmed.put(tile_key(z, x, y, false),
+				      tile_bytes(geohash_groups, z, x, y, false));
+			prewarmed.put(tile_key(z, x, y, true),
+				      tile_bytes(geohash_groups, z, x, y, true));
+		    }
+		    catch (IOException e){
+			// not from a ByteArrayOutputStream
+			throw new AssertionError(e);
+		    }
+		    catch (RuntimeException e){
+			// keep the thread going, we'll try again next time
+			log_l4.warn("unable to prewarm tile " +
+				    tile_key(z, x, y, false), e);
+			failed++;
+		    }
+		}
+	}
+	log_l4.info( "prewarmed cluster tiles up to zoom " + prewarm_zoom +
+		     " in " + (System.currentTimeMillis() - start) + "ms, " +
+		     failed + " failed" );
+    }
+
+    @Override
+    public void destroy(){
+	if (prewarming != null)
+	    prewarming.shutdownNow();
+	prewarmed.clear();
+	super.destroy();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request,
+			 HttpServletResponse response)
+	throws ServletException, IOException {
+	// /{z}/{x}/{y} or /{z}/{x}/{y}.mvt
+	String path = request.getPathInfo();
+	boolean mvt = path != null && path.endsWith(MVT_EXTENSION);
+	if (mvt)
+	    path = path.substring(0, path.length() - MVT_EXTENSION.length());
+	String[] zxy = path == null ? new String[0] : path.split("/");
+	int z, x, y;
+	try {
+	    if (zxy.length != 4 || !zxy[0].isEmpty())
+		throw new NumberFormatException(path);
+	    z = Integer.parseInt(zxy[1]);
+	    x = Integer.parseInt(zxy[2]);
+	    y = Integer.parseInt(zxy[3]);
+	}
+	catch (NumberFormatException e){
+	    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+	    return;
+	}
+	if (z < 0 || z >= Clustering.ZOOMS ||
+	    x < 0 || x >= (1 << z) || y < 0 || y >= (1 << z) ){
+	    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+	    return;
+	}
+
+	byte[] bytes = prewarmed.get(tile_key(z, x, y, mvt));
+	if (bytes == null){
+	    GeohashGroupStore geohash_groups =
+		tile_groups(GeoSearch.getGroupSource(), z, x, y);
+	    if (geohash_groups == null){
+		// don't let anyone cache that
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		return;
+	    }
+	    bytes = tile_bytes(geohash_groups, z, x, y, mvt);
+	}
+	response.setContentType
+	    (mvt ? VectorTileWriter.CONTENT_TYPE : JSON_CONTENT_TYPE);
+	response.setHeader("Cache-Control",
+			   "public, max-age=" + max_age_seconds);
+	response.setContentLength(bytes.length);
+	response.getOutputStream().write(bytes);
+    }
+}
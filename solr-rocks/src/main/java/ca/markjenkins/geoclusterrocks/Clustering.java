@@ -1,5 +1,6 @@
 package ca.markjenkins.geoclusterrocks;
 
+import ca.markjenkins.geoclusterrocks.DistanceThresholdOutOfRangeException;
 import ca.markjenkins.geoclusterrocks.GeoSearch;
 import ca.markjenkins.geoclusterrocks.PointGroup;
 
@@ -10,11 +11,9 @@ import org.geojson.Feature;
 import org.geojson.Point;
 import org.geojson.LngLatAlt;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.github.davidmoten.geo.GeoHash;
 import com.github.davidmoten.geo.Direction;
@@ -38,24 +37,50 @@ public class Clustering {
 	Math.PI * EARTH_DIAMETER * METERS_PER_KM / PIXELS_PER_TILE;
 
     public static final int GEOCLUSTER_DEFAULT_DISTANCE = 65;
-    // we have to be careful with these,
-    // in get_geohash_lengths_for_distance_threshold these prevent us from
-    // computing and caching a wide range of user requesting distance
-    // thresholds at 30 different zoom levels
+    static final double DEFAULT_DISTANCE_SQUARED =
+	(double)GEOCLUSTER_DEFAULT_DISTANCE * GEOCLUSTER_DEFAULT_DISTANCE;
+    // as far north and south as Web Mercator goes
+    public static final double MAX_LATITUDE = 85.0511287798;
+    // we have to be careful with these, they're the range of distance
+    // thresholds users can ask for and we precompute geohash lengths at
+    // all 31 zoom levels for every one of them.
     // if GEOCLUSTER_DEFAULT_DISTANCE == 65 we get
-    // min==8, max=260, so that's 260-8+1=253 different tables each
-    // containing 30 ints (4 bytes each)
-    // so total memory 253*30*4 == 30360 bytes that the int arrays take up
-    // and the HashMap geohash_lengths_for_zooms_per_threshold
-    // is going to have 253 entries
-    private static final int MIN_DISTANCE_THRESHOLD =
+    // min==8, max=260, so that's 260-8+1=253 thresholds each
+    // with 31 ints (4 bytes each)
+    // so total memory 253*31*4 == 31372 bytes for geohash_lengths
+    public static final int MIN_DISTANCE_THRESHOLD =
 	GEOCLUSTER_DEFAULT_DISTANCE / 8;
-    private static final int MAX_DISTANCE_THRESHOLD =
+    public static final int MAX_DISTANCE_THRESHOLD =
 	GEOCLUSTER_DEFAULT_DISTANCE * 4;
 
+    // how many geohash cells around part of the map we cluster along with
+    // it when we only want the part (ClusterTileServlet).
+    // One gets the neighbours of the groups at the edge, but merging moves
+    // cluster centers by up to another
+    public static final int HALO_CELLS = 2;
+
+    // use clustering_pool for clusterByNeighborCheck() when we've got at
+    // least parallel_clustering_min_groups groups, below that handing out
+    // the work costs more than it saves. On unless
+    // geoclusterrocks.parallel_clustering is false, see
+    // configureParallelClustering()
+    public static final String PARALLEL_CLUSTERING_PROPERTY =
+	"geoclusterrocks.parallel_clustering";
+    private static volatile boolean parallel_clustering =
+	!"false".equals(System.getProperty(PARALLEL_CLUSTERING_PROPERTY));
+    // these two aren't final so tests can get small sets of groups
+    // clustered in parallel, in more than one stripe
+    static int parallel_clustering_min_groups = 8192;
+    // how many rows one fork/join task looks at neighbours for
+    static int neighbour_stripe_rows = 2048;
+    private static final ForkJoinPool clustering_pool = new ForkJoinPool();
+
     public static final double[] resolutions;
-    private static final int[] default_geohash_lengths_for_zooms;
-    public static Map<Integer, int[]> geohash_lengths_for_zooms_per_threshold;
+    // the geohash length for every threshold and zoom, a row of ZOOMS
+    // lengths per threshold starting from MIN_DISTANCE_THRESHOLD.
+    // It's filled in once when the class loads and only read after that,
+    // so request threads can share it without any locking
+    private static final int[] geohash_lengths;
     // as the following illustrates, a "final" array isn't so final...
     // in some situations this can be a security problem
     static {
@@ -65,15 +90,15 @@ public class Clustering {
 	    // and this is MAX_RESOLUTION
 	    resolutions[zoom] = MAX_RESOLUTION / Math.pow(2, zoom);
 	}
-	default_geohash_lengths_for_zooms = new int[ZOOMS];
-	precompute_geohash_lengths
-	    (default_geohash_lengths_for_zooms,
-	     GEOCLUSTER_DEFAULT_DISTANCE);
-	geohash_lengths_for_zooms_per_threshold =
-	    new HashMap<Integer, int[]>();
-	geohash_lengths_for_zooms_per_threshold
-	    .put(GEOCLUSTER_DEFAULT_DISTANCE,
-		 default_geohash_lengths_for_zooms);
+	int thresholds = MAX_DISTANCE_THRESHOLD - MIN_DISTANCE_THRESHOLD + 1;
+	geohash_lengths = new int[thresholds * ZOOMS];
+	int[] lengths_for_zooms = new int[ZOOMS];
+	for (int i = 0; i < thresholds; i++){
+	    precompute_geohash_lengths(lengths_for_zooms,
+				       MIN_DISTANCE_THRESHOLD + i);
+	    System.arraycopy(lengths_for_zooms, 0,
+			     geohash_lengths, i * ZOOMS, ZOOMS);
+	}
     }
 
     public static final double RAD_TO_DEGREES = 180 / Math.PI;
@@ -103,42 +128,45 @@ https://github.com/openlayers/openlayers/blob/master/lib/OpenLayers/Projection.j
 	return result;
     }
 
+    public static boolean distance_threshold_allowed(int distance_threshold){
+	return distance_threshold >= MIN_DISTANCE_THRESHOLD &&
+	    distance_threshold <= MAX_DISTANCE_THRESHOLD;
+    }
+
     /**
-     *
+     * The geohash length to group on at zoom for distance_threshold, just
+     * a lookup in geohash_lengths
+     */
+    public static int get_geohash_length(int distance_threshold, int zoom){
+	// we have to restrict distance_threshold to what we've precomputed,
+	// users can send us anything
+	if (!distance_threshold_allowed(distance_threshold))
+	    throw new DistanceThresholdOutOfRangeException(distance_threshold);
+	// or we'd be reading another threshold's lengths
+	if (zoom < 0 || zoom >= ZOOMS)
+	    throw new IllegalArgumentException("no such zoom " + zoom);
+	return geohash_lengths
+	    [(distance_threshold - MIN_DISTANCE_THRESHOLD) * ZOOMS + zoom];
+    }
+
+    /**
+     * The geohash lengths for distance_threshold at all zoom levels, a copy
+     * that's yours to keep, use get_geohash_length() for just one zoom
      */
     public static int[] get_geohash_lengths_for_distance_threshold
         (int distance_threshold){
-	if (geohash_lengths_for_zooms_per_threshold
-	    .containsKey(distance_threshold)){
-	    return geohash_lengths_for_zooms_per_threshold
-		.get(distance_threshold);
-	}
-	// we have to restrict distance_threshold or else we're allowing
-	// users to increase our memory usage by adding entries to
-	// geohash_lengths_for_zooms_per_threshold
-	else if (distance_threshold > MAX_DISTANCE_THRESHOLD ||
-		 distance_threshold < MIN_DISTANCE_THRESHOLD ){
-	    // fixme, define an exception for this and handle better too
-	    throw new RuntimeException("allowable distance thresholds exceeded");
-	}
-	// else, we have to compute geohash_lengths_for_zooms for this
-	// threshold and saved for next time
-	else {
-	    int new_geohash_lengths_for_zoom[] = new int[ZOOMS];
-	    precompute_geohash_lengths(new_geohash_lengths_for_zoom,
-				       distance_threshold);
-	    geohash_lengths_for_zooms_per_threshold
-		.put(distance_threshold,new_geohash_lengths_for_zoom);
-	    return new_geohash_lengths_for_zoom;
-	}
+	if (!distance_threshold_allowed(distance_threshold))
+	    throw new DistanceThresholdOutOfRangeException(distance_threshold);
+	int start = (distance_threshold - MIN_DISTANCE_THRESHOLD) * ZOOMS;
+	return Arrays.copyOfRange(geohash_lengths, start, start + ZOOMS);
     }
 
     /**
-     * Calculate once the geohash lengths for a particular
+     * Calculate the geohash lengths for a particular
      * distance threshold at all possible zoom levels (ZOOMS)
      *
-     * The caller is assumed to be caching this so this need not be
-     * calculated again
+     * This is only done for every allowed threshold when we load, see
+     * geohash_lengths
      */
     public static void precompute_geohash_lengths
 	(int geohash_lengths_target[], int distance_threshold){
@@ -171,43 +199,78 @@ http://cgit.drupalcode.org/geocluster/tree/includes/GeohashHelper.inc
     }
 
     /**
-     * Dumb implementation to incorporate pixel variation with latitude
-     * on the mercator projection.
-     *
-     * @todo: use a valid implementation instead of the current guessing.
-     *
-     * Current implementation is based on the observation:
-     * lat = 0 => output is correct
-     * lat = 48 => output is 223 pixels distance instead of 335 in reality.
-     *
-     * derived from pixel_correction() from
-     http://cgit.drupalcode.org/geocluster/tree/includes/GeoclusterHelper.inc
+     * How far across the world longitude is in Web Mercator pixels when
+     * it's world_pixels wide (PIXELS_PER_TILE at zoom 0, doubling with
+     * each zoom), from the date line. Like map tiles do
+     */
+    public static double pixel_x(double longitude, double world_pixels){
+	return (longitude + 180) / 360 * world_pixels;
+    }
+
+    /**
+     * How far down the world latitude is in Web Mercator pixels, from the
+     * top. Past MAX_LATITUDE (the poles are infinitely far away) is the
+     * same as at it
+     */
+    public static double pixel_y(double latitude, double world_pixels){
+	latitude = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+	double sin = Math.sin(Math.toRadians(latitude));
+	return (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) *
+	    world_pixels;
+    }
+
+    /**
+     * How wide the world is in pixels at resolution (meters per pixel at
+     * the equator, see resolutions)
      */
-    public static double pixel_correction(double lat) {
-	return 1 + (335.0 / 223.271875276 - 1) * (Math.abs(lat) / 47.9899);
+    public static double world_pixels(double resolution){
+	return PIXELS_PER_TILE * MAX_RESOLUTION / resolution;
     }
 
     /**
-     * Calculate the distance between two given points in pixels.
+     * The square of the distance between two points in pixels (see
+     * pixel_x() and pixel_y()), the short way around if that's across the
+     * date line
+     */
+    public static double squared_distance_pixels(double a_x, double a_y,
+						 double b_x, double b_y,
+						 double world_pixels){
+	double dx = Math.abs(a_x - b_x);
+	dx = Math.min(dx, world_pixels - dx);
+	double dy = a_y - b_y;
+	return dx * dx + dy * dy;
+    }
+
+    /**
+     * Calculate the distance between two given points in pixels, on the
+     * Web Mercator map they're shown on.
      *
      * This depends on the resolution (zoom level) they are viewed in.
+     * Clustering itself projects every group once and compares squares
+     * (see close_neighbours()), this is for one pair at a time.
      *
-     * derived from distance_pixels() from 
-http://cgit.drupalcode.org/geocluster/tree/includes/GeoclusterHelper.inc
+     * This used to be geocluster's haversine distance with a correction
+     * for latitude fitted at 48 degrees, which got further off the further
+     * north (or south) we went
      */
     public static double distance_pixels(Point a, Point b, double resolution){
 	LngLatAlt a_coords = a.getCoordinates();
 	LngLatAlt b_coords = b.getCoordinates();
-	double a_latitude = a_coords.getLatitude();
-	double distance = SloppyMath.haversin(a_latitude,
-					      a_coords.getLongitude(),
-					      b_coords.getLatitude(),
-					      b_coords.getLongitude() );
-	// instead of doing this correciton, I think there are more
-	// sophisticated algorithms we can use for this distance to
-	// pixel conversion that don't have this problem because we
-	// feed them latitude to begin with
-	return distance / resolution * pixel_correction(a_latitude);
+	return distance_pixels(a_coords.getLongitude(), a_coords.getLatitude(),
+			       b_coords.getLongitude(), b_coords.getLatitude(),
+			       resolution);
+    }
+
+    public static double distance_pixels(double a_longitude, double a_latitude,
+					 double b_longitude, double b_latitude,
+					 double resolution){
+	double world_pixels = world_pixels(resolution);
+	return Math.sqrt(squared_distance_pixels
+			 (pixel_x(a_longitude, world_pixels),
+			  pixel_y(a_latitude, world_pixels),
+			  pixel_x(b_longitude, world_pixels),
+			  pixel_y(b_latitude, world_pixels),
+			  world_pixels) );
     }
 
     public static boolean shouldCluster(Point a, Point b, double resolution,
@@ -215,6 +278,49 @@ http://cgit.drupalcode.org/geocluster/tree/includes/GeoclusterHelper.inc
 	// Calculate distance.
 	return distance_pixels(a, b, resolution) <= distance_threshold;
     }
+
+    public static boolean shouldCluster(double a_longitude, double a_latitude,
+					double b_longitude, double b_latitude,
+					double resolution,
+					double distance_threshold) {
+	return distance_pixels(a_longitude, a_latitude,
+			       b_longitude, b_latitude,
+			       resolution) <= distance_threshold;
+    }
+
+    /**
+     * Where the center of every row from from_row to to_row is in pixels,
+     * into xs and ys
+     */
+    static void project(GeohashGroupStore geohash_groups, double world_pixels,
+			double[] xs, double[] ys, int from_row, int to_row){
+	for (int row = from_row; row < to_row; row++){
+	    xs[row] = pixel_x(geohash_groups.longitudes[row], world_pixels);
+	    ys[row] = pixel_y(geohash_groups.latitudes[row], world_pixels);
+	}
+    }
+
+    /**
+     * Which of row's neighbours (4 rows, -1 for none) are close enough to
+     * it to cluster, as a bit (1 << i) for each, going by where xs and ys
+     * have them. No trig, just squares against threshold_squared
+     */
+    static int close_neighbours(double[] xs, double[] ys, int row,
+				int[] neighbour_rows, int first,
+				double world_pixels, double threshold_squared){
+	int close = 0;
+	double x = xs[row];
+	double y = ys[row];
+	for (int i = 0; i < 4; i++){
+	    int other_row = neighbour_rows[first + i];
+	    if (other_row >= 0 &&
+		squared_distance_pixels(x, y, xs[other_row], ys[other_row],
+					world_pixels) <= threshold_squared)
+		close |= 1 << i;
+	}
+	return close;
+    }
+
     /* Derived from
      * http://cgit.drupalcode.org/geocluster/tree/includes/GeohashHelper.inc
      */
@@ -230,76 +336,267 @@ http://cgit.drupalcode.org/geocluster/tree/includes/GeoclusterHelper.inc
     }
 
     /**
-     * Create final clusters by checking for overlapping neighbors.
+     * getTopRightNeighbors() for bit-packed geohashes (see LongGeohash),
+     * in the same order, into neighbours (which needs room for 4).
+     * Neighbours beyond the poles are LongGeohash.NO_NEIGHBOUR
+     */
+    public static void getTopRightNeighbors
+	(long geohash, long longitude_mask, long latitude_mask,
+	 long[] neighbours){
+	long top = LongGeohash.top(geohash, latitude_mask);
+	neighbours[0] = LongGeohash.left(top, longitude_mask);
+	neighbours[1] = top;
+	neighbours[2] = LongGeohash.right(top, longitude_mask);
+	neighbours[3] = LongGeohash.right(geohash, longitude_mask);
+    }
+
+    /**
+     * true or false, when parallel is null the
+     * geoclusterrocks.parallel_clustering system property is used,
+     * defaulting to true
+     */
+    public static void configureParallelClustering(String parallel){
+	if (parallel == null)
+	    parallel = System.getProperty(PARALLEL_CLUSTERING_PROPERTY);
+	parallel_clustering = !"false".equals(parallel);
+    }
+
+    /**
+     * Let clustering_pool's threads go, for when the webapp is undeployed.
+     * Any clustering after this is done on the request's own thread
+     */
+    public static void shutdown(){
+	clustering_pool.shutdown();
+    }
+
+    /**
+     * Create final clusters by checking for overlapping neighbors, in
+     * parallel if there are enough groups for that to be worth it, see
+     * PARALLEL_CLUSTERING_PROPERTY
+     */
+    public static void clusterByNeighborCheck
+	(GeohashGroupStore geohash_groups, int zoom) {
+	// with only one core it's all overhead
+	if (parallel_clustering && clustering_pool.getParallelism() > 1 &&
+	    !clustering_pool.isShutdown() &&
+	    geohash_groups.size() >= parallel_clustering_min_groups)
+	    clusterByNeighborCheck(geohash_groups, zoom, clustering_pool);
+	else
+	    clusterByNeighborCheck(geohash_groups, zoom, null);
+    }
+
+    /**
+     * Create final clusters by checking for overlapping neighbors, with
+     * the neighbour lookups and distance checks done on pool, or all on
+     * this thread if pool is null. Either way we end up with exactly the
+     * same clusters.
+     *
+     * Groups that get merged into another are marked as removed in
+     * geohash_groups, which has to be sorted. This is done in one pass
+     * over the groups with neighbours found by integer arithmetic on the
+     * bit-packed geohashes and nothing allocated per group.
      *
      * Derived from
 http://cgit.drupalcode.org/geocluster/tree/plugins/algorithm/GeohashGeoclusterAlgorithm.inc
      */
-    static void clusterByNeighborCheck
-	(Map<String, PointGroup> geohash_groups, int zoom) {
-	
-	double resolution = resolutions[zoom];
-
-	// whoa, big assumption here, we're assuming because geohash_groups
-	// is actually a TreeMap or LinkedHashMap that we're getting keys in
-	// order here....
-	// otherwise we have to do some detecting and casting to work with
-	// both cases...
-	//
-	// Plus our performance is suffering for it, we're having to maintain
-	// a set of hashes already merged to ignore and them removeing them
-	// after instead of modifying the set while we work it over in one
-	// pass... surely the more deep apis of TreeMaps and LinkedHashMap
-	// would allow us to iterate and remove at the same time
-	HashSet<String> already_removed_hashes = new HashSet<String>();
-	for (String item_hash: geohash_groups.keySet() ){
+    public static void clusterByNeighborCheck
+	(GeohashGroupStore geohash_groups, int zoom, ForkJoinPool pool) {
+	if (pool != null){
+	    clusterByNeighborCheckParallel(geohash_groups, zoom, pool);
+	    return;
+	}
+
+	double world_pixels = world_pixels(resolutions[zoom]);
+	int size = geohash_groups.size();
+	int hash_len = geohash_groups.getHashLength();
+	long longitude_mask = LongGeohash.longitude_mask(hash_len);
+	long latitude_mask = LongGeohash.latitude_mask(hash_len);
+	long[] neighbours = new long[4];
+	int[] neighbour_rows = new int[4];
+
+	// every center in pixels once, a group that moves because of a
+	// merge is projected again
+	double[] xs = new double[size];
+	double[] ys = new double[size];
+	project(geohash_groups, world_pixels, xs, ys, 0, size);
+
+	// the store is sorted, so we're visiting geohashes in order here
+	PointGroup item = geohash_groups.group(0);
+	PointGroup other_item = geohash_groups.group(0);
+	for (int item_row = 0; item_row < size; item_row++){
 
 	    // ignore hash already "removed"
-	    if(already_removed_hashes.contains(item_hash))
+	    if(geohash_groups.isRemoved(item_row))
 		continue;
 
-	    PointGroup item = geohash_groups.get(item_hash);
-	    Point geometry = (Point) item.getGeometry();
-	    
 	    // Check top right neighbor hashes for overlapping points.
 	    // Top-right is enough because by the way geohash is structured,
 	    // future geohashes are always top, topright or right
-	    String[] neighbours = getTopRightNeighbors(item_hash);
-	    String all_neighbours = "";
-	    String removed = "";
+	    getTopRightNeighbors(geohash_groups.getHash(item_row),
+				 longitude_mask, latitude_mask, neighbours);
 	    for (int i=0; i<neighbours.length; i++){
-		String other_hash = neighbours[i];
-		if (already_removed_hashes.contains(other_hash))
+		int other_row = -1;
+		if (neighbours[i] != LongGeohash.NO_NEIGHBOUR)
+		    other_row = geohash_groups.find(neighbours[i]);
+		if (other_row >= 0 && geohash_groups.isRemoved(other_row))
+		    other_row = -1;
+		neighbour_rows[i] = other_row;
+	    }
+	    // the distance checks are all from where we started out, even
+	    // if we move as we merge in neighbours
+	    int close = close_neighbours(xs, ys, item_row, neighbour_rows, 0,
+					 world_pixels,
+					 DEFAULT_DISTANCE_SQUARED);
+	    if (close == 0)
+		continue;
+
+	    item.moveTo(item_row);
+	    for (int i=0; i<neighbours.length; i++){
+		if ((close & (1 << i)) == 0)
 		    continue;
-		all_neighbours += " " + other_hash;
-		PointGroup other_item = geohash_groups.get(other_hash);
-		if (other_item != null){
-		    Point other_geometry = (Point) other_item.getGeometry();
-
-		    if (shouldCluster(geometry, other_geometry, resolution,
-				      GEOCLUSTER_DEFAULT_DISTANCE)) {
-			assert( null != item.getGeometry() );
-			if (item.cluster_collection()){
-			    assert( null !=
-				    item.get_cluster_feature().getGeometry() );
-			}
-			assert( null != other_item.getGeometry() );
-			item.mergeIn(other_item);
-			assert( null != item.getGeometry() );
-			if (item.cluster_collection()){
-			    assert( null !=
-				    item.get_cluster_feature().getGeometry() );
-			}
-
-			already_removed_hashes.add(other_hash);
-			removed += " " + other_hash;
-		    }
+		other_item.moveTo(neighbour_rows[i]);
+		item.mergeIn(other_item);
+		geohash_groups.remove(neighbour_rows[i]);
+	    }
+	    project(geohash_groups, world_pixels, xs, ys,
+		    item_row, item_row + 1);
+	}
+    }
+
+    /**
+     * The neighbour rows (see getTopRightNeighbors()) of every row
+     * clusterByNeighborCheck() might merge in, 4 per row with -1 for ones
+     * we won't.
+     *
+     * The merging itself has to be done in row order, whether a row is
+     * still there to be merged depends on what came before it. But a row
+     * is only changed by merging when it's its turn, so the distance from
+     * a row to the ones after it (where nearly all neighbours are, that's
+     * how geohash is structured) can be worked out up front from where
+     * they all started. Those are the lookups and distance checks that
+     * cost, so they're what we spread out over the pool, a stripe of rows
+     * at a time. Since the rows are sorted, each stripe is a run of
+     * neighbouring geohash cells.
+     *
+     * Neighbours after a row are only kept if they're close enough to
+     * merge. Ones at or before a row (across the date line and the odd
+     * top left) may have moved by the time we get to it, so they're kept
+     * for the merge pass to check again.
+     *
+     * Projecting every row's center into pixels (project()) comes first,
+     * as its own pass over the pool, stripes need their neighbours' too.
+     */
+    static class NeighbourStripe extends RecursiveAction {
+	final GeohashGroupStore geohash_groups;
+	final double world_pixels;
+	final double[] xs;
+	final double[] ys;
+	final int[] neighbour_rows;
+	final int from_row;
+	final int to_row;
+	// just project() the rows, before anything else can be
+	final boolean projecting;
+
+	NeighbourStripe(GeohashGroupStore geohash_groups, double world_pixels,
+			double[] xs, double[] ys, int[] neighbour_rows,
+			int from_row, int to_row, boolean projecting){
+	    this.geohash_groups = geohash_groups;
+	    this.world_pixels = world_pixels;
+	    this.xs = xs;
+	    this.ys = ys;
+	    this.neighbour_rows = neighbour_rows;
+	    this.from_row = from_row;
+	    this.to_row = to_row;
+	    this.projecting = projecting;
+	}
+
+	protected void compute(){
+	    if (to_row - from_row > neighbour_stripe_rows){
+		int middle_row = (from_row + to_row) >>> 1;
+		invokeAll(new NeighbourStripe(geohash_groups, world_pixels,
+					      xs, ys, neighbour_rows,
+					      from_row, middle_row,
+					      projecting),
+			  new NeighbourStripe(geohash_groups, world_pixels,
+					      xs, ys, neighbour_rows,
+					      middle_row, to_row,
+					      projecting) );
+		return;
+	    }
+	    if (projecting){
+		project(geohash_groups, world_pixels, xs, ys, from_row, to_row);
+		return;
+	    }
+
+	    int hash_len = geohash_groups.getHashLength();
+	    long longitude_mask = LongGeohash.longitude_mask(hash_len);
+	    long latitude_mask = LongGeohash.latitude_mask(hash_len);
+	    long[] neighbours = new long[4];
+	    for (int item_row = from_row; item_row < to_row; item_row++){
+		getTopRightNeighbors(geohash_groups.getHash(item_row),
+				     longitude_mask, latitude_mask, neighbours);
+		for (int i=0; i<neighbours.length; i++){
+		    int other_row = -1;
+		    if (neighbours[i] != LongGeohash.NO_NEIGHBOUR)
+			other_row = geohash_groups.find(neighbours[i]);
+		    neighbour_rows[item_row*4 + i] = other_row;
 		}
+		int close = close_neighbours(xs, ys, item_row, neighbour_rows,
+					     item_row*4, world_pixels,
+					     DEFAULT_DISTANCE_SQUARED);
+		for (int i=0; i<neighbours.length; i++)
+		    if (neighbour_rows[item_row*4 + i] > item_row &&
+			(close & (1 << i)) == 0)
+			neighbour_rows[item_row*4 + i] = -1;
 	    }
 	}
-	// now we do the actual removing
-	for (String remove_hash: already_removed_hashes)
-	    geohash_groups.remove(remove_hash);
     }
 
+    static void clusterByNeighborCheckParallel
+	(GeohashGroupStore geohash_groups, int zoom, ForkJoinPool pool) {
+	double world_pixels = world_pixels(resolutions[zoom]);
+	int size = geohash_groups.size();
+	double[] xs = new double[size];
+	double[] ys = new double[size];
+	int[] neighbour_rows = new int[size * 4];
+	pool.invoke(new NeighbourStripe(geohash_groups, world_pixels, xs, ys,
+					neighbour_rows, 0, size, true));
+	pool.invoke(new NeighbourStripe(geohash_groups, world_pixels, xs, ys,
+					neighbour_rows, 0, size, false));
+
+	// what's left is the same pass over the rows as the sequential
+	// version, with most of the answers already there
+	PointGroup item = geohash_groups.group(0);
+	PointGroup other_item = geohash_groups.group(0);
+	for (int item_row = 0; item_row < size; item_row++){
+	    if(geohash_groups.isRemoved(item_row))
+		continue;
+
+	    boolean merged = false;
+	    for (int i=0; i<4; i++){
+		int other_row = neighbour_rows[item_row*4 + i];
+		if (other_row < 0 || geohash_groups.isRemoved(other_row))
+		    continue;
+
+		// already found to be close enough if it comes after us,
+		// xs and ys have where we started out and where the ones
+		// before us are now
+		if (other_row > item_row ||
+		    squared_distance_pixels(xs[item_row], ys[item_row],
+					    xs[other_row], ys[other_row],
+					    world_pixels) <=
+		    DEFAULT_DISTANCE_SQUARED) {
+		    if (!merged)
+			item.moveTo(item_row);
+		    merged = true;
+		    other_item.moveTo(other_row);
+		    item.mergeIn(other_item);
+		    geohash_groups.remove(other_row);
+		}
+	    }
+	    if (merged)
+		project(geohash_groups, world_pixels, xs, ys,
+			item_row, item_row + 1);
+	}
+    }
 }
@@ -0,0 +1,20 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+
+/**
+ * A distance threshold outside of Clustering.MIN_DISTANCE_THRESHOLD to
+ * Clustering.MAX_DISTANCE_THRESHOLD, the ones we have geohash lengths for
+ */
+public class DistanceThresholdOutOfRangeException
+    extends IllegalArgumentException {
+    public final int distance_threshold;
+
+    public DistanceThresholdOutOfRangeException(int distance_threshold){
+	super("distance threshold " + distance_threshold +
+	      " outside of allowable range " +
+	      Clustering.MIN_DISTANCE_THRESHOLD + " to " +
+	      Clustering.MAX_DISTANCE_THRESHOLD);
+	this.distance_threshold = distance_threshold;
+    }
+}
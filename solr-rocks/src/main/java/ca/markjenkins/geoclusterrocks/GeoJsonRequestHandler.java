@@ -0,0 +1,53 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeoJsonWriter;
+import ca.markjenkins.geoclusterrocks.GeoSearchMetrics;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+
+import java.io.IOException;
+
+import com.google.common.io.CountingOutputStream;
+
+import org.apache.wicket.request.IRequestCycle;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.http.WebResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Like the TextRequestHandler we used to hand our JSON String to, except
+ * the JSON is written to the response by GeoJsonWriter as it's made
+ */
+public class GeoJsonRequestHandler implements IRequestHandler {
+    static Logger log_l4 = LoggerFactory.getLogger(GeoJsonRequestHandler.class);
+
+    GeohashGroupStore geohash_groups;
+    // for GeoSearchMetrics
+    final int zoom;
+
+    public GeoJsonRequestHandler(GeohashGroupStore geohash_groups, int zoom){
+	this.geohash_groups = geohash_groups;
+	this.zoom = zoom;
+    }
+
+    public void respond(IRequestCycle cy){
+	WebResponse response = (WebResponse)cy.getResponse();
+	response.setContentType("application/json");
+	try {
+	    long start = System.nanoTime();
+	    CountingOutputStream out =
+		new CountingOutputStream(response.getOutputStream());
+	    GeoJsonWriter.write(geohash_groups, out);
+	    GeoSearchMetrics.serialized(zoom, start, out.getCount());
+	}
+	catch (IOException e){
+	    // most likely the client went away on us, nothing we can do
+	    log_l4.warn("couldn't write out our JSON", e);
+	}
+    }
+
+    public void detach(IRequestCycle cy){
+	geohash_groups = null;
+    }
+}
@@ -0,0 +1,145 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.PointGroup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.geojson.Feature;
+import org.geojson.GeoJsonObject;
+import org.geojson.LngLatAlt;
+import org.geojson.Point;
+
+/**
+ * Writes what's left of a GeohashGroupStore after clustering straight to
+ * an OutputStream as it walks the rows, the same JSON that
+ * GeoSearch.render_json() gives us but without building a TreeMap of
+ * FeatureCollections and then a String out of all of it first.
+ *
+ * Clusters don't even get a Feature made for them, we just write out
+ * their count and center.
+ */
+public class GeoJsonWriter {
+    // JsonFactory is thread safe and not cheap to make, so all requests
+    // share this one. The ObjectMapper is there for property values and
+    // geometries that aren't a plain Point, which we don't expect to see
+    static final JsonFactory json_factory = new ObjectMapper().getFactory();
+    static {
+	// the servlet container closes the stream, not us
+	json_factory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    public static void write(GeohashGroupStore geohash_groups,
+			     OutputStream out) throws IOException {
+	JsonGenerator gen = json_factory.createGenerator(out, JsonEncoding.UTF8);
+	write_groups(gen, geohash_groups);
+	gen.close();
+    }
+
+    /**
+     * The object write() gives us, for when it's part of something bigger
+     */
+    static void write_groups(JsonGenerator gen,
+			     GeohashGroupStore geohash_groups)
+	throws IOException {
+	PointGroup pg = geohash_groups.group(0);
+
+	// in the same order the TreeMap in render_json() gives
+	gen.writeStartObject();
+
+	gen.writeFieldName("clusters");
+	start_feature_collection(gen);
+	for (int row = 0; row < geohash_groups.size(); row++)
+	    if (!geohash_groups.isRemoved(row) &&
+		pg.moveTo(row).cluster_collection() )
+		write_cluster(gen, pg);
+	end_feature_collection(gen);
+
+	gen.writeArrayFieldStart("grouped_points");
+	for (int row = 0; row < geohash_groups.size(); row++)
+	    if (!geohash_groups.isRemoved(row) &&
+		pg.moveTo(row).grouped_points_collection() ){
+		start_feature_collection(gen);
+		for (int p = geohash_groups.first_points[row];
+		     p != GeohashGroupStore.NO_POINTS;
+		     p = geohash_groups.next_points[p])
+		    write_feature(gen, geohash_groups.point_feature(p));
+		end_feature_collection(gen);
+	    }
+	gen.writeEndArray();
+
+	gen.writeFieldName("single_points");
+	start_feature_collection(gen);
+	for (int row = 0; row < geohash_groups.size(); row++)
+	    if (!geohash_groups.isRemoved(row) &&
+		pg.moveTo(row).single_point() )
+		write_feature(gen, pg.get_single_point());
+	end_feature_collection(gen);
+
+	gen.writeEndObject();
+    }
+
+    static void start_feature_collection(JsonGenerator gen)
+	throws IOException {
+	gen.writeStartObject();
+	gen.writeStringField("type", "FeatureCollection");
+	gen.writeArrayFieldStart("features");
+    }
+
+    static void end_feature_collection(JsonGenerator gen)
+	throws IOException {
+	gen.writeEndArray();
+	gen.writeEndObject();
+    }
+
+    static void write_cluster(JsonGenerator gen, PointGroup pg)
+	throws IOException {
+	gen.writeStartObject();
+	gen.writeStringField("type", "Feature");
+	gen.writeObjectFieldStart("properties");
+	gen.writeNumberField(GeoSearch.CLUSTER_COUNT_FEATURE_PROPERTY,
+			     pg.getPointCount() );
+	gen.writeEndObject();
+	write_point(gen, pg.getLongitude(), pg.getLatitude());
+	gen.writeEndObject();
+    }
+
+    static void write_feature(JsonGenerator gen, Feature f)
+	throws IOException {
+	gen.writeStartObject();
+	gen.writeStringField("type", "Feature");
+	gen.writeObjectFieldStart("properties");
+	for (Entry<String, Object> property: f.getProperties().entrySet())
+	    gen.writeObjectField(property.getKey(), property.getValue());
+	gen.writeEndObject();
+	GeoJsonObject geometry = f.getGeometry();
+	if (geometry instanceof Point){
+	    LngLatAlt coordinates = ((Point)geometry).getCoordinates();
+	    write_point(gen, coordinates.getLongitude(),
+			coordinates.getLatitude() );
+	}
+	else
+	    gen.writeObjectField("geometry", geometry);
+	gen.writeEndObject();
+    }
+
+    static void write_point(JsonGenerator gen,
+			    double longitude, double latitude)
+	throws IOException {
+	gen.writeObjectFieldStart("geometry");
+	gen.writeStringField("type", "Point");
+	gen.writeArrayFieldStart("coordinates");
+	gen.writeNumber(longitude);
+	gen.writeNumber(latitude);
+	gen.writeEndArray();
+	gen.writeEndObject();
+    }
+}
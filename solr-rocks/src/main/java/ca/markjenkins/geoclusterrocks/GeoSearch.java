@@ -1,7 +1,18 @@
 package ca.markjenkins.geoclusterrocks;
 
+import ca.markjenkins.geoclusterrocks.ClusterPyramid;
 import ca.markjenkins.geoclusterrocks.Clustering;
 import ca.markjenkins.geoclusterrocks.PointGroup;
+import ca.markjenkins.geoclusterrocks.solr.GeoclusterComponent;
+import ca.markjenkins.geoclusterrocks.GeoJsonRequestHandler;
+import ca.markjenkins.geoclusterrocks.GeoJsonWriter;
+import ca.markjenkins.geoclusterrocks.GeoSearchMetrics;
+import ca.markjenkins.geoclusterrocks.InFlightRequests;
+import ca.markjenkins.geoclusterrocks.MappedGroupSource;
+import ca.markjenkins.geoclusterrocks.ShardedGroupSource;
+import ca.markjenkins.geoclusterrocks.VectorTileRequestHandler;
+import ca.markjenkins.geoclusterrocks.VectorTileWriter;
+import ca.markjenkins.geoclusterrocks.ViewportDelta;
 
 import org.apache.wicket.markup.html.WebPage;
 import org.apache.wicket.request.handler.TextRequestHandler;
@@ -22,7 +33,6 @@ import org.slf4j.LoggerFactory;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrQuery.SortClause;
@@ -38,15 +48,19 @@ import org.apache.solr.common.params.StatsParams;
 import com.github.davidmoten.geo.GeoHash;
 import com.github.davidmoten.geo.LatLong;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Set;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.List;
-import java.util.LinkedHashMap;
 import java.util.HashMap;
 import java.util.TreeMap;
-import java.util.Iterator;
+import java.util.TreeSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
 
 public class GeoSearch extends WebPage {
     static final String POPUP_CONTENT_FEATURE_PROPERTY = "popupContent";
@@ -56,23 +70,24 @@ public class GeoSearch extends WebPage {
 
     static final int GROUP_SIZE_MAX_ZOOM = 80;
 
-    // maybe we can load both of these variables from a configuration some day?
+    // maybe we can load this from a configuration some day?
     // 
     // Do we want to make Solr responsible for sorting the Geohash groups?
+    // Either way they end up in a GeohashGroupStore that we sort like
+    // Drupal geocluster does (pre-allocated arrays and a quicksort), but
+    // the sort is next to free when the groups already come in order
     static final boolean SOLR_RESPONSIBLE_SORT = false;
-    // if so, we don't need to use a TreeMap to sort the info as it comes in
-    // and we can used LinkedHashMap instead, which should perform better
-    // (it will use more RAM)
-    // change this to false if you want to use a TreeMap even with
-    // the above still set to true... red black trees may perform
-    // very nicely with the inputs already ordered
-    // Or maybe we should just pre-allocate an array and run quicksort
-    // or whatever like Drupal geocluster does...
-    // whoa, wait a second.. don't we need random access for inserting the
-    // stats and doing removal on merge?
-    static final boolean USE_TREE_OVER_LINKED_HASH = !SOLR_RESPONSIBLE_SORT;
-
-    static final int STATS_MEAN_FIELD = 6;
+
+    // Do we write our JSON straight to the response as we walk the
+    // clustered groups (GeoJsonWriter), or build up a TreeMap of
+    // FeatureCollections and a String of the whole thing first like we
+    // used to (render_json())? Zoomed out responses are several MB, so
+    // only turn this off to compare the two
+    static final boolean STREAM_JSON_OUTPUT = true;
+    // format=mvt gets a Mapbox Vector Tile of the bounds instead of JSON,
+    // see VectorTileWriter
+    static final String MVT_FORMAT = "mvt";
+    static final String JSON_FORMAT = "json";
 
     // we don't want the user to  request a huge piece of the earth with
     // a strong zoom in or else it will be too many rows to handle and a
@@ -96,9 +111,144 @@ public class GeoSearch extends WebPage {
     static final String[] MATCH_FIELDS = {
 	"type_name", "state_two_letter", "city", "zip", "country"};
 
-    static final SolrServer solr;
-    static {
-	solr = new HttpSolrServer( "http://localhost:8080/solr" );
+    // which SolrServer we query is chosen at startup by
+    // WicketApplication.init() through configureSolrServer(), we don't
+    // create it until the first request because in embedded mode we want
+    // the cores that the Solr dispatch filter loads in this same webapp
+    private static String solr_mode = null;
+    private static String solr_url = null;
+    private static String solr_home = null;
+    private static String solr_core = null;
+    private static SolrServer solr = null;
+
+    public static synchronized void configureSolrServer
+	(String mode, String url, String home, String core){
+	shutdownSolrServer();
+	ClusterPyramid.invalidate();
+	solr_mode = mode;
+	solr_url = url;
+	solr_home = home;
+	solr_core = core;
+    }
+
+    // where our geohash groups come from (see GeohashGroupSource), chosen
+    // per deployment by WicketApplication.init() through
+    // configureGroupSource()
+    //
+    // geoclusterrocks.clustering is webapp (the default) or solr, solr has
+    // solr.GeoclusterComponent do the clustering too, which needs the
+    // /geocluster handler from our solrconfig.xml
+    //
+    // when we do the clustering, geoclusterrocks.groups is grouping (the
+    // default, result grouping plus stats), aggregation (one pass by
+    // solr.GeoclusterComponent without its clustering) or mapped (from the
+    // PointColumns file geoclusterrocks.points_file, Solr only for text
+    // searches)
+    //
+    // geoclusterrocks.shards splits grouping or aggregation (and mapped's
+    // text searches) over several cores, see ShardedGroupSource
+    public static final String CLUSTERING_PROPERTY = "geoclusterrocks.clustering";
+    public static final String WEBAPP_CLUSTERING = "webapp";
+    public static final String SOLR_CLUSTERING = "solr";
+    public static final String GROUPS_PROPERTY = "geoclusterrocks.groups";
+    public static final String GROUPING_GROUPS = "grouping";
+    public static final String AGGREGATION_GROUPS = "aggregation";
+    public static final String MAPPED_GROUPS = "mapped";
+    public static final String POINTS_FILE_PROPERTY =
+	"geoclusterrocks.points_file";
+    public static final String SHARDS_PROPERTY = "geoclusterrocks.shards";
+    static final String GEOCLUSTER_HANDLER = "/geocluster";
+    private static volatile GeohashGroupSource group_source =
+	new GroupingGroupSource();
+
+    public static void configureGroupSource(String clustering, String groups,
+					    String points_file, String shards){
+	if (clustering == null)
+	    clustering = System.getProperty(CLUSTERING_PROPERTY,
+					    WEBAPP_CLUSTERING);
+	if (groups == null)
+	    groups = System.getProperty(GROUPS_PROPERTY, GROUPING_GROUPS);
+	if (points_file == null)
+	    points_file = System.getProperty(POINTS_FILE_PROPERTY);
+	if (shards == null)
+	    shards = System.getProperty(SHARDS_PROPERTY);
+
+	GeohashGroupSource source;
+	if (clustering.equals(SOLR_CLUSTERING)){
+	    if (shards != null)
+		throw new IllegalArgumentException
+		    (SOLR_CLUSTERING + " clustering can't be sharded");
+	    source = new SolrClusteringGroupSource();
+	}
+	else if (!clustering.equals(WEBAPP_CLUSTERING))
+	    throw new IllegalArgumentException
+		("unknown " + CLUSTERING_PROPERTY + " " + clustering);
+	else if (groups.equals(GROUPING_GROUPS))
+	    source = shards != null ? ShardedGroupSource.parse(shards, false) :
+		new GroupingGroupSource();
+	else if (groups.equals(AGGREGATION_GROUPS))
+	    source = shards != null ? ShardedGroupSource.parse(shards, true) :
+		new AggregationGroupSource();
+	else if (groups.equals(MAPPED_GROUPS)){
+	    if (points_file == null)
+		throw new IllegalArgumentException
+		    (MAPPED_GROUPS + " groups need " + POINTS_FILE_PROPERTY);
+	    try {
+		source = new MappedGroupSource
+		    (new File(points_file),
+		     shards != null ? ShardedGroupSource.parse(shards, false) :
+		     new GroupingGroupSource() );
+	    }
+	    catch (IOException e){
+		throw new IllegalArgumentException
+		    ("unable to open " + points_file, e);
+	    }
+	}
+	else
+	    throw new IllegalArgumentException
+		("unknown " + GROUPS_PROPERTY + " " + groups);
+	shutdownGroupSource();
+	group_source = source;
+
+	// the centers of cells loaded one way can differ from another's
+	GeohashCellCache cell_cache = GeohashCellCache.getCache();
+	if (cell_cache != null)
+	    cell_cache.invalidateAll();
+	ClusterPyramid.invalidate();
+    }
+
+    /**
+     * Let go of the Solr servers of our shards, if we have any
+     */
+    public static void shutdownGroupSource(){
+	GeohashGroupSource source = group_source;
+	if (source instanceof ShardedGroupSource)
+	    ((ShardedGroupSource)source).shutdown();
+	else if (source instanceof MappedGroupSource &&
+		 ((MappedGroupSource)source).fallback
+		 instanceof ShardedGroupSource)
+	    ((ShardedGroupSource)((MappedGroupSource)source).fallback)
+		.shutdown();
+    }
+
+    /**
+     * Where GeoSearch requests get their groups from right now, see
+     * configureGroupSource()
+     */
+    static GeohashGroupSource getGroupSource(){
+	return group_source;
+    }
+
+    static synchronized SolrServer getSolrServer(){
+	if (solr == null)
+	    solr = SolrServers.create(solr_mode, solr_url, solr_home,
+				      solr_core);
+	return solr;
+    }
+
+    public static synchronized void shutdownSolrServer(){
+	SolrServers.shutdown(solr);
+	solr = null;
     }
 
     static Logger log_l4 = LoggerFactory.getLogger( GeoSearch.class );
@@ -126,7 +276,7 @@ public class GeoSearch extends WebPage {
 	    double longitude_double = Double.parseDouble(longitude);
 	    if (-180 > longitude_double)
 		return "-180";
-	    else if (longitude_double > 90 )
+	    else if (longitude_double > 180 )
 		return "180";
 	    else
 		return longitude;
@@ -139,44 +289,109 @@ public class GeoSearch extends WebPage {
 	}
     }
 
+    /**
+     * Result grouping plus stats for query from solr, see
+     * GroupingGroupSource. Returns null if Solr lets us down
+     */
     public static QueryResponse query_locations_in_solr
-	(String bounds, int zoom,
-	 String[] types_to_exclude,
-	 int[] icon_types_to_ignore,
-	 boolean stats_enabled, int group_threshold,
-	 int distance_threshold,
-	 Map<String, List<String>> match_criteria,
-	 List<String> search_text_words,
-	 String require_type
-	 ){
+	(SolrServer solr, LocationsQuery query,
+	 Collection<String> geohash_cells){
 	QueryResponse rsp = null;
 	SolrQuery params = new SolrQuery();
-	String bot_left_long;
-	String bot_left_lat;
-	String top_right_long;
-	String top_right_lat;
-
-	String query_string;
-	if (bounds == null){
-	    bot_left_long = "-180";
-	    bot_left_lat = "-90";
-	    top_right_long = "180";
-	    top_right_lat = "90";
-	    query_string = "*:*";
+
+	String hash_len_geohash_field = query.geohash_field();
+
+	set_locations_query(params, query, geohash_cells);
+
+	if (SOLR_RESPONSIBLE_SORT)
+	    params.addSort(SortClause.asc(hash_len_geohash_field));
+
+	params.setFields(PointFeatures.SOLR_FIELD_LIST);
+	params.setParam(GroupParams.GROUP, true);
+	params.setRows(NUM_ROWS_ALLOWED);
+	params.setParam(GroupParams.GROUP_LIMIT,
+			String.valueOf(query.max_group_size) );
+	params.setParam(GroupParams.GROUP_FIELD, hash_len_geohash_field);
+
+	if (query.stats_enabled){
+	    params.setParam(StatsParams.STATS, true);
+	    params.setParam(StatsParams.STATS_FIELD, "longitude", "latitude");
+	    params.setParam(StatsParams.STATS_FACET, hash_len_geohash_field);
 	}
-	else {
-	    String[] queryBounds = bounds.split(",");
-	    bot_left_long = restrictLongitude(queryBounds[0]);
-	    bot_left_lat = restrictLatitude(queryBounds[1]);
-	    top_right_long = restrictLongitude(queryBounds[2]);
-	    top_right_lat = restrictLatitude(queryBounds[3]);
 
-	    query_string = "location:[" +
-			    bot_left_lat + "," +
-			    bot_left_long +
-			    " TO " + 
-			    top_right_lat + "," +
-			    top_right_long + "]";
+	long start = System.nanoTime();
+	try {
+	    rsp = solr.query( params );
+	}
+	catch (SolrServerException ex) {
+	    log_l4.warn( "unable to execute query", ex );
+	    return rsp;
+	}
+	GeoSearchMetrics.SOLR_QUERY.record(query.zoom, start);
+
+	return rsp;
+    }
+
+    /**
+     * Ask params for the locations in bounds (and in geohash_cells when we
+     * have those) that match all of our criteria.
+     *
+     * Every constraint is an fq of its own, written out the same way no
+     * matter what order the request had things in, so that Solr's
+     * filterCache keeps a DocSet for each that later requests can reuse.
+     * Someone toggling one icon type only has Solr work out that one, the
+     * bounds and everything else come from the cache. The search text is
+     * all that's left for q, it's the only part that scores, *:* if
+     * there's none.
+     */
+    static void set_locations_query
+	(SolrQuery params, LocationsQuery query,
+	 Collection<String> geohash_cells){
+	params.setQuery(search_text_query(query.search_text_words));
+	for (String filter_query:
+		 locations_filter_queries(query, geohash_cells))
+	    params.addFilterQuery(filter_query);
+    }
+
+    static String search_text_query(List<String> search_text_words){
+	if (search_text_words.isEmpty())
+	    return "*:*";
+	StringBuilder query_string = new StringBuilder();
+	for (String search_text: new TreeSet<String>(search_text_words)){
+	    if (query_string.length() > 0)
+		query_string.append(" OR ");
+	    query_string.append("text:\"").append(search_text).append('"');
+	}
+	return query_string.toString();
+    }
+
+    /**
+     * The fq's for query, see set_locations_query()
+     */
+    static List<String> locations_filter_queries
+	(LocationsQuery query, Collection<String> geohash_cells){
+	List<String> filter_queries = new ArrayList<String>();
+	String bounds = query.bounds;
+
+	// when we're given the cells we want (see GeohashCellCache) we still
+	// want only what's in the bounds, the cells narrow it down further
+	if (geohash_cells != null){
+	    StringBuilder cells_query = new StringBuilder();
+	    for (String cell: new TreeSet<String>(geohash_cells)){
+		cells_query.append(cells_query.length() == 0 ?
+				   query.geohash_field() + ":(" : " OR ");
+		cells_query.append(cell);
+	    }
+	    filter_queries.add(cells_query.append(")").toString());
+	}
+	if (bounds != null){
+	    String[] queryBounds = bounds.split(",");
+	    filter_queries.add("location:[" +
+			       restrictLatitude(queryBounds[1]) + "," +
+			       restrictLongitude(queryBounds[0]) +
+			       " TO " +
+			       restrictLatitude(queryBounds[3]) + "," +
+			       restrictLongitude(queryBounds[2]) + "]");
 	}
 
 	// type_name is multivalued, so trying to search against one type
@@ -184,172 +399,459 @@ public class GeoSearch extends WebPage {
 	// comment out until we figure that out or how to do a multi-value
 	// query correctly
 	/*
-	if ( null != types_to_exclude && types_to_exclude.length >= 1 ){
-	    for (String exclude_type: types_to_exclude){
-		query_string = query_string + 
-		    " AND -type_name:\"" + exclude_type + "\"";
-	    }
+	if ( null != query.types_to_exclude ){
+	    for (String exclude_type:
+		     new TreeSet<String>(Arrays.asList(query.types_to_exclude)))
+		filter_queries.add("-type_name:\"" + exclude_type + "\"");
 	}
 
-	if ( null != require_type ){
-	    query_string = query_string +
-		" AND +type_name:\"" + require_type + "\"";
+	if ( null != query.require_type ){
+	    filter_queries.add("type_name:\"" + query.require_type + "\"");
 	}
 	*/
 
-	if ( null != icon_types_to_ignore &&
-	     icon_types_to_ignore.length >= 1){
-	    for (int exclude_icon_type: icon_types_to_ignore){
-		query_string = query_string +
-		    " AND -icon_group_id:\"" + exclude_icon_type + "\"";
-	    }
+	// one each, ignoring another leaves the others' DocSets in the cache
+	if ( null != query.icon_types_to_ignore ){
+	    int[] icon_types = query.icon_types_to_ignore.clone();
+	    Arrays.sort(icon_types);
+	    for (int i = 0; i < icon_types.length; i++)
+		if (i == 0 || icon_types[i] != icon_types[i - 1])
+		    filter_queries.add("-icon_group_id:\"" + icon_types[i] +
+				       "\"");
 	}
 
 	// this is going to need to be designed to co-operative with the
 	// type filters above
-	for (Map.Entry<String, List<String>> entry: match_criteria.entrySet()){
-	    String sub_query = null;
-	    String field_name = entry.getKey();
-	    for (String criteria: entry.getValue()){
-		if (null == sub_query){
-		    sub_query = "+" + field_name + ":(";
-		}
-		else{
-		    sub_query = sub_query + " ";
-		}
-		sub_query = sub_query + "\"" +
-		    ClientUtils.escapeQueryChars(criteria) + "\"";
-	    }
-	    if (sub_query != null ){
-		sub_query = sub_query + ")";
-
-		query_string = query_string + " AND " + sub_query;
-	    }
-
-	}
-
-	if (search_text_words.size() > 0){
-	    query_string = query_string + " AND (";
-	    String or_string = "";
-	    boolean or_string_set = false;
-	    for(String search_text : search_text_words){
-		query_string = query_string + or_string +
-		    " text:\"" + search_text + "\"";
-		if (!or_string_set){
-		    or_string = " OR ";
-		    or_string_set = true;
-		}
+	for (Map.Entry<String, List<String>> entry:
+		 new TreeMap<String, List<String>>(query.match_criteria)
+		 .entrySet()){
+	    StringBuilder sub_query = null;
+	    for (String criteria: new TreeSet<String>(entry.getValue())){
+		if (null == sub_query)
+		    sub_query = new StringBuilder(entry.getKey()).append(":(");
+		else
+		    sub_query.append(' ');
+		sub_query.append('"')
+		    .append(ClientUtils.escapeQueryChars(criteria)).append('"');
 	    }
-	    query_string = query_string + ")";
+	    if (sub_query != null)
+		filter_queries.add(sub_query.append(')').toString());
 	}
 
-	params.setQuery(query_string);
-
-	int hash_len = Clustering.get_geohash_lengths_for_distance_threshold
-	    (distance_threshold)[zoom];
-	String hash_len_geohash_field = "geohash_" + hash_len;
-
-	if (SOLR_RESPONSIBLE_SORT)
-	    params.addSort(SortClause.asc(hash_len_geohash_field));
-
-	params.setParam(GroupParams.GROUP, true);
-	params.setRows(NUM_ROWS_ALLOWED);
-	params.setParam(GroupParams.GROUP_LIMIT,
-			String.valueOf(group_threshold) );
-	params.setParam(GroupParams.GROUP_FIELD, hash_len_geohash_field);
-
-	if (stats_enabled){
-	    params.setParam(StatsParams.STATS, true);
-	    params.setParam(StatsParams.STATS_FIELD, "longitude", "latitude");
-	    params.setParam(StatsParams.STATS_FACET, hash_len_geohash_field);
-	}
+	return filter_queries;
+    }
 
+    /**
+     * What solr.GeoclusterComponent makes of the locations matching query,
+     * the groups after clustering when merge is true, otherwise just the
+     * groups (with their means for centers). Returns null if Solr lets us
+     * down
+     */
+    static NamedList<Object> query_geocluster_in_solr
+	(SolrServer solr, LocationsQuery query,
+	 Collection<String> geohash_cells, boolean merge){
+	SolrQuery params = new SolrQuery();
+	params.setRequestHandler(GEOCLUSTER_HANDLER);
+	set_locations_query(params, query, geohash_cells);
+	params.setRows(0);
+	params.setParam(GeoclusterComponent.GEOCLUSTER, true);
+	params.setParam(GeoclusterComponent.MERGE, merge);
+	params.setParam(GeoclusterComponent.ZOOM, String.valueOf(query.zoom));
+	params.setParam(GeoclusterComponent.DISTANCE_THRESHOLD,
+			String.valueOf(query.distance_threshold));
+	params.setParam(GeoclusterComponent.GROUP_LIMIT,
+			String.valueOf(query.max_group_size));
+
+	QueryResponse rsp;
+	long start = System.nanoTime();
 	try {
 	    rsp = solr.query( params );
 	}
 	catch (SolrServerException ex) {
 	    log_l4.warn( "unable to execute query", ex );
-	    return rsp;
+	    return null;
 	}
+	GeoSearchMetrics.SOLR_QUERY.record(query.zoom, start);
+	return (NamedList<Object>)rsp.getResponse()
+	    .get(GeoclusterComponent.COMPONENT_NAME);
+    }
 
-	return rsp;
+    /**
+     * The groups solr.GeoclusterComponent sent back, clustered or not
+     */
+    static GeohashGroupStore load_component_groups
+	(NamedList<Object> geocluster, int max_group_size){
+	List<NamedList<Object>> groups = (List<NamedList<Object>>)
+	    geocluster.get(GeoclusterComponent.GROUPS);
+	GeohashGroupStore geohash_groups = new GeohashGroupStore
+	    ( ((Number)geocluster.get(GeoclusterComponent.HASH_LENGTH))
+	      .intValue(),
+	      max_group_size, groups.size() );
+	for (NamedList<Object> group: groups){
+	    int row = geohash_groups.add_group
+		(LongGeohash.encode
+		 ((String)group.get(GeoclusterComponent.GEOHASH)),
+		 ((Number)group.get(GeoclusterComponent.COUNT)).longValue(),
+		 ((Number)group.get(GeoclusterComponent.LONGITUDE))
+		 .doubleValue(),
+		 ((Number)group.get(GeoclusterComponent.LATITUDE))
+		 .doubleValue() );
+	    SolrDocumentList points = (SolrDocumentList)
+		group.get(GeoclusterComponent.POINTS);
+	    if (points != null)
+		for (SolrDocument doc: points)
+		    PointFeatures.add_point(geohash_groups, row, doc);
+	}
+	geohash_groups.sort();
+	return geohash_groups;
     }
 	    
 
+    /**
+     * Move the clusters in geohash_groups to the mean of their points, from
+     * the latitude and longitude stats Solr faceted by geohash.
+     *
+     * The two facets are joined by geohash, they usually come in the same
+     * order so a longitude can use the row its latitude found, but if they
+     * don't we look the longitude's row up too. Entries are read by name,
+     * not by where mean happens to be in them.
+     */
     static void applyClusterStatistics
 	(NamedList<Object> solr_response,
-	 Map<String, PointGroup> geohash_groups){
-
-	// for each statistic, there is only one field (geohash_?)
-	// we have facetted on, hence the getVal(0)
-	NamedList<Object> stat_latitudes = (NamedList<Object>)
-	    ( (NamedList<Object> )
-	      solr_response.findRecursive("stats", "stats_fields",
-					  "latitude", "facets") ).getVal(0);
-	NamedList<Object> stat_longitudes = (NamedList<Object>)
-	    ( (NamedList<Object>)
-	      solr_response.findRecursive("stats", "stats_fields",
-					  "longitude", "facets")).getVal(0);
-
-	Iterator<Entry<String, Object>> lat_iter =
-	    stat_latitudes.iterator();
-	Iterator<Entry<String, Object>> long_iter =
-	    stat_longitudes.iterator();
-
-	while (lat_iter.hasNext() && long_iter.hasNext()){
-	    Entry<String, Object> lat_entry = lat_iter.next();
-	    Entry<String, Object> long_entry = long_iter.next();
-
-	    // this is the crucial assumption here, that our two
-	    // statistics are provided in the same hash order!
-	    assert( lat_entry.getKey() == long_entry.getKey() );
-
-	    NamedList<Double> long_stats =
-		(NamedList<Double>)long_entry.getValue();
-	    assert( long_stats.getName(STATS_MEAN_FIELD).equals("mean") );
-
-	    String geohash_prefix = lat_entry.getKey();
-	    Point statistical_point = new Point
-		(long_stats.getVal(STATS_MEAN_FIELD),
-		 ((NamedList<Double>)lat_entry.getValue())
-		 .getVal(STATS_MEAN_FIELD) );
-	    if (geohash_groups.containsKey(geohash_prefix) ){
-		PointGroup pg = geohash_groups.get(geohash_prefix);
-		if (pg.cluster_collection())
-		    pg.get_cluster_feature().setGeometry(statistical_point);
-		else if (pg.grouped_points_collection())
-		    pg.center = statistical_point;
+	 GeohashGroupStore geohash_groups){
+	NamedList<Object> stat_latitudes =
+	    stats_facet(solr_response, "latitude");
+	NamedList<Object> stat_longitudes =
+	    stats_facet(solr_response, "longitude");
+	if (stat_latitudes == null || stat_longitudes == null)
+	    return;
+
+	// the latitude facet in primitives, with the row of each geohash
+	int lat_size = stat_latitudes.size();
+	long[] lat_hashes = new long[lat_size];
+	int[] lat_rows = new int[lat_size];
+	double[] lat_means = new double[lat_size];
+	int mean_index = -1;
+	for (int i = 0; i < lat_size; i++){
+	    NamedList<Object> stats =
+		(NamedList<Object>)stat_latitudes.getVal(i);
+	    mean_index = stats_mean_index(stats, mean_index);
+	    lat_hashes[i] = LongGeohash.encode(stat_latitudes.getName(i));
+	    lat_rows[i] = mean_index < 0 ? -1 :
+		geohash_groups.find(lat_hashes[i]);
+	    if (lat_rows[i] >= 0)
+		lat_means[i] = ((Number)stats.getVal(mean_index)).doubleValue();
+	}
+
+	// latitudes by row, only if the longitudes come in another order
+	double[] row_latitudes = null;
+	for (int i = 0; i < stat_longitudes.size(); i++){
+	    NamedList<Object> stats =
+		(NamedList<Object>)stat_longitudes.getVal(i);
+	    mean_index = stats_mean_index(stats, mean_index);
+	    if (mean_index < 0)
+		continue;
+	    long hash = LongGeohash.encode(stat_longitudes.getName(i));
+	    int row;
+	    double latitude;
+	    if (i < lat_size && lat_hashes[i] == hash){
+		row = lat_rows[i];
+		latitude = lat_means[i];
 	    }
-	
+	    else {
+		if (row_latitudes == null)
+		    row_latitudes =
+			latitudes_by_row(geohash_groups, lat_rows, lat_means);
+		row = geohash_groups.find(hash);
+		latitude = row < 0 ? Double.NaN : row_latitudes[row];
+	    }
+	    // a single point is already exactly where it is
+	    if (row < 0 || Double.isNaN(latitude) ||
+		(geohash_groups.first_points[row] != GeohashGroupStore.NO_POINTS
+		 && geohash_groups.counts[row] == 1) )
+		continue;
+	    geohash_groups.set_center
+		(row, ((Number)stats.getVal(mean_index)).doubleValue(),
+		 latitude);
 	}
     }
 
-    static Map<String, PointGroup> load_in_sorted_geohash_groups
-	(NamedList<Object> groups_f_field, boolean stats_enabled,
-	 int max_group_size){
-	Map<String, PointGroup> result = null;
-	if (USE_TREE_OVER_LINKED_HASH)
-	    result = new TreeMap<String, PointGroup>();
-	else
-	    result = new LinkedHashMap<String, PointGroup>();
+    /**
+     * The facets of field's stats, there's only the one (geohash_?) we
+     * facetted on, hence the getVal(0). null if there are none
+     */
+    static NamedList<Object> stats_facet(NamedList<Object> solr_response,
+					 String field){
+	NamedList<Object> facets = (NamedList<Object>)
+	    solr_response.findRecursive("stats", "stats_fields", field,
+					"facets");
+	return facets == null || facets.size() == 0 ? null :
+	    (NamedList<Object>)facets.getVal(0);
+    }
+
+    /**
+     * Where mean is in stats, -1 if it isn't. They're all laid out alike,
+     * so we check where it was in the last one (guess) before looking
+     */
+    static int stats_mean_index(NamedList<Object> stats, int guess){
+	if (guess >= 0 && guess < stats.size() &&
+	    "mean".equals(stats.getName(guess)) )
+	    return guess;
+	return stats.indexOf("mean", 0);
+    }
+
+    static double[] latitudes_by_row(GeohashGroupStore geohash_groups,
+				     int[] lat_rows, double[] lat_means){
+	double[] row_latitudes = new double[geohash_groups.size()];
+	Arrays.fill(row_latitudes, Double.NaN);
+	for (int i = 0; i < lat_rows.length; i++)
+	    if (lat_rows[i] >= 0)
+		row_latitudes[lat_rows[i]] = lat_means[i];
+	return row_latitudes;
+    }
+
+    /**
+     * Add the group of docs Solr found for hash_prefix to geohash_groups.
+     *
+     * If there are few enough docs we keep every one of them as a point,
+     * otherwise the group is a cluster and all we need is the count, the
+     * center of a cluster is taken from the statistics if we have them
+     * (see applyClusterStatistics) or else the middle of the geohash
+     */
+    static void add_solr_group(GeohashGroupStore geohash_groups,
+			       SolrDocumentList docs, String hash_prefix){
+	long docs_num_found = docs.getNumFound();
+	if (docs_num_found < 1)
+	    return;
+
+	if (docs_num_found <= geohash_groups.force_cluster_threshold){
+	    if (docs.isEmpty())
+		return;
+	    int row = geohash_groups.add_group
+		(LongGeohash.encode(hash_prefix), docs_num_found, 0, 0);
+	    for (SolrDocument doc: docs)
+		PointFeatures.add_point(geohash_groups, row, doc);
+
+	    // until statistics say otherwise, the center of grouped points
+	    // is the first one
+	    int first_point = geohash_groups.first_points[row];
+	    geohash_groups.set_center
+		(row, geohash_groups.point_longitudes[first_point],
+		 geohash_groups.point_latitudes[first_point]);
+	}
+	else {
+	    LatLong lat_long = GeoHash.decodeHash(hash_prefix);
+	    geohash_groups.add_group(LongGeohash.encode(hash_prefix),
+				     docs_num_found,
+				     lat_long.getLon(), lat_long.getLat() );
+	}
+    }
+
+    static GeohashGroupStore load_in_sorted_geohash_groups
+	(NamedList<Object> groups_f_field, int hash_len, int max_group_size){
+	List<NamedList<Object>> groups =
+	    (List<NamedList<Object>>)groups_f_field.get("groups");
+	GeohashGroupStore result =
+	    new GeohashGroupStore(hash_len, max_group_size, groups.size());
 	
-	for (NamedList<Object> group:
-		 (List<NamedList<Object>>)groups_f_field.get("groups") ){
+	for (NamedList<Object> group: groups){
 	    SolrDocumentList docs =
 		(SolrDocumentList)group.get("doclist");
 
 	    String hash_prefix = (String)group.get("groupValue");
 
-	    PointGroup points = new PointGroup(docs, max_group_size,
-					       stats_enabled, hash_prefix,
-					       null);
-	    if (! points.empty() )
- 		result.put(hash_prefix, points);
+	    add_solr_group(result, docs, hash_prefix);
 	}
 
+	result.sort();
 	return result;
     }
 
+    /**
+     * @return {bot_left_long, bot_left_lat, top_right_long, top_right_lat}
+     * restricted to what makes sense, the whole world if bounds is null
+     */
+    static double[] parse_bounds(String bounds){
+	if (bounds == null)
+	    return new double[] {-180, -90, 180, 90};
+	String[] queryBounds = bounds.split(",");
+	return new double[] {
+	    Double.parseDouble(restrictLongitude(queryBounds[0])),
+	    Double.parseDouble(restrictLatitude(queryBounds[1])),
+	    Double.parseDouble(restrictLongitude(queryBounds[2])),
+	    Double.parseDouble(restrictLatitude(queryBounds[3])) };
+    }
+
+    /**
+     * The bounds request parameter for bounds like parse_bounds() gives
+     */
+    static String bounds_param(double[] bounds){
+	return bounds[0] + "," + bounds[1] + "," + bounds[2] + "," + bounds[3];
+    }
+
+    static GeohashGroupStore load_groups_from_response
+	(NamedList<Object> solr_response, int zoom, int hash_len,
+	 int max_group_size, boolean stats_enabled){
+	long start = System.nanoTime();
+	// we know there is only one field we're grouping on, hence getVal(0)
+	GeohashGroupStore geohash_groups =
+	    load_in_sorted_geohash_groups
+	    (  (NamedList<Object>)
+	       ((NamedList<Object>)solr_response.get("grouped")).getVal(0),
+	       hash_len,
+	       max_group_size);
+	GeoSearchMetrics.LOAD_GROUPS.record(zoom, start);
+
+	if (stats_enabled){
+	    start = System.nanoTime();
+	    applyClusterStatistics(solr_response, geohash_groups);
+	    GeoSearchMetrics.CLUSTER_STATISTICS.record(zoom, start);
+	}
+	return geohash_groups;
+    }
+
+    /**
+     * Load the groups for query from source, going through
+     * GeohashCellCache (unless source does the clustering) so that we only
+     * ask Solr for the cells in our bounds that we haven't seen lately.
+     * Only the cells entirely within the bounds are cached, the ones on
+     * the edge are cut short by the bounds and are loaded every time, so
+     * we get the same groups as we would without the cache
+     */
+    static GeohashGroupStore query_geohash_groups
+	(GeohashGroupSource source, LocationsQuery query){
+	GeohashCellCache cell_cache = GeohashCellCache.getCache();
+	int hash_len = query.hash_len;
+	double[] b = null;
+	Collection<String> covering = null;
+	if (cell_cache != null && !source.clustered()){
+	    b = parse_bounds(query.bounds);
+	    covering = GeohashCellCache.covering_cells
+		(b[1], b[0], b[3], b[2], hash_len);
+	}
+	// too many cells to bother with the cache, or no cache at all
+	if (covering == null)
+	    return source.load_groups(query, null);
+	List<String> inside_cells = new ArrayList<String>();
+	List<String> edge_cells = new ArrayList<String>();
+	for (String cell: covering)
+	    (GeohashCellCache.within(cell, b[0], b[1], b[2], b[3]) ?
+	     inside_cells : edge_cells).add(cell);
+	String filter_signature = cell_cache.filter_signature
+	    (query.icon_types_to_ignore, query.match_criteria,
+	     query.search_text_words, query.stats_enabled,
+	     query.max_group_size);
+	GeohashGroupStore geohash_groups = new GeohashGroupStore
+	    (hash_len, query.max_group_size, covering.size());
+	List<String> missing_cells = cell_cache.get_cached_groups
+	    (hash_len, inside_cells, filter_signature, geohash_groups);
+	List<String> load_cells = new ArrayList<String>(missing_cells);
+	load_cells.addAll(edge_cells);
+	if (!load_cells.isEmpty()){
+	    GeohashGroupStore loaded_groups =
+		source.load_groups(query, load_cells);
+	    if (loaded_groups == null)
+		return null;
+	    cell_cache.put_loaded_groups(hash_len, missing_cells,
+					 filter_signature, loaded_groups);
+	    geohash_groups.add_all(loaded_groups);
+	}
+	geohash_groups.sort();
+	return geohash_groups;
+    }
+
+    static int max_group_size_for_zoom(int zoom){
+	if (zoom>=18)
+	    return GROUP_SIZE_MAX_ZOOM;
+	else
+	    return 1;
+    }
+
+    /**
+     * The single points, grouped points and clusters left in geohash_groups
+     * after clustering, as the JSON our map expects. GeoJsonWriter writes
+     * the same thing without holding it all in memory, this is only used
+     * when STREAM_JSON_OUTPUT is off
+     */
+    static String render_json(GeohashGroupStore geohash_groups){
+	TreeMap output_tree = new TreeMap<String, FeatureCollection>();
+	FeatureCollection single_points_collection = new FeatureCollection();
+	ArrayList<FeatureCollection> grouped_points_collections = 
+	    new ArrayList<FeatureCollection>();
+	FeatureCollection clusters_collection = new FeatureCollection();
+	PointGroup pg = geohash_groups.group(0);
+	for (int row = 0; row < geohash_groups.size(); row++){
+	    if (geohash_groups.isRemoved(row))
+		continue;
+	    pg.moveTo(row);
+	    if (pg.single_point())
+		single_points_collection.add(pg.get_single_point());
+	    else if (pg.grouped_points_collection()){
+		FeatureCollection grouped_points_collection = 
+		    new FeatureCollection();
+		grouped_points_collections.add(grouped_points_collection);
+		for (Feature f: pg.get_points() )
+		    grouped_points_collection.add(f);
+	    }
+	    else if (pg.cluster_collection())
+		clusters_collection.add( pg.get_cluster_feature() );
+	    else
+		assert(false);
+	}
+	output_tree.put("single_points", single_points_collection);
+	output_tree.put("grouped_points", grouped_points_collections);
+	output_tree.put("clusters", clusters_collection);
+
+	String json_output = "{}";
+	try {
+	    json_output = new ObjectMapper().writeValueAsString(output_tree);
+	}
+	catch (JsonProcessingException e) {
+	    // we're forced to catch this, but I don't think we'll ever see it
+	    log_l4.error("JsonProblem we would never expect", e);
+	}
+
+	return json_output;
+    }
+
+    /**
+     * The groups left after clustering for query, null if Solr let us down
+     */
+    static GeohashGroupStore clustered_groups(GeohashGroupSource source,
+					      LocationsQuery query){
+	// unfiltered maps are already clustered for us, see ClusterPyramid
+	GeohashGroupStore geohash_groups = ClusterPyramid.lookup(query, source);
+	if (geohash_groups == null){
+	    geohash_groups = query_geohash_groups(source, query);
+	    if (geohash_groups != null)
+		GeoSearchMetrics.loaded(query.zoom, geohash_groups);
+	    if (geohash_groups != null && !source.clustered()){
+		long start = System.nanoTime();
+		Clustering.clusterByNeighborCheck(geohash_groups, query.zoom);
+		GeoSearchMetrics.clustered(query.zoom, start, geohash_groups);
+	    }
+	}
+	return geohash_groups;
+    }
+
+    /**
+     * clustered_groups() for InFlightRequests to hand to everyone else who
+     * asked for the same thing meanwhile
+     */
+    static class GroupsMaker implements Callable<GeohashGroupStore> {
+	final GeohashGroupSource source;
+	final LocationsQuery query;
+
+	GroupsMaker(GeohashGroupSource source, LocationsQuery query){
+	    this.source = source;
+	    this.query = query;
+	}
+
+	public GeohashGroupStore call(){
+	    return clustered_groups(source, query);
+	}
+    }
+
     public GeoSearch(PageParameters pageParameters) {
 	RequestCycle cy = getRequestCycle();
 
@@ -364,9 +866,7 @@ public class GeoSearch extends WebPage {
 	    zoom = 0;
 	}
 
-	int max_group_size = 1;
-	if (zoom>=18)
-	    max_group_size = GROUP_SIZE_MAX_ZOOM;
+	int max_group_size = max_group_size_for_zoom(zoom);
 
 	String stats =
 	    cy.getRequest().getQueryParameters()
@@ -449,86 +949,79 @@ public class GeoSearch extends WebPage {
 	    catch (StringValueConversionException svce){
 		distance_threshold = Clustering.GEOCLUSTER_DEFAULT_DISTANCE;
 	    }
+	    if (!Clustering.distance_threshold_allowed(distance_threshold))
+		distance_threshold = Clustering.GEOCLUSTER_DEFAULT_DISTANCE;
 	}
 
-	QueryResponse rsp = query_locations_in_solr(
+	LocationsQuery query = new LocationsQuery(
 	    cy.getRequest().getQueryParameters().getParameterValue("bounds")
 	    .toString(),
 	    zoom,
 	    types_to_ignore,
 	    icon_types_to_ignore,
-            stats_enabled,
+	    stats_enabled,
 	    max_group_size,
 	    distance_threshold,
 	    match_criteria,
 	    text_searches,
 	    require_type);
 
-	if (rsp == null){
-	    cy.scheduleRequestHandlerAfterCurrent
-		( new TextRequestHandler("application/json", null, "{}" ) );
+	String format = request_params.getParameterValue("format").toString();
+	if (!MVT_FORMAT.equals(format))
+	    format = JSON_FORMAT;
+
+	// the same source for the whole request, even if it's reconfigured
+	GeohashGroupSource source = group_source;
+
+	// a pan from a view the client already has, see ViewportDelta. Vector
+	// tiles are always all of bounds. Pans hardly ever line up with
+	// someone else's, so these don't bother with InFlightRequests
+	StringValue previous_bounds =
+	    request_params.getParameterValue("previous_bounds");
+	if (JSON_FORMAT.equals(format) && !previous_bounds.isEmpty()){
+	    ViewportDelta delta = ViewportDelta.load
+		(source, query, parse_bounds(previous_bounds.toString()),
+		 request_params.getParameterValue("previous_zoom").toInt(-1) );
+	    if (delta == null)
+		cy.scheduleRequestHandlerAfterCurrent
+		    ( new TextRequestHandler("application/json", null, "{}" ) );
+	    else
+		cy.scheduleRequestHandlerAfterCurrent(delta);
 	    return;
 	}
-	
-	NamedList<Object> solr_response = rsp.getResponse();
-
-	// we know there is only one field we're grouping on, hence getVal(0)
-	Map<String, PointGroup> geohash_groups =
-	    load_in_sorted_geohash_groups
-	    (  (NamedList<Object>)
-	       ((NamedList<Object>)solr_response.get("grouped")).getVal(0),
-	       stats_enabled,
-	       max_group_size);
-
-	if (stats_enabled){
-	    applyClusterStatistics(solr_response, geohash_groups);
-	}
 
-	/** delete me when done debugging **/
-	for (PointGroup pg: geohash_groups.values()){
-	    assert( null != pg.getGeometry() );
-	    if (pg.cluster_collection() )
-		assert( null != pg.get_cluster_feature().getGeometry()  );
-	}
-
-	Clustering.clusterByNeighborCheck(geohash_groups, zoom);
-
-	TreeMap output_tree = new TreeMap<String, FeatureCollection>();
-	FeatureCollection single_points_collection = new FeatureCollection();
-	ArrayList<FeatureCollection> grouped_points_collections = 
-	    new ArrayList<FeatureCollection>();
-	FeatureCollection clusters_collection = new FeatureCollection();
-	for (PointGroup pg: geohash_groups.values()){
-	    if (pg.single_point())
-		single_points_collection.add(pg.get_single_point());
-	    else if (pg.grouped_points_collection()){
-		FeatureCollection grouped_points_collection = 
-		    new FeatureCollection();
-		grouped_points_collections.add(grouped_points_collection);
-		for (Feature f: pg.get_points() )
-		    grouped_points_collection.add(f);
+	GeohashGroupStore geohash_groups = null;
+	if (InFlightRequests.SINGLE_FLIGHT){
+	    try {
+		geohash_groups = InFlightRequests.clustered
+		    ( InFlightRequests.key(query),
+		      new GroupsMaker(source, query) );
+	    }
+	    catch (IOException e){
+		log_l4.error("unable to get our groups", e);
 	    }
-	    else if (pg.cluster_collection())
-		clusters_collection.add( pg.get_cluster_feature() );
-	    else
-		assert(false);
-	}
-	output_tree.put("single_points", single_points_collection);
-	output_tree.put("grouped_points", grouped_points_collections);
-	output_tree.put("clusters", clusters_collection);
-
-	String json_output = "{}";
-	try {
-	    json_output = new ObjectMapper().writeValueAsString(output_tree);
 	}
-	catch (JsonProcessingException e) {
-	    // we're forced to catch this, but I don't think we'll ever see it
-	    log_l4.error("JsonProblem we would never expect", e);
+	else
+	    geohash_groups = clustered_groups(source, query);
+	if (geohash_groups == null){
+	    cy.scheduleRequestHandlerAfterCurrent
+		( new TextRequestHandler("application/json", null, "{}" ) );
+	    return;
 	}
 
-
-	cy.scheduleRequestHandlerAfterCurrent
-	    ( new TextRequestHandler("application/json", null,
-				     json_output ) );
+	if (MVT_FORMAT.equals(format))
+	    cy.scheduleRequestHandlerAfterCurrent
+		( new VectorTileRequestHandler(geohash_groups, zoom,
+					       parse_bounds(query.bounds)) );
+	else if (STREAM_JSON_OUTPUT)
+	    cy.scheduleRequestHandlerAfterCurrent
+		( new GeoJsonRequestHandler(geohash_groups, zoom) );
+	else {
+	    long start = System.nanoTime();
+	    String json = render_json(geohash_groups);
+	    GeoSearchMetrics.serialized(zoom, start, json.length());
+	    cy.scheduleRequestHandlerAfterCurrent
+		( new TextRequestHandler("application/json", null, json) );
+	}
     }
 }
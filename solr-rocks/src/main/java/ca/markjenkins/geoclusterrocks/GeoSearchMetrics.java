@@ -0,0 +1,358 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where GeoSearch requests spend their time and how much they move, by
+ * zoom. Each stage of the pipeline has a timer
+ *
+ *   solr_query          query_locations_in_solr() and friends
+ *   load_groups         load_in_sorted_geohash_groups() or whatever the
+ *                       GeohashGroupSource does instead
+ *   cluster_statistics  applyClusterStatistics()
+ *   clustering          clusterByNeighborCheck()
+ *   serialization       JSON or vector tile output
+ *
+ * with a count, total, max and a histogram of powers of two microseconds
+ * (good enough for percentiles to within a factor of 2) for each zoom.
+ * Then there are counters of the groups loaded, the merges clustering did
+ * and the bytes we wrote out.
+ *
+ * Everything is an AtomicLongArray indexed by zoom, cheap enough to leave
+ * on all the time. register() makes them MXBeans on the platform
+ * MBeanServer (under ca.markjenkins.geoclusterrocks:type=GeoSearchMetrics)
+ * and MetricsServlet has them as text.
+ */
+public class GeoSearchMetrics {
+    static final String DOMAIN = "ca.markjenkins.geoclusterrocks";
+
+    // microseconds up to 2 to the 31, over half an hour
+    static final int BUCKETS = 32;
+
+    static Logger log_l4 = LoggerFactory.getLogger( GeoSearchMetrics.class );
+
+    public interface StageMXBean {
+	String getName();
+	long getCount();
+	double getMeanMillis();
+	double getMaxMillis();
+	long[] getCountByZoom();
+	double[] getMeanMillisByZoom();
+	double[] getP50MillisByZoom();
+	double[] getP95MillisByZoom();
+	double[] getP99MillisByZoom();
+	void reset();
+    }
+
+    public static class Stage implements StageMXBean {
+	final String name;
+	final AtomicLongArray counts = new AtomicLongArray(Clustering.ZOOMS);
+	final AtomicLongArray total_nanos =
+	    new AtomicLongArray(Clustering.ZOOMS);
+	final AtomicLongArray max_nanos = new AtomicLongArray(Clustering.ZOOMS);
+	// BUCKETS per zoom
+	final AtomicLongArray histogram =
+	    new AtomicLongArray(Clustering.ZOOMS * BUCKETS);
+
+	Stage(String name){
+	    this.name = name;
+	}
+
+	/**
+	 * Another time at zoom, from System.nanoTime() at start until now
+	 */
+	public void record(int zoom, long start_nanos){
+	    if (zoom < 0 || zoom >= Clustering.ZOOMS)
+		return;
+	    long nanos = System.nanoTime() - start_nanos;
+	    counts.incrementAndGet(zoom);
+	    total_nanos.addAndGet(zoom, nanos);
+	    long max = max_nanos.get(zoom);
+	    while (nanos > max && !max_nanos.compareAndSet(zoom, max, nanos))
+		max = max_nanos.get(zoom);
+	    long micros = Math.max(1, nanos / 1000);
+	    int bucket = Math.min(BUCKETS - 1,
+				  63 - Long.numberOfLeadingZeros(micros));
+	    histogram.incrementAndGet(zoom * BUCKETS + bucket);
+	}
+
+	public String getName(){
+	    return name;
+	}
+
+	public long getCount(){
+	    return sum(counts);
+	}
+
+	public double getMeanMillis(){
+	    long count = getCount();
+	    return count == 0 ? 0 : millis(sum(total_nanos)) / count;
+	}
+
+	public double getMaxMillis(){
+	    long max = 0;
+	    for (int zoom = 0; zoom < Clustering.ZOOMS; zoom++)
+		max = Math.max(max, max_nanos.get(zoom));
+	    return millis(max);
+	}
+
+	public long[] getCountByZoom(){
+	    return by_zoom(counts);
+	}
+
+	public double[] getMeanMillisByZoom(){
+	    double[] means = new double[Clustering.ZOOMS];
+	    for (int zoom = 0; zoom < Clustering.ZOOMS; zoom++){
+		long count = counts.get(zoom);
+		means[zoom] = count == 0 ? 0 : millis(total_nanos.get(zoom)) / count;
+	    }
+	    return means;
+	}
+
+	public double[] getP50MillisByZoom(){
+	    return percentiles(0.5);
+	}
+
+	public double[] getP95MillisByZoom(){
+	    return percentiles(0.95);
+	}
+
+	public double[] getP99MillisByZoom(){
+	    return percentiles(0.99);
+	}
+
+	double[] percentiles(double fraction){
+	    double[] percentiles = new double[Clustering.ZOOMS];
+	    for (int zoom = 0; zoom < Clustering.ZOOMS; zoom++)
+		percentiles[zoom] = percentile(zoom, fraction);
+	    return percentiles;
+	}
+
+	/**
+	 * The top of the histogram bucket with the fraction of times at zoom
+	 * below it, or the max if that's less
+	 */
+	double percentile(int zoom, double fraction){
+	    long count = 0;
+	    for (int bucket = 0; bucket < BUCKETS; bucket++)
+		count += histogram.get(zoom * BUCKETS + bucket);
+	    if (count == 0)
+		return 0;
+	    long wanted = (long)Math.ceil(count * fraction);
+	    long seen = 0;
+	    for (int bucket = 0; bucket < BUCKETS; bucket++){
+		seen += histogram.get(zoom * BUCKETS + bucket);
+		// nothing took longer than the max
+		if (seen >= wanted)
+		    return Math.min((2L << bucket) / 1000.0,
+				    millis(max_nanos.get(zoom)));
+	    }
+	    return millis(max_nanos.get(zoom));
+	}
+
+	public void reset(){
+	    for (int i = 0; i < Clustering.ZOOMS; i++){
+		counts.set(i, 0);
+		total_nanos.set(i, 0);
+		max_nanos.set(i, 0);
+	    }
+	    for (int i = 0; i < histogram.length(); i++)
+		histogram.set(i, 0);
+	}
+    }
+
+    public interface VolumeMXBean {
+	long getGroups();
+	long getMerges();
+	long getOutputBytes();
+	long[] getGroupsByZoom();
+	long[] getMergesByZoom();
+	long[] getOutputBytesByZoom();
+	void reset();
+    }
+
+    public static class Volume implements VolumeMXBean {
+	final AtomicLongArray groups = new AtomicLongArray(Clustering.ZOOMS);
+	final AtomicLongArray merges = new AtomicLongArray(Clustering.ZOOMS);
+	final AtomicLongArray output_bytes =
+	    new AtomicLongArray(Clustering.ZOOMS);
+
+	public long getGroups(){
+	    return sum(groups);
+	}
+
+	public long getMerges(){
+	    return sum(merges);
+	}
+
+	public long getOutputBytes(){
+	    return sum(output_bytes);
+	}
+
+	public long[] getGroupsByZoom(){
+	    return by_zoom(groups);
+	}
+
+	public long[] getMergesByZoom(){
+	    return by_zoom(merges);
+	}
+
+	public long[] getOutputBytesByZoom(){
+	    return by_zoom(output_bytes);
+	}
+
+	public void reset(){
+	    for (int i = 0; i < Clustering.ZOOMS; i++){
+		groups.set(i, 0);
+		merges.set(i, 0);
+		output_bytes.set(i, 0);
+	    }
+	}
+    }
+
+    public static final Stage SOLR_QUERY = new Stage("solr_query");
+    public static final Stage LOAD_GROUPS = new Stage("load_groups");
+    public static final Stage CLUSTER_STATISTICS =
+	new Stage("cluster_statistics");
+    public static final Stage CLUSTERING = new Stage("clustering");
+    public static final Stage SERIALIZATION = new Stage("serialization");
+    static final Stage[] stages = new Stage[] {
+	SOLR_QUERY, LOAD_GROUPS, CLUSTER_STATISTICS, CLUSTERING,
+	SERIALIZATION };
+
+    public static final Volume volume = new Volume();
+
+    /**
+     * Groups loaded at zoom, before any clustering
+     */
+    public static void loaded(int zoom, GeohashGroupStore geohash_groups){
+	if (zoom >= 0 && zoom < Clustering.ZOOMS)
+	    volume.groups.addAndGet(zoom, geohash_groups.size());
+    }
+
+    /**
+     * clusterByNeighborCheck() of geohash_groups at zoom, which started
+     * at start_nanos, is done
+     */
+    public static void clustered(int zoom, long start_nanos,
+				 GeohashGroupStore geohash_groups){
+	CLUSTERING.record(zoom, start_nanos);
+	if (zoom >= 0 && zoom < Clustering.ZOOMS)
+	    volume.merges.addAndGet(zoom, geohash_groups.removed_count);
+    }
+
+    /**
+     * We wrote bytes of output for zoom, starting at start_nanos
+     */
+    public static void serialized(int zoom, long start_nanos, long bytes){
+	SERIALIZATION.record(zoom, start_nanos);
+	if (zoom >= 0 && zoom < Clustering.ZOOMS)
+	    volume.output_bytes.addAndGet(zoom, bytes);
+    }
+
+    static long sum(AtomicLongArray values){
+	long sum = 0;
+	for (int i = 0; i < values.length(); i++)
+	    sum += values.get(i);
+	return sum;
+    }
+
+    static long[] by_zoom(AtomicLongArray values){
+	long[] by_zoom = new long[values.length()];
+	for (int i = 0; i < by_zoom.length; i++)
+	    by_zoom[i] = values.get(i);
+	return by_zoom;
+    }
+
+    static double millis(long nanos){
+	return nanos / 1000000.0;
+    }
+
+    static ObjectName stage_name(Stage stage) throws JMException {
+	return new ObjectName(DOMAIN + ":type=GeoSearchMetrics,stage=" +
+			      stage.name);
+    }
+
+    static ObjectName volume_name() throws JMException {
+	return new ObjectName(DOMAIN + ":type=GeoSearchMetrics,name=volume");
+    }
+
+    /**
+     * Make our metrics MXBeans on the platform MBeanServer, for jconsole
+     * and friends. Quietly does nothing if they're already there (another
+     * webapp in the same JVM, or a redeploy)
+     */
+    public static void register(){
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	try {
+	    for (Stage stage: stages)
+		if (!server.isRegistered(stage_name(stage)))
+		    server.registerMBean(stage, stage_name(stage));
+	    if (!server.isRegistered(volume_name()))
+		server.registerMBean(volume, volume_name());
+	}
+	catch (JMException e){
+	    log_l4.warn("unable to register our metrics with JMX", e);
+	}
+    }
+
+    public static void unregister(){
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	try {
+	    for (Stage stage: stages)
+		if (server.isRegistered(stage_name(stage)))
+		    server.unregisterMBean(stage_name(stage));
+	    if (server.isRegistered(volume_name()))
+		server.unregisterMBean(volume_name());
+	}
+	catch (JMException e){
+	    log_l4.warn("unable to unregister our metrics from JMX", e);
+	}
+    }
+
+    /**
+     * Everything as lines of text, a line per stage or counter and zoom
+     * that has seen anything
+     *
+     *   clustering zoom=5 count=12 mean_ms=1.2 p50_ms=1.024 ...
+     *   groups zoom=5 total=3400
+     */
+    public static void report(PrintWriter out){
+	for (Stage stage: stages)
+	    for (int zoom = 0; zoom < Clustering.ZOOMS; zoom++){
+		long count = stage.counts.get(zoom);
+		if (count == 0)
+		    continue;
+		out.println(stage.name + " zoom=" + zoom + " count=" + count +
+			    " mean_ms=" +
+			    millis(stage.total_nanos.get(zoom)) / count +
+			    " p50_ms=" + stage.percentile(zoom, 0.5) +
+			    " p95_ms=" + stage.percentile(zoom, 0.95) +
+			    " p99_ms=" + stage.percentile(zoom, 0.99) +
+			    " max_ms=" + millis(stage.max_nanos.get(zoom)) );
+	    }
+	report_counter(out, "groups", volume.groups);
+	report_counter(out, "merges", volume.merges);
+	report_counter(out, "output_bytes", volume.output_bytes);
+    }
+
+    static void report_counter(PrintWriter out, String name,
+			       AtomicLongArray values){
+	for (int zoom = 0; zoom < Clustering.ZOOMS; zoom++)
+	    if (values.get(zoom) != 0)
+		out.println(name + " zoom=" + zoom + " total=" +
+			    values.get(zoom) );
+    }
+}
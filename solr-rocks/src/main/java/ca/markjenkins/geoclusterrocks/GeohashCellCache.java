@@ -0,0 +1,256 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore.Cell;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import com.github.davidmoten.geo.GeoHash;
+import com.github.davidmoten.geo.LatLong;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the group of every geohash_N cell we've loaded from Solr
+ * (after statistics, before clustering) so that when a user pans by a few
+ * pixels we only have to ask Solr about the cells that are new to us.
+ *
+ * Entries are keyed on (hash length, geohash cell, filter signature) where
+ * the filter signature captures everything other than the bounds that
+ * changes what lands in a cell. Cells that turned out to have nothing in
+ * them are remembered too, that's what the absent Optional is for. Only
+ * cells entirely within a request's bounds are put in here, the ones the
+ * bounds cut through would be missing points.
+ *
+ * The cache is bounded by number of cells (LRU-ish eviction courtesy of
+ * Guava) and entries expire on their own too. ClusterPyramid.refresh()
+ * calls invalidateAll() when it sees the index version change, so a
+ * re-index shows up within geoclusterrocks.pyramid.check_seconds.
+ */
+public class GeohashCellCache {
+    public static final String MAX_CELLS_PROPERTY =
+	"geoclusterrocks.cache.max_cells";
+    public static final String EXPIRE_SECONDS_PROPERTY =
+	"geoclusterrocks.cache.expire_seconds";
+
+    static final long DEFAULT_MAX_CELLS = 200000;
+    static final long DEFAULT_EXPIRE_SECONDS = 600;
+
+    // a request that covers more cells than this is not worth breaking up
+    // cell by cell, we just go to Solr with the bounds like always.
+    // This also keeps us well under maxBooleanClauses in solrconfig.xml
+    // when we query for the missing cells
+    static final int MAX_CELLS_PER_REQUEST = 4096;
+
+    static final GeohashCellCache cache = createFromSystemProperties();
+
+    static final class CellKey {
+	final int hash_len;
+	final String cell;
+	final String filter_signature;
+
+	CellKey(int hash_len, String cell, String filter_signature){
+	    this.hash_len = hash_len;
+	    this.cell = cell;
+	    this.filter_signature = filter_signature;
+	}
+
+	@Override
+	public boolean equals(Object o){
+	    if (!(o instanceof CellKey))
+		return false;
+	    CellKey other = (CellKey)o;
+	    // filter signatures are interned, see filter_signature()
+	    return hash_len == other.hash_len &&
+		filter_signature == other.filter_signature &&
+		cell.equals(other.cell);
+	}
+
+	@Override
+	public int hashCode(){
+	    return (cell.hashCode() * 31 + hash_len) * 31 +
+		filter_signature.hashCode();
+	}
+    }
+
+    private final Cache<CellKey, Optional<Cell>> cells;
+    private final Interner<String> signatures = Interners.newWeakInterner();
+
+    public GeohashCellCache(long max_cells, long expire_seconds){
+	cells = CacheBuilder.newBuilder()
+	    .maximumSize(max_cells)
+	    .expireAfterWrite(expire_seconds, TimeUnit.SECONDS)
+	    .build();
+    }
+
+    static GeohashCellCache createFromSystemProperties(){
+	long max_cells = Long.getLong(MAX_CELLS_PROPERTY, DEFAULT_MAX_CELLS);
+	if (max_cells <= 0)
+	    return null;
+	return new GeohashCellCache
+	    (max_cells, Long.getLong(EXPIRE_SECONDS_PROPERTY,
+				     DEFAULT_EXPIRE_SECONDS) );
+    }
+
+    /**
+     * The cache shared by all GeoSearch requests, null if it has been
+     * disabled by setting geoclusterrocks.cache.max_cells to 0
+     */
+    public static GeohashCellCache getCache(){
+	return cache;
+    }
+
+    public void invalidateAll(){
+	cells.invalidateAll();
+    }
+
+    /**
+     * Everything besides bounds, zoom and distance threshold that
+     * query_locations_in_solr and load_in_sorted_geohash_groups use to
+     * decide what goes in a cell. Order doesn't matter to any of these
+     * so we sort to get more hits.
+     *
+     * types_to_exclude and require_type aren't part of the query right now
+     * (see query_locations_in_solr) so they're not part of this either
+     */
+    public String filter_signature(int[] icon_types_to_ignore,
+				   Map<String, List<String>> match_criteria,
+				   List<String> search_text_words,
+				   boolean stats_enabled, int max_group_size){
+	return signatures.intern
+	    (build_filter_signature(icon_types_to_ignore, match_criteria,
+				    search_text_words, stats_enabled,
+				    max_group_size) );
+    }
+
+    /**
+     * filter_signature() without the interning, for when we don't have a
+     * cache or don't want to fill its interner
+     */
+    public static String build_filter_signature
+	(int[] icon_types_to_ignore, Map<String, List<String>> match_criteria,
+	 List<String> search_text_words, boolean stats_enabled,
+	 int max_group_size){
+	StringBuilder signature = new StringBuilder();
+	signature.append(stats_enabled).append('|').append(max_group_size);
+
+	signature.append("|icons:");
+	if (null != icon_types_to_ignore){
+	    int[] sorted_icon_types = icon_types_to_ignore.clone();
+	    Arrays.sort(sorted_icon_types);
+	    for (int icon_type: sorted_icon_types)
+		signature.append(icon_type).append(',');
+	}
+
+	for (Map.Entry<String, List<String>> entry:
+		 new TreeMap<String, List<String>>(match_criteria).entrySet()){
+	    if (entry.getValue().isEmpty())
+		continue;
+	    append_sorted(signature.append('|').append(entry.getKey())
+			  .append(':'), entry.getValue() );
+	}
+
+	append_sorted(signature.append("|text:"), search_text_words);
+
+	return signature.toString();
+    }
+
+    private static void append_sorted(StringBuilder signature,
+				      Collection<String> values){
+	String[] sorted_values = values.toArray(new String[values.size()]);
+	Arrays.sort(sorted_values);
+	for (String value: sorted_values)
+	    // escape our separators so different lists can't look the same
+	    signature.append(value.replace("\\", "\\\\").replace(",", "\\,"))
+		.append(',');
+    }
+
+    /**
+     * The geohash cells of length hash_len that cover the given bounds, or
+     * null if there are more than MAX_CELLS_PER_REQUEST of them
+     */
+    public static Collection<String> covering_cells
+	(double bot_left_lat, double bot_left_long,
+	 double top_right_lat, double top_right_long, int hash_len){
+	// estimate first, we don't want to build a huge set just to throw
+	// it away
+	double cells_wide = (top_right_long - bot_left_long) /
+	    GeoHash.widthDegrees(hash_len) + 2;
+	double cells_high = (top_right_lat - bot_left_lat) /
+	    GeoHash.heightDegrees(hash_len) + 2;
+	if (cells_wide <= 0 || cells_high <= 0 ||
+	    cells_wide * cells_high > MAX_CELLS_PER_REQUEST)
+	    return null;
+
+	Collection<String> covering = GeoHash.coverBoundingBox
+	    (top_right_lat, bot_left_long, bot_left_lat, top_right_long,
+	     hash_len).getHashes();
+	if (covering.size() > MAX_CELLS_PER_REQUEST)
+	    return null;
+	return covering;
+    }
+
+    /**
+     * True if all of cell is within the given bounds, restricting it to
+     * them makes no difference then
+     */
+    public static boolean within(String cell, double west, double south,
+				 double east, double north){
+	LatLong center = GeoHash.decodeHash(cell);
+	double half_width = GeoHash.widthDegrees(cell.length()) / 2;
+	double half_height = GeoHash.heightDegrees(cell.length()) / 2;
+	return center.getLon() - half_width >= west &&
+	    center.getLon() + half_width <= east &&
+	    center.getLat() - half_height >= south &&
+	    center.getLat() + half_height <= north;
+    }
+
+    /**
+     * Add the cached groups for our cells to geohash_groups and return the
+     * cells we know nothing about yet.
+     *
+     * What we cache are GeohashGroupStore.Cell copies, clustering merges
+     * groups into each other, we can't have that happen to the cache
+     */
+    public List<String> get_cached_groups
+	(int hash_len, Collection<String> covering,
+	 String filter_signature, GeohashGroupStore geohash_groups){
+	List<String> missing_cells = new ArrayList<String>();
+	for (String cell: covering){
+	    Optional<Cell> cached = cells.getIfPresent
+		(new CellKey(hash_len, cell, filter_signature) );
+	    if (cached == null)
+		missing_cells.add(cell);
+	    else if (cached.isPresent())
+		geohash_groups.add_cell(LongGeohash.encode(cell),
+					cached.get() );
+	}
+	return missing_cells;
+    }
+
+    /**
+     * Remember what Solr gave us for the cells we asked it about, this
+     * has to be called before the groups are clustered
+     */
+    public void put_loaded_groups
+	(int hash_len, Collection<String> requested_cells,
+	 String filter_signature, GeohashGroupStore loaded_groups){
+	for (String cell: requested_cells){
+	    int row = loaded_groups.find(cell);
+	    cells.put(new CellKey(hash_len, cell, filter_signature),
+		      row < 0 ?
+		      Optional.<Cell>absent() :
+		      Optional.of(loaded_groups.cell(row)) );
+	}
+    }
+}
@@ -0,0 +1,34 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+
+import java.util.Collection;
+
+/**
+ * Where GeoSearch gets its geohash groups from. Which one is used is
+ * chosen per deployment, see GeoSearch.configureGroupSource()
+ */
+public interface GeohashGroupSource {
+    /**
+     * The groups of length query.hash_len for the locations matching
+     * query, sorted, or null if Solr lets us down. When geohash_cells isn't
+     * null we want only what's in those cells as well as in query.bounds
+     * (see GeoSearch.query_geohash_groups())
+     */
+    GeohashGroupStore load_groups(LocationsQuery query,
+				  Collection<String> geohash_cells);
+
+    /**
+     * True if the groups we load are already clustered, in which case
+     * they're not to be clustered again, nor cached by cell
+     */
+    boolean clustered();
+
+    /**
+     * Something that changes whenever what we load does, like the index
+     * version of the Solr we load from, null if we can't tell right now.
+     * ClusterPyramid checks this to know when to start over
+     */
+    Long index_version();
+}
@@ -0,0 +1,362 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.HashSorter;
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+import ca.markjenkins.geoclusterrocks.PointFeatures;
+import ca.markjenkins.geoclusterrocks.PointGroup;
+
+import org.geojson.Feature;
+
+import java.util.Arrays;
+
+/**
+ * All of the geohash groups for one request, kept in columns instead of
+ * a TreeMap<String, PointGroup> of objects.
+ *
+ * Each group (row) is one geohash cell of length hash_len, bit-packed
+ * into a long (see LongGeohash) with parallel columns for its centroid
+ * and point count. Rows are sorted by hash so that we can find a
+ * neighbouring cell with a binary search and so that walking the rows
+ * visits cells in geohash order, which is what clusterByNeighborCheck()
+ * depends on.
+ *
+ * Groups small enough to show their individual points keep them in
+ * shared point columns, chained together with next_points so that merging
+ * two groups doesn't need to copy or allocate anything. Groups that are
+ * clusters have no points (first_points[row] == NO_POINTS).
+ *
+ * A point is just its position and its strings (name, org_id and
+ * icon_group_id, STRINGS_PER_POINT of them at point * STRINGS_PER_POINT
+ * in point_strings), the Strings we were given, not copies. Most points
+ * end up merged into clusters and are never shown, so the Feature for
+ * one is only made when it's written out, see point_feature().
+ *
+ * Rows merged into another by clustering are only marked as removed in
+ * a bitset over the (sorted) rows, everything that walks the rows
+ * afterwards has to skip them.
+ *
+ * PointGroup is how the rest of us look at and merge individual rows.
+ */
+public class GeohashGroupStore {
+    static final int NO_POINTS = -1;
+    static final int INITIAL_CAPACITY = 64;
+
+    static final int STRINGS_PER_POINT = 3;
+    static final int NAME_STRING = 0;
+    static final int ORG_ID_STRING = 1;
+    static final int ICON_GROUP_STRING = 2;
+
+    final int hash_len;
+    final int force_cluster_threshold;
+
+    int size = 0;
+    long[] hashes;
+    double[] longitudes;
+    double[] latitudes;
+    long[] counts;
+    int[] first_points;
+    int[] last_points;
+    long[] removed_bits;
+    int removed_count = 0;
+    boolean sorted = true;
+
+    int point_count = 0;
+    double[] point_longitudes;
+    double[] point_latitudes;
+    // null for a string a point doesn't have
+    String[] point_strings;
+    int[] next_points;
+
+    /**
+     * An immutable copy of one row, suitable for keeping around between
+     * requests, see GeohashCellCache
+     */
+    public static final class Cell {
+	final long count;
+	final double longitude;
+	final double latitude;
+	// null for a cluster, otherwise the point columns of its points
+	final double[] point_longitudes;
+	final double[] point_latitudes;
+	final String[] point_strings;
+
+	Cell(long count, double longitude, double latitude,
+	     double[] point_longitudes, double[] point_latitudes,
+	     String[] point_strings){
+	    this.count = count;
+	    this.longitude = longitude;
+	    this.latitude = latitude;
+	    this.point_longitudes = point_longitudes;
+	    this.point_latitudes = point_latitudes;
+	    this.point_strings = point_strings;
+	}
+    }
+
+    public GeohashGroupStore(int hash_len, int force_cluster_threshold,
+			     int expected_groups){
+	this.hash_len = hash_len;
+	this.force_cluster_threshold = force_cluster_threshold;
+	int capacity = Math.max(expected_groups, INITIAL_CAPACITY);
+	hashes = new long[capacity];
+	longitudes = new double[capacity];
+	latitudes = new double[capacity];
+	counts = new long[capacity];
+	first_points = new int[capacity];
+	last_points = new int[capacity];
+	point_longitudes = new double[capacity];
+	point_latitudes = new double[capacity];
+	point_strings = new String[capacity * STRINGS_PER_POINT];
+	next_points = new int[capacity];
+	removed_bits = new long[words_for(capacity)];
+    }
+
+    private static int words_for(int rows){
+	return (rows + 63) >>> 6;
+    }
+
+    public int size(){
+	return size;
+    }
+
+    public int getHashLength(){
+	return hash_len;
+    }
+
+    public long getHash(int row){
+	return hashes[row];
+    }
+
+    public String getGeohash(int row){
+	return LongGeohash.decode(hashes[row], hash_len);
+    }
+
+    public boolean isRemoved(int row){
+	return (removed_bits[row >>> 6] & (1L << row)) != 0;
+    }
+
+    void remove(int row){
+	assert(!isRemoved(row));
+	removed_bits[row >>> 6] |= 1L << row;
+	removed_count++;
+    }
+
+    /**
+     * A view of row, hang on to it and use PointGroup.moveTo() instead of
+     * calling this over and over if you're walking a lot of rows
+     */
+    public PointGroup group(int row){
+	return new PointGroup(this, row);
+    }
+
+    /**
+     * Add a group with no points yet, its centroid can be filled in later
+     * with set_center() and its points with add_point(). The store is no
+     * longer sorted after this unless hash happens to be in order
+     */
+    public int add_group(long hash, long count,
+			 double longitude, double latitude){
+	if (size == hashes.length)
+	    grow_groups(size * 2);
+	if (size > 0 && hashes[size-1] >= hash)
+	    sorted = false;
+	hashes[size] = hash;
+	counts[size] = count;
+	longitudes[size] = longitude;
+	latitudes[size] = latitude;
+	first_points[size] = NO_POINTS;
+	last_points[size] = NO_POINTS;
+	return size++;
+    }
+
+    public void set_center(int row, double longitude, double latitude){
+	longitudes[row] = longitude;
+	latitudes[row] = latitude;
+    }
+
+    /**
+     * Add a point to row, returns the new point's number
+     */
+    public int add_point(int row, String name, String org_id,
+			 String icon_group_id,
+			 double longitude, double latitude){
+	if (point_count == point_longitudes.length)
+	    grow_points(point_count * 2);
+	point_longitudes[point_count] = longitude;
+	point_latitudes[point_count] = latitude;
+	int strings = point_count * STRINGS_PER_POINT;
+	point_strings[strings + NAME_STRING] = name;
+	point_strings[strings + ORG_ID_STRING] = org_id;
+	point_strings[strings + ICON_GROUP_STRING] = icon_group_id;
+	next_points[point_count] = NO_POINTS;
+	if (first_points[row] == NO_POINTS)
+	    first_points[row] = point_count;
+	else
+	    next_points[last_points[row]] = point_count;
+	last_points[row] = point_count;
+	return point_count++;
+    }
+
+    /**
+     * Add point of other to row
+     */
+    public int add_point(int row, GeohashGroupStore other, int point){
+	int strings = point * STRINGS_PER_POINT;
+	return add_point(row, other.point_strings[strings + NAME_STRING],
+			 other.point_strings[strings + ORG_ID_STRING],
+			 other.point_strings[strings + ICON_GROUP_STRING],
+			 other.point_longitudes[point],
+			 other.point_latitudes[point]);
+    }
+
+    public String point_string(int point, int string){
+	return point_strings[point * STRINGS_PER_POINT + string];
+    }
+
+    /**
+     * A new Feature for point, the one we show for it
+     */
+    public Feature point_feature(int point){
+	return PointFeatures.point_feature
+	    (point_string(point, NAME_STRING),
+	     point_string(point, ORG_ID_STRING),
+	     point_string(point, ICON_GROUP_STRING),
+	     point_longitudes[point], point_latitudes[point]);
+    }
+
+    public Cell cell(int row){
+	if (first_points[row] == NO_POINTS)
+	    return new Cell(counts[row], longitudes[row], latitudes[row],
+			    null, null, null);
+	int points = (int)counts[row];
+	double[] cell_longitudes = new double[points];
+	double[] cell_latitudes = new double[points];
+	String[] cell_strings = new String[points * STRINGS_PER_POINT];
+	int i = 0;
+	for (int p = first_points[row]; p != NO_POINTS; p = next_points[p]){
+	    cell_longitudes[i] = point_longitudes[p];
+	    cell_latitudes[i] = point_latitudes[p];
+	    System.arraycopy(point_strings, p * STRINGS_PER_POINT,
+			     cell_strings, i * STRINGS_PER_POINT,
+			     STRINGS_PER_POINT);
+	    i++;
+	}
+	return new Cell(counts[row], longitudes[row], latitudes[row],
+			cell_longitudes, cell_latitudes, cell_strings);
+    }
+
+    public int add_cell(long hash, Cell cell){
+	int row = add_group(hash, cell.count, cell.longitude, cell.latitude);
+	if (cell.point_longitudes != null)
+	    for (int i = 0; i < cell.point_longitudes.length; i++){
+		int strings = i * STRINGS_PER_POINT;
+		add_point(row, cell.point_strings[strings + NAME_STRING],
+			  cell.point_strings[strings + ORG_ID_STRING],
+			  cell.point_strings[strings + ICON_GROUP_STRING],
+			  cell.point_longitudes[i], cell.point_latitudes[i]);
+	    }
+	return row;
+    }
+
+    /**
+     * Copy the (not removed) rows of other into this store
+     */
+    public void add_all(GeohashGroupStore other){
+	for (int row = 0; row < other.size; row++)
+	    if (!other.isRemoved(row))
+		add_row(other, row);
+    }
+
+    /**
+     * Copy one row of other into this store
+     */
+    public int add_row(GeohashGroupStore other, int row){
+	assert(other.hash_len == hash_len);
+	int new_row = add_group(other.hashes[row], other.counts[row],
+				other.longitudes[row], other.latitudes[row] );
+	for (int p = other.first_points[row]; p != NO_POINTS;
+	     p = other.next_points[p])
+	    add_point(new_row, other, p);
+	return new_row;
+    }
+
+    /**
+     * The row with the given hash, or -1 if we don't have it, only works
+     * once we're sorted
+     */
+    public int find(long hash){
+	assert(sorted);
+	int row = Arrays.binarySearch(hashes, 0, size, hash);
+	return row >= 0 ? row : -1;
+    }
+
+    /**
+     * The first row with a hash of at least hash (size() if there's none),
+     * only works once we're sorted
+     */
+    public int find_from(long hash){
+	assert(sorted);
+	int row = Arrays.binarySearch(hashes, 0, size, hash);
+	return row >= 0 ? row : -row - 1;
+    }
+
+    public int find(String geohash){
+	return find(LongGeohash.encode(geohash));
+    }
+
+    /**
+     * Sort the rows by hash, like Drupal geocluster does we just pre-allocate
+     * arrays and quicksort them instead of maintaining a tree as we go.
+     * Removed rows must not exist yet when this is called
+     */
+    public void sort(){
+	assert(removed_count == 0);
+	if (!sorted)
+	    sorter.sort(hashes, size);
+	sorted = true;
+    }
+
+    private final HashSorter sorter = new HashSorter(){
+	    protected void swap(int a, int b){
+		GeohashGroupStore.this.swap(a, b);
+	    }
+	};
+
+    private void swap(int a, int b){
+	long hash = hashes[a];
+	hashes[a] = hashes[b];
+	hashes[b] = hash;
+	long count = counts[a];
+	counts[a] = counts[b];
+	counts[b] = count;
+	double longitude = longitudes[a];
+	longitudes[a] = longitudes[b];
+	longitudes[b] = longitude;
+	double latitude = latitudes[a];
+	latitudes[a] = latitudes[b];
+	latitudes[b] = latitude;
+	int first_point = first_points[a];
+	first_points[a] = first_points[b];
+	first_points[b] = first_point;
+	int last_point = last_points[a];
+	last_points[a] = last_points[b];
+	last_points[b] = last_point;
+    }
+
+    private void grow_groups(int capacity){
+	hashes = Arrays.copyOf(hashes, capacity);
+	longitudes = Arrays.copyOf(longitudes, capacity);
+	latitudes = Arrays.copyOf(latitudes, capacity);
+	counts = Arrays.copyOf(counts, capacity);
+	first_points = Arrays.copyOf(first_points, capacity);
+	last_points = Arrays.copyOf(last_points, capacity);
+	removed_bits = Arrays.copyOf(removed_bits, words_for(capacity));
+    }
+
+    private void grow_points(int capacity){
+	point_longitudes = Arrays.copyOf(point_longitudes, capacity);
+	point_latitudes = Arrays.copyOf(point_latitudes, capacity);
+	point_strings = Arrays.copyOf(point_strings,
+				      capacity * STRINGS_PER_POINT);
+	next_points = Arrays.copyOf(next_points, capacity);
+    }
+}
@@ -0,0 +1,51 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.ClusterPyramid;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupSource;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+
+import java.util.Collection;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+
+/**
+ * The way we've always done it, Solr result grouping on geohash_N for
+ * the points plus stats faceted on geohash_N for the centers, see
+ * GeoSearch.query_locations_in_solr()
+ */
+public class GroupingGroupSource implements GeohashGroupSource {
+    // null for GeoSearch's, otherwise one shard's, see ShardedGroupSource
+    final SolrServer solr;
+
+    public GroupingGroupSource(){
+	this(null);
+    }
+
+    public GroupingGroupSource(SolrServer solr){
+	this.solr = solr;
+    }
+
+    public GeohashGroupStore load_groups(LocationsQuery query,
+					 Collection<String> geohash_cells){
+	QueryResponse rsp = GeoSearch.query_locations_in_solr
+	    (solr != null ? solr : GeoSearch.getSolrServer(), query,
+	     geohash_cells);
+	if (rsp == null)
+	    return null;
+	return GeoSearch.load_groups_from_response
+	    (rsp.getResponse(), query.zoom, query.hash_len, query.max_group_size,
+	     query.stats_enabled);
+    }
+
+    public boolean clustered(){
+	return false;
+    }
+
+    public Long index_version(){
+	return ClusterPyramid.index_version
+	    (solr != null ? solr : GeoSearch.getSolrServer());
+    }
+}
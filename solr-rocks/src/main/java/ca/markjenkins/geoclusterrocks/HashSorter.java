@@ -0,0 +1,56 @@
+package ca.markjenkins.geoclusterrocks;
+
+/**
+ * Sorts parallel columns by a column of long hashes, the way Drupal
+ * geocluster sorts its pre-allocated arrays instead of maintaining a tree
+ * as it goes. Subclasses say how to swap two entries of all of their
+ * columns, the hashes included.
+ */
+public abstract class HashSorter {
+    protected abstract void swap(int a, int b);
+
+    public void sort(long[] hashes, int size){
+	quicksort(hashes, 0, size - 1);
+    }
+
+    private void quicksort(long[] hashes, int lo, int hi){
+	while (hi - lo > 16){
+	    // median of three, so that already (nearly) sorted input, like
+	    // what we get when Solr sorts for us, doesn't hurt
+	    int mid = (lo + hi) >>> 1;
+	    if (hashes[mid] < hashes[lo])
+		swap(mid, lo);
+	    if (hashes[hi] < hashes[lo])
+		swap(hi, lo);
+	    if (hashes[hi] < hashes[mid])
+		swap(hi, mid);
+	    long pivot = hashes[mid];
+
+	    int i = lo;
+	    int j = hi;
+	    while (i <= j){
+		while (hashes[i] < pivot)
+		    i++;
+		while (hashes[j] > pivot)
+		    j--;
+		if (i <= j){
+		    swap(i, j);
+		    i++;
+		    j--;
+		}
+	    }
+	    // recurse on the smaller side, loop on the larger
+	    if (j - lo < hi - i){
+		quicksort(hashes, lo, j);
+		lo = i;
+	    }
+	    else {
+		quicksort(hashes, i, hi);
+		hi = j;
+	    }
+	}
+	for (int i = lo + 1; i <= hi; i++)
+	    for (int j = i; j > lo && hashes[j] < hashes[j-1]; j--)
+		swap(j, j-1);
+    }
+}
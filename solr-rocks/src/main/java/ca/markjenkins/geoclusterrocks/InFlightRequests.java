@@ -0,0 +1,110 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashCellCache;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GeoSearch requests that are being worked on right now, so that when a
+ * crowd shows up for the same view at once (a shared link, a crawler)
+ * only the first of them goes to Solr and clusters. Everyone else asking
+ * for the same thing while that's going on waits for it and gets the
+ * same clustered groups.
+ *
+ * This is not a cache, a request is forgotten as soon as it's done, so
+ * nobody sees anything older than they would have otherwise.
+ * GeohashCellCache and ClusterPyramid take care of requests that aren't
+ * at the same time.
+ *
+ * Nothing touches a GeohashGroupStore once it's clustered, so each of
+ * them can still stream its own response from it (GeoJsonRequestHandler,
+ * VectorTileRequestHandler) rather than us making one in memory to share.
+ * Set geoclusterrocks.single_flight to false to turn this off.
+ */
+public class InFlightRequests {
+    public static final String SINGLE_FLIGHT_PROPERTY =
+	"geoclusterrocks.single_flight";
+
+    static final boolean SINGLE_FLIGHT =
+	!"false".equals(System.getProperty(SINGLE_FLIGHT_PROPERTY));
+
+    static Logger log_l4 = LoggerFactory.getLogger( InFlightRequests.class );
+
+    static final ConcurrentMap<String, FutureTask<GeohashGroupStore>>
+	in_flight =
+	new ConcurrentHashMap<String, FutureTask<GeohashGroupStore>>();
+
+    /**
+     * Everything about query that changes the clustered groups, written
+     * the same way no matter how the request put it (bounds as numbers,
+     * filters sorted, see GeohashCellCache.build_filter_signature()).
+     * Not the format, json and mvt are written from the same groups
+     */
+    public static String key(LocationsQuery query){
+	StringBuilder key = new StringBuilder();
+	key.append(query.zoom)
+	    .append('|').append(query.distance_threshold).append('|');
+	for (double bound: GeoSearch.parse_bounds(query.bounds))
+	    key.append(bound).append(',');
+	key.append(GeohashCellCache.build_filter_signature
+		   (query.icon_types_to_ignore, query.match_criteria,
+		    query.search_text_words, query.stats_enabled,
+		    query.max_group_size) );
+	return key.toString();
+    }
+
+    /**
+     * The groups from make_groups, unless there's already a request with
+     * the same key being worked on, in which case we wait for it and use
+     * its groups instead. These are shared, so only read them
+     */
+    public static GeohashGroupStore clustered
+	(String key, Callable<GeohashGroupStore> make_groups)
+	throws IOException {
+	FutureTask<GeohashGroupStore> task =
+	    new FutureTask<GeohashGroupStore>(make_groups);
+	FutureTask<GeohashGroupStore> running =
+	    in_flight.putIfAbsent(key, task);
+	if (running == null){
+	    try {
+		task.run();
+	    }
+	    finally {
+		in_flight.remove(key, task);
+	    }
+	    running = task;
+	}
+	else
+	    log_l4.debug( "waiting on the same request already in flight: " +
+			  key );
+
+	try {
+	    return running.get();
+	}
+	catch (InterruptedException e){
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted waiting on " + key, e);
+	}
+	catch (ExecutionException e){
+	    Throwable cause = e.getCause();
+	    if (cause instanceof IOException)
+		throw (IOException)cause;
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException)cause;
+	    if (cause instanceof Error)
+		throw (Error)cause;
+	    throw new IOException(cause);
+	}
+    }
+}
@@ -0,0 +1,67 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything about a GeoSearch request that decides which locations we
+ * load and how they're grouped, so it can be handed to a
+ * GeohashGroupSource in one piece
+ */
+public class LocationsQuery {
+    public final String bounds;
+    public final int zoom;
+    public final String[] types_to_exclude;
+    public final int[] icon_types_to_ignore;
+    public final boolean stats_enabled;
+    public final int max_group_size;
+    public final int distance_threshold;
+    public final Map<String, List<String>> match_criteria;
+    public final List<String> search_text_words;
+    public final String require_type;
+
+    // the geohash length we group on for this zoom and distance_threshold
+    public final int hash_len;
+
+    /**
+     * Throws DistanceThresholdOutOfRangeException if we don't allow
+     * distance_threshold
+     */
+    public LocationsQuery(String bounds, int zoom,
+			  String[] types_to_exclude,
+			  int[] icon_types_to_ignore,
+			  boolean stats_enabled, int max_group_size,
+			  int distance_threshold,
+			  Map<String, List<String>> match_criteria,
+			  List<String> search_text_words,
+			  String require_type){
+	this.bounds = bounds;
+	this.zoom = zoom;
+	this.types_to_exclude = types_to_exclude;
+	this.icon_types_to_ignore = icon_types_to_ignore;
+	this.stats_enabled = stats_enabled;
+	this.max_group_size = max_group_size;
+	this.distance_threshold = distance_threshold;
+	this.match_criteria = match_criteria;
+	this.search_text_words = search_text_words;
+	this.require_type = require_type;
+	hash_len = Clustering.get_geohash_length(distance_threshold, zoom);
+    }
+
+    /**
+     * The same query for other bounds
+     */
+    public LocationsQuery with_bounds(String bounds){
+	return new LocationsQuery(bounds, zoom, types_to_exclude,
+				  icon_types_to_ignore, stats_enabled,
+				  max_group_size, distance_threshold,
+				  match_criteria, search_text_words,
+				  require_type);
+    }
+
+    public String geohash_field(){
+	return "geohash_" + hash_len;
+    }
+}
@@ -0,0 +1,153 @@
+package ca.markjenkins.geoclusterrocks;
+
+/**
+ * Geohashes bit-packed into longs, 5 bits per base 32 character with the
+ * first character in the most significant bits used.
+ *
+ * Geohashes of the same length sort the same way as their longs do
+ * because the base 32 alphabet is in ascending character order, which
+ * is what lets GeohashGroupStore keep its groups in a sorted long[].
+ * A long holds up to 12 characters, which is as long as our geohash_N
+ * fields go.
+ *
+ * Because a geohash interleaves longitude and latitude bits (starting
+ * with longitude) we can find neighbouring cells with integer arithmetic
+ * on just the longitude or just the latitude bits, no Strings required.
+ * Going off the east or west edge of the map wraps around, there is
+ * nothing (NO_NEIGHBOUR) beyond the north or south poles. That's where
+ * we differ from GeoHash.top() and bottom(), they wrap there too (see
+ * NeighbourBenchmark).
+ */
+public class LongGeohash {
+    public static final int MAX_HASH_LENGTH = 12;
+    public static final int BITS_PER_CHAR = 5;
+
+    public static final long NO_NEIGHBOUR = -1;
+
+    static final long EVEN_BITS = 0x5555555555555555L;
+    static final long ODD_BITS = 0xAAAAAAAAAAAAAAAAL;
+
+    static final char[] BASE32 =
+	"0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+    static final int[] BASE32_DECODE = new int['z' + 1];
+    static {
+	for (int i = 0; i < BASE32_DECODE.length; i++)
+	    BASE32_DECODE[i] = -1;
+	for (int i = 0; i < BASE32.length; i++)
+	    BASE32_DECODE[BASE32[i]] = i;
+    }
+
+    public static long encode(String geohash){
+	int hash_len = geohash.length();
+	if (hash_len > MAX_HASH_LENGTH)
+	    throw new IllegalArgumentException
+		("geohash " + geohash + " is longer than " + MAX_HASH_LENGTH);
+	long result = 0;
+	for (int i = 0; i < hash_len; i++){
+	    char c = geohash.charAt(i);
+	    int value = c < BASE32_DECODE.length ? BASE32_DECODE[c] : -1;
+	    if (value < 0)
+		throw new IllegalArgumentException
+		    ("not a geohash character '" + c + "' in " + geohash);
+	    result = (result << BITS_PER_CHAR) | value;
+	}
+	return result;
+    }
+
+    /**
+     * The geohash of length hash_len for a point, computed the same way
+     * as always, by halving the longitude and latitude ranges and taking
+     * the half the point is in, a longitude bit first
+     */
+    public static long encode(double latitude, double longitude,
+			      int hash_len){
+	double min_latitude = -90;
+	double max_latitude = 90;
+	double min_longitude = -180;
+	double max_longitude = 180;
+	long result = 0;
+	int bits = hash_len * BITS_PER_CHAR;
+	for (int i = 0; i < bits; i++){
+	    result <<= 1;
+	    if ((i & 1) == 0){
+		double mid = (min_longitude + max_longitude) / 2;
+		if (longitude >= mid){
+		    result |= 1;
+		    min_longitude = mid;
+		}
+		else
+		    max_longitude = mid;
+	    }
+	    else {
+		double mid = (min_latitude + max_latitude) / 2;
+		if (latitude >= mid){
+		    result |= 1;
+		    min_latitude = mid;
+		}
+		else
+		    max_latitude = mid;
+	    }
+	}
+	return result;
+    }
+
+    public static String decode(long hash, int hash_len){
+	char[] chars = new char[hash_len];
+	for (int i = hash_len - 1; i >= 0; i--){
+	    chars[i] = BASE32[(int)(hash & 0x1f)];
+	    hash >>>= BITS_PER_CHAR;
+	}
+	return new String(chars);
+    }
+
+    /**
+     * The bits of a geohash of length hash_len that are longitude bits
+     */
+    public static long longitude_mask(int hash_len){
+	int bits = hash_len * BITS_PER_CHAR;
+	long all_bits = (1L << bits) - 1;
+	// the most significant bit is always a longitude bit
+	return ( (bits & 1) == 1 ? EVEN_BITS : ODD_BITS ) & all_bits;
+    }
+
+    public static long latitude_mask(int hash_len){
+	return ((1L << (hash_len * BITS_PER_CHAR)) - 1) &
+	    ~longitude_mask(hash_len);
+    }
+
+    /**
+     * Add one to the bits of hash in mask, leaving the others alone.
+     * Setting all the bits outside of mask lets the carry jump over them.
+     */
+    static long increment(long hash, long mask){
+	return (((hash | ~mask) + 1) & mask) | (hash & ~mask);
+    }
+
+    static long decrement(long hash, long mask){
+	return (((hash & mask) - 1) & mask) | (hash & ~mask);
+    }
+
+    public static long top(long hash, long latitude_mask){
+	if (hash == NO_NEIGHBOUR || (hash & latitude_mask) == latitude_mask)
+	    return NO_NEIGHBOUR;
+	return increment(hash, latitude_mask);
+    }
+
+    public static long bottom(long hash, long latitude_mask){
+	if (hash == NO_NEIGHBOUR || (hash & latitude_mask) == 0)
+	    return NO_NEIGHBOUR;
+	return decrement(hash, latitude_mask);
+    }
+
+    public static long right(long hash, long longitude_mask){
+	if (hash == NO_NEIGHBOUR)
+	    return NO_NEIGHBOUR;
+	return increment(hash, longitude_mask);
+    }
+
+    public static long left(long hash, long longitude_mask){
+	if (hash == NO_NEIGHBOUR)
+	    return NO_NEIGHBOUR;
+	return decrement(hash, longitude_mask);
+    }
+}
@@ -0,0 +1,219 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeoSearchMetrics;
+import ca.markjenkins.geoclusterrocks.GeohashCellCache;
+import ca.markjenkins.geoclusterrocks.GeohashGroupSource;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+import ca.markjenkins.geoclusterrocks.PointColumns;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups made straight from a PointColumns file instead of by Solr. The
+ * points in a geohash cell of any length are next to each other in the
+ * file, so for each cell covering the bounds it's a binary search and a
+ * scan of the points in it, adding up counts and centers as we go.
+ *
+ * The file has no text to search, so queries with match criteria or
+ * search text go to fallback (Solr) instead. Ignored icon types we can
+ * do ourselves. Centers are always the means, like with the stats.
+ *
+ * Our index_version() is the points file's, when it's replaced (write a
+ * new one and rename it over the old, don't write into the one we have
+ * mapped) we open the new one and ClusterPyramid starts over. Solr
+ * commits don't count, the cells of text searches that went to fallback
+ * are only as fresh as geoclusterrocks.cache.expire_seconds then.
+ */
+public class MappedGroupSource implements GeohashGroupSource {
+    // null if we were just handed our points
+    final File points_file;
+    volatile PointColumns points;
+    // the points_file's last modified time and size when we opened it
+    long points_stamp;
+    final GeohashGroupSource fallback;
+
+    static Logger log_l4 = LoggerFactory.getLogger( MappedGroupSource.class );
+
+    public MappedGroupSource(PointColumns points,
+			     GeohashGroupSource fallback){
+	this.points_file = null;
+	this.points = points;
+	this.fallback = fallback;
+    }
+
+    public MappedGroupSource(File points_file, GeohashGroupSource fallback)
+	throws IOException {
+	this.points_file = points_file;
+	this.points_stamp = stamp(points_file);
+	this.points = PointColumns.open(points_file);
+	this.fallback = fallback;
+    }
+
+    static long stamp(File file){
+	return file.lastModified() * 31 + file.length();
+    }
+
+    public GeohashGroupStore load_groups(LocationsQuery query,
+					 Collection<String> geohash_cells){
+	if (!query.search_text_words.isEmpty())
+	    return fallback.load_groups(query, geohash_cells);
+	for (List<String> matches: query.match_criteria.values())
+	    if (!matches.isEmpty())
+		return fallback.load_groups(query, geohash_cells);
+
+	long start = System.nanoTime();
+	// the same points all the way through, even if they're replaced
+	PointColumns points = this.points;
+	int hash_len = query.hash_len;
+	GeohashGroupStore geohash_groups =
+	    new GeohashGroupStore(hash_len, query.max_group_size, 0);
+	double[] bounds = GeoSearch.parse_bounds(query.bounds);
+	if (geohash_cells != null){
+	    for (String cell: geohash_cells)
+		add_groups(points, geohash_groups, LongGeohash.encode(cell),
+			   hash_len, bounds, query.icon_types_to_ignore);
+	}
+	else {
+	    // shorter cells than we're grouping on if there'd be too many
+	    Collection<String> covering = null;
+	    int cover_len = hash_len;
+	    for (; covering == null && cover_len > 0; cover_len--)
+		covering = covering_cells(bounds, cover_len);
+	    cover_len++;
+	    if (covering == null){
+		// bounds that make no sense
+		GeoSearchMetrics.LOAD_GROUPS.record(query.zoom, start);
+		return geohash_groups;
+	    }
+	    for (String cell: covering)
+		add_groups(points, geohash_groups, LongGeohash.encode(cell),
+			   cover_len, bounds, query.icon_types_to_ignore);
+	}
+	geohash_groups.sort();
+	GeoSearchMetrics.LOAD_GROUPS.record(query.zoom, start);
+	return geohash_groups;
+    }
+
+    /**
+     * The cells of cell_len covering bounds, null if there are too many.
+     * Bounds across the antimeridian we cover on each side of it, one set
+     * so a cell that reaches both sides doesn't get its points twice
+     */
+    static Collection<String> covering_cells(double[] bounds, int cell_len){
+	if (bounds[0] <= bounds[2])
+	    return GeohashCellCache.covering_cells
+		(bounds[1], bounds[0], bounds[3], bounds[2], cell_len);
+	Collection<String> west = GeohashCellCache.covering_cells
+	    (bounds[1], bounds[0], bounds[3], 180, cell_len);
+	Collection<String> east = GeohashCellCache.covering_cells
+	    (bounds[1], -180, bounds[3], bounds[2], cell_len);
+	if (west == null || east == null)
+	    return null;
+	Set<String> covering = new LinkedHashSet<String>(west);
+	covering.addAll(east);
+	return covering;
+    }
+
+    /**
+     * Add a group for every cell of geohash_groups' length within cell
+     * (cell_len long) with points in bounds (or any points if bounds is
+     * null). Bounds with west past east go across the antimeridian
+     */
+    static void add_groups(PointColumns points,
+			   GeohashGroupStore geohash_groups, long cell,
+			   int cell_len, double[] bounds,
+			   int[] icon_types_to_ignore){
+	int full_shift =
+	    (LongGeohash.MAX_HASH_LENGTH - cell_len) * LongGeohash.BITS_PER_CHAR;
+	int group_shift =
+	    (LongGeohash.MAX_HASH_LENGTH - geohash_groups.getHashLength()) *
+	    LongGeohash.BITS_PER_CHAR;
+	int end = points.find_from((cell + 1) << full_shift);
+	int point = points.find_from(cell << full_shift);
+	while (point < end){
+	    long group_hash = points.getHash(point) >>> group_shift;
+	    int group_start = point;
+	    long count = 0;
+	    double longitude_sum = 0;
+	    double latitude_sum = 0;
+	    for (; point < end &&
+		     points.getHash(point) >>> group_shift == group_hash;
+		 point++){
+		if (!wanted(points, point, bounds, icon_types_to_ignore))
+		    continue;
+		count++;
+		longitude_sum += points.getLongitude(point);
+		latitude_sum += points.getLatitude(point);
+	    }
+	    if (count == 0)
+		continue;
+	    int row = geohash_groups.add_group(group_hash, count,
+					       longitude_sum / count,
+					       latitude_sum / count);
+	    if (count <= geohash_groups.force_cluster_threshold)
+		for (int p = group_start; p < point; p++)
+		    if (wanted(points, p, bounds, icon_types_to_ignore))
+			geohash_groups.add_point
+			    (row, points.getName(p), points.getOrgId(p),
+			     points.getIconGroup(p),
+			     points.getLongitude(p), points.getLatitude(p));
+	}
+    }
+
+    static boolean wanted(PointColumns points, int point, double[] bounds,
+			  int[] icon_types_to_ignore){
+	if (bounds != null){
+	    double longitude = points.getLongitude(point);
+	    double latitude = points.getLatitude(point);
+	    if (latitude < bounds[1] || latitude > bounds[3])
+		return false;
+	    if (bounds[0] <= bounds[2] ?
+		longitude < bounds[0] || longitude > bounds[2] :
+		longitude < bounds[0] && longitude > bounds[2])
+		return false;
+	}
+	if (icon_types_to_ignore != null){
+	    int icon_group_id = points.getIconGroupId(point);
+	    for (int icon_type: icon_types_to_ignore)
+		if (icon_group_id == icon_type)
+		    return false;
+	}
+	return true;
+    }
+
+    public boolean clustered(){
+	return false;
+    }
+
+    /**
+     * points_file's last modified time and size, opening it again first
+     * if they've changed since we did
+     */
+    public synchronized Long index_version(){
+	if (points_file == null)
+	    return 0L;
+	long stamp = stamp(points_file);
+	if (stamp != points_stamp){
+	    try {
+		points = PointColumns.open(points_file);
+		points_stamp = stamp;
+	    }
+	    catch (IOException e){
+		// half written or gone, we keep what we have
+		log_l4.warn( "unable to open " + points_file, e );
+	    }
+	}
+	return points_stamp;
+    }
+}
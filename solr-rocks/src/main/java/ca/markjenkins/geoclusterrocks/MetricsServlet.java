@@ -0,0 +1,34 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeoSearchMetrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * GeoSearchMetrics as plain text for whoever doesn't have JMX handy,
+ * ?reset=true starts them over after reporting
+ */
+public class MetricsServlet extends HttpServlet {
+    @Override
+    protected void doGet(HttpServletRequest request,
+			 HttpServletResponse response)
+	throws ServletException, IOException {
+	response.setContentType("text/plain");
+	response.setCharacterEncoding("UTF-8");
+	response.setHeader("Cache-Control", "no-cache");
+	PrintWriter out = response.getWriter();
+	GeoSearchMetrics.report(out);
+	out.flush();
+	if ("true".equals(request.getParameter("reset"))){
+	    for (GeoSearchMetrics.Stage stage: GeoSearchMetrics.stages)
+		stage.reset();
+	    GeoSearchMetrics.volume.reset();
+	}
+    }
+}
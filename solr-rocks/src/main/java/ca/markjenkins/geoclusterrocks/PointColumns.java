@@ -0,0 +1,387 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.HashSorter;
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+import ca.markjenkins.geoclusterrocks.PointFeatures;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Every location's position, name, org_id and icon_group_id (all that
+ * GeoSearch needs of them when nothing but the bounds narrows them down)
+ * in a file of columns sorted by full length geohash, memory-mapped so
+ * it's there as soon as we open it and it lives outside of the heap.
+ *
+ * The file is a header
+ *
+ *   int MAGIC, int VERSION, int point count, int string count,
+ *   long string heap bytes
+ *
+ * followed by the columns, each one as many entries as there are points
+ *
+ *   long geohash (LongGeohash, MAX_HASH_LENGTH characters)
+ *   double longitude
+ *   double latitude
+ *   int name, int org_id (string numbers, NO_STRING for none)
+ *   int icon_group_id (NO_ICON_GROUP for none)
+ *
+ * and then the strings, an int offset into the heap for each plus one
+ * for the end of the last, then the heap of UTF-8 bytes. Every distinct
+ * string is only in there once.
+ *
+ * Build one from US_2000_entries.xml or a Solr export (an XML response
+ * from /select with the fields above) with
+ *
+ *   java -cp ... ca.markjenkins.geoclusterrocks.PointColumns in.xml out
+ */
+public class PointColumns {
+    static final int MAGIC = 0x47435043; // GCPC
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 24;
+
+    public static final int NO_STRING = -1;
+    public static final int NO_ICON_GROUP = Integer.MIN_VALUE;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final int size;
+    final LongBuffer hashes;
+    final DoubleBuffer longitudes;
+    final DoubleBuffer latitudes;
+    final IntBuffer names;
+    final IntBuffer org_ids;
+    final IntBuffer icon_group_ids;
+    final IntBuffer string_offsets;
+    final ByteBuffer string_heap;
+
+    PointColumns(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    ByteBuffer header = channel.map
+		(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+	    if (header.getInt() != MAGIC || header.getInt() != VERSION)
+		throw new IOException(file + " isn't a points file we know");
+	    size = header.getInt();
+	    int string_count = header.getInt();
+	    long heap_bytes = header.getLong();
+
+	    // every column gets its own mapping, so no one of them has to
+	    // fit the whole file into the 2GB a mapping can be
+	    long position = HEADER_BYTES;
+	    hashes = map(channel, position, size * 8L).asLongBuffer();
+	    position += size * 8L;
+	    longitudes = map(channel, position, size * 8L).asDoubleBuffer();
+	    position += size * 8L;
+	    latitudes = map(channel, position, size * 8L).asDoubleBuffer();
+	    position += size * 8L;
+	    names = map(channel, position, size * 4L).asIntBuffer();
+	    position += size * 4L;
+	    org_ids = map(channel, position, size * 4L).asIntBuffer();
+	    position += size * 4L;
+	    icon_group_ids = map(channel, position, size * 4L).asIntBuffer();
+	    position += size * 4L;
+	    string_offsets = map(channel, position, (string_count + 1) * 4L)
+		.asIntBuffer();
+	    position += (string_count + 1) * 4L;
+	    string_heap = map(channel, position, heap_bytes);
+	}
+	finally {
+	    // the mappings stay good without it
+	    raf.close();
+	}
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position,
+				  long bytes) throws IOException {
+	return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+    }
+
+    public static PointColumns open(File file) throws IOException {
+	return new PointColumns(file);
+    }
+
+    public int size(){
+	return size;
+    }
+
+    public long getHash(int point){
+	return hashes.get(point);
+    }
+
+    public double getLongitude(int point){
+	return longitudes.get(point);
+    }
+
+    public double getLatitude(int point){
+	return latitudes.get(point);
+    }
+
+    public int getIconGroupId(int point){
+	return icon_group_ids.get(point);
+    }
+
+    /**
+     * The first point with a hash of at least hash, size() if there's none
+     */
+    public int find_from(long hash){
+	int lo = 0;
+	int hi = size;
+	while (lo < hi){
+	    int mid = (lo + hi) >>> 1;
+	    if (hashes.get(mid) < hash)
+		lo = mid + 1;
+	    else
+		hi = mid;
+	}
+	return lo;
+    }
+
+    String string(int string_number){
+	if (string_number == NO_STRING)
+	    return null;
+	int start = string_offsets.get(string_number);
+	byte[] bytes = new byte[string_offsets.get(string_number + 1) - start];
+	// a duplicate so that we don't share a position with other threads
+	ByteBuffer heap = string_heap.duplicate();
+	heap.position(start);
+	heap.get(bytes);
+	return new String(bytes, UTF_8);
+    }
+
+    public String getName(int point){
+	return string(names.get(point));
+    }
+
+    public String getOrgId(int point){
+	return string(org_ids.get(point));
+    }
+
+    /**
+     * icon_group_id as the String it was in Solr, null for none
+     */
+    public String getIconGroup(int point){
+	int icon_group_id = icon_group_ids.get(point);
+	return icon_group_id == NO_ICON_GROUP ?
+	    null : String.valueOf(icon_group_id);
+    }
+
+    /**
+     * Points on their way into a file, in whatever order they come
+     */
+    public static class Builder extends HashSorter {
+	int size = 0;
+	long[] hashes = new long[1024];
+	double[] longitudes = new double[1024];
+	double[] latitudes = new double[1024];
+	int[] names = new int[1024];
+	int[] org_ids = new int[1024];
+	int[] icon_group_ids = new int[1024];
+
+	final Map<String, Integer> string_numbers =
+	    new HashMap<String, Integer>();
+	final List<String> strings = new ArrayList<String>();
+
+	int string_number(String s){
+	    if (s == null)
+		return NO_STRING;
+	    Integer number = string_numbers.get(s);
+	    if (number == null){
+		number = strings.size();
+		strings.add(s);
+		string_numbers.put(s, number);
+	    }
+	    return number;
+	}
+
+	public void add(double longitude, double latitude, String name,
+			String org_id, int icon_group_id){
+	    if (size == hashes.length){
+		int capacity = size * 2;
+		hashes = Arrays.copyOf(hashes, capacity);
+		longitudes = Arrays.copyOf(longitudes, capacity);
+		latitudes = Arrays.copyOf(latitudes, capacity);
+		names = Arrays.copyOf(names, capacity);
+		org_ids = Arrays.copyOf(org_ids, capacity);
+		icon_group_ids = Arrays.copyOf(icon_group_ids, capacity);
+	    }
+	    hashes[size] = LongGeohash.encode(latitude, longitude,
+					      LongGeohash.MAX_HASH_LENGTH);
+	    longitudes[size] = longitude;
+	    latitudes[size] = latitude;
+	    names[size] = string_number(name);
+	    org_ids[size] = string_number(org_id);
+	    icon_group_ids[size] = icon_group_id;
+	    size++;
+	}
+
+	protected void swap(int a, int b){
+	    long hash = hashes[a];
+	    hashes[a] = hashes[b];
+	    hashes[b] = hash;
+	    double longitude = longitudes[a];
+	    longitudes[a] = longitudes[b];
+	    longitudes[b] = longitude;
+	    double latitude = latitudes[a];
+	    latitudes[a] = latitudes[b];
+	    latitudes[b] = latitude;
+	    int name = names[a];
+	    names[a] = names[b];
+	    names[b] = name;
+	    int org_id = org_ids[a];
+	    org_ids[a] = org_ids[b];
+	    org_ids[b] = org_id;
+	    int icon_group_id = icon_group_ids[a];
+	    icon_group_ids[a] = icon_group_ids[b];
+	    icon_group_ids[b] = icon_group_id;
+	}
+
+	public void write(File file) throws IOException {
+	    sort(hashes, size);
+	    byte[][] string_bytes = new byte[strings.size()][];
+	    long heap_bytes = 0;
+	    for (int i = 0; i < string_bytes.length; i++){
+		string_bytes[i] = strings.get(i).getBytes(UTF_8);
+		heap_bytes += string_bytes[i].length;
+	    }
+	    if (heap_bytes > Integer.MAX_VALUE)
+		throw new IOException("too many strings for one points file");
+
+	    DataOutputStream out = new DataOutputStream
+		(new BufferedOutputStream(new FileOutputStream(file), 65536));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(size);
+		out.writeInt(string_bytes.length);
+		out.writeLong(heap_bytes);
+		for (int i = 0; i < size; i++)
+		    out.writeLong(hashes[i]);
+		for (int i = 0; i < size; i++)
+		    out.writeDouble(longitudes[i]);
+		for (int i = 0; i < size; i++)
+		    out.writeDouble(latitudes[i]);
+		for (int i = 0; i < size; i++)
+		    out.writeInt(names[i]);
+		for (int i = 0; i < size; i++)
+		    out.writeInt(org_ids[i]);
+		for (int i = 0; i < size; i++)
+		    out.writeInt(icon_group_ids[i]);
+		int offset = 0;
+		for (byte[] bytes: string_bytes){
+		    out.writeInt(offset);
+		    offset += bytes.length;
+		}
+		out.writeInt(offset);
+		for (byte[] bytes: string_bytes)
+		    out.write(bytes);
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+    }
+
+    /**
+     * Add every doc in xml to builder, which can be Solr update XML
+     * (<field name="...">) like US_2000_entries.xml or a Solr XML response
+     * (<str name="...">, <double name="..."> and so on). Docs without a
+     * position are left out
+     */
+    public static void read_docs(InputStream in, Builder builder)
+	throws XMLStreamException {
+	XMLStreamReader xml =
+	    XMLInputFactory.newInstance().createXMLStreamReader(in);
+	Map<String, String> fields = new HashMap<String, String>();
+	while (xml.hasNext()){
+	    int event = xml.next();
+	    if (event == XMLStreamConstants.END_ELEMENT &&
+		xml.getLocalName().equals("doc")){
+		add_doc(fields, builder);
+		fields.clear();
+	    }
+	    if (event != XMLStreamConstants.START_ELEMENT)
+		continue;
+	    String field = xml.getAttributeValue(null, "name");
+	    if (field != null &&
+		(field.equals(PointFeatures.NAME_FIELD) ||
+		 field.equals(PointFeatures.ORG_ID_FIELD) ||
+		 field.equals(PointFeatures.ICON_GROUP_FIELD) ||
+		 field.equals(PointFeatures.LOCATION_FIELD) ||
+		 field.equals(PointFeatures.LATITUDE_FIELD) ||
+		 field.equals(PointFeatures.LONGITUDE_FIELD) )){
+		// a multi-valued field in a response, we take the first
+		if (xml.getLocalName().equals("arr"))
+		    xml.nextTag();
+		fields.put(field, xml.getElementText());
+	    }
+	}
+	xml.close();
+    }
+
+    static void add_doc(Map<String, String> fields, Builder builder){
+	double longitude;
+	double latitude;
+	if (fields.containsKey(PointFeatures.LONGITUDE_FIELD) &&
+	    fields.containsKey(PointFeatures.LATITUDE_FIELD)){
+	    longitude = Double.parseDouble
+		(fields.get(PointFeatures.LONGITUDE_FIELD));
+	    latitude = Double.parseDouble
+		(fields.get(PointFeatures.LATITUDE_FIELD));
+	}
+	else if (fields.containsKey(PointFeatures.LOCATION_FIELD)){
+	    String[] location_parts =
+		fields.get(PointFeatures.LOCATION_FIELD).split(", ");
+	    longitude = Double.parseDouble(location_parts[1]);
+	    latitude = Double.parseDouble(location_parts[0]);
+	}
+	else
+	    return;
+	String icon_group_id = fields.get(PointFeatures.ICON_GROUP_FIELD);
+	builder.add(longitude, latitude, fields.get(PointFeatures.NAME_FIELD),
+		    fields.get(PointFeatures.ORG_ID_FIELD),
+		    icon_group_id == null ?
+		    NO_ICON_GROUP : Integer.parseInt(icon_group_id.trim()) );
+    }
+
+    public static void main(String[] args)
+	throws IOException, XMLStreamException {
+	if (args.length != 2){
+	    System.err.println("usage: PointColumns docs.xml points_file");
+	    System.exit(1);
+	}
+	Builder builder = new Builder();
+	InputStream in = new FileInputStream(args[0]);
+	try {
+	    read_docs(in, builder);
+	}
+	finally {
+	    in.close();
+	}
+	builder.write(new File(args[1]));
+	System.out.println(builder.size + " points written to " + args[1]);
+    }
+}
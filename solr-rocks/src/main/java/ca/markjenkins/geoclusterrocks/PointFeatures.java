@@ -0,0 +1,113 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+import org.geojson.Feature;
+import org.geojson.Point;
+
+/**
+ * The Feature we show for a single point on the map, and how we get a
+ * point from (and back into) a Solr doc. Used both in the webapp and by
+ * solr.GeoclusterComponent inside of Solr
+ */
+public class PointFeatures {
+    public static final String NAME_FIELD = "name";
+    public static final String ORG_ID_FIELD = "org_id";
+    public static final String ICON_GROUP_FIELD = "icon_group_id";
+    public static final String LOCATION_FIELD = "location";
+    public static final String LATITUDE_FIELD = "latitude";
+    public static final String LONGITUDE_FIELD = "longitude";
+
+    // what GeoSearch asks Solr for of each doc (its fl), just what we
+    // show. latitude and longitude aren't stored, field() gives us them
+    // from docValues, as numbers rather than a location to split up
+    public static final String[] SOLR_FIELD_LIST = {
+	NAME_FIELD, ORG_ID_FIELD, ICON_GROUP_FIELD,
+	LONGITUDE_FIELD + ":field(" + LONGITUDE_FIELD + ")",
+	LATITUDE_FIELD + ":field(" + LATITUDE_FIELD + ")" };
+
+    public static Feature point_feature(String name, String org_id,
+					String icon_group_id,
+					double longitude, double latitude){
+	Feature f = new Feature();
+	f.setProperty(GeoSearch.POPUP_CONTENT_FEATURE_PROPERTY, name);
+	f.setProperty(GeoSearch.ORG_ID_FEATURE_PROPERTY, org_id);
+	if ( null != icon_group_id )
+	    f.setProperty(GeoSearch.ICON_GROUP_FEATURE_PROPERTY, icon_group_id);
+	f.setGeometry(new Point(longitude, latitude));
+	return f;
+    }
+
+    /**
+     * Add doc to row of store as a point, its position is either in
+     * latitude and longitude fields (how GeoclusterComponent and
+     * SOLR_FIELD_LIST give us points) or, from a Solr that wasn't asked
+     * for those, in the stored location, "lat, lon". Returns the point's
+     * number
+     */
+    public static int add_point(GeohashGroupStore store, int row,
+				SolrDocument doc){
+	double longitude;
+	double latitude;
+	Object longitude_value = doc.getFirstValue(LONGITUDE_FIELD);
+	if (longitude_value != null){
+	    longitude = ((Number)longitude_value).doubleValue();
+	    latitude =
+		((Number)doc.getFirstValue(LATITUDE_FIELD)).doubleValue();
+	}
+	else {
+	    String location = (String)doc.getFirstValue(LOCATION_FIELD);
+	    String[] location_parts = location.split(", ");
+	    longitude = Double.parseDouble(location_parts[1]);
+	    latitude = Double.parseDouble(location_parts[0]);
+	}
+	return store.add_point(row,
+			       (String) doc.getFirstValue(NAME_FIELD),
+			       (String) doc.getFirstValue(ORG_ID_FIELD),
+			       (String) doc.getFirstValue(ICON_GROUP_FIELD),
+			       longitude, latitude );
+    }
+
+    /**
+     * The opposite of add_point(), point of store as a doc with the
+     * position in latitude and longitude fields
+     */
+    public static SolrDocument to_doc(GeohashGroupStore store, int point){
+	SolrDocument doc = new SolrDocument();
+	doc.setField(NAME_FIELD, store.point_string
+		     (point, GeohashGroupStore.NAME_STRING));
+	doc.setField(ORG_ID_FIELD, store.point_string
+		     (point, GeohashGroupStore.ORG_ID_STRING));
+	String icon_group_id = store.point_string
+	    (point, GeohashGroupStore.ICON_GROUP_STRING);
+	if (icon_group_id != null)
+	    doc.setField(ICON_GROUP_FIELD, icon_group_id);
+	doc.setField(LATITUDE_FIELD, store.point_latitudes[point]);
+	doc.setField(LONGITUDE_FIELD, store.point_longitudes[point]);
+	return doc;
+    }
+
+    /**
+     * All of the points of row as docs, with numFound set
+     */
+    public static SolrDocumentList to_docs(GeohashGroupStore store, int row){
+	SolrDocumentList docs = new SolrDocumentList();
+	for (int p = store.first_points[row]; p != GeohashGroupStore.NO_POINTS;
+	     p = store.next_points[p])
+	    docs.add(to_doc(store, p));
+	docs.setNumFound(docs.size());
+	return docs;
+    }
+
+    public static double longitude(Feature f){
+	return ((Point)f.getGeometry()).getCoordinates().getLongitude();
+    }
+
+    public static double latitude(Feature f){
+	return ((Point)f.getGeometry()).getCoordinates().getLatitude();
+    }
+}
@@ -1,6 +1,7 @@
 package ca.markjenkins.geoclusterrocks;
 
 import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
 
 import java.util.ArrayList;
 
@@ -8,176 +9,126 @@ import org.geojson.FeatureCollection;
 import org.geojson.Feature;
 import org.geojson.Point;
 
-import org.apache.solr.common.SolrDocumentList;
-import org.apache.solr.common.SolrDocument;
+/**
+ * One geohash group, a row of a GeohashGroupStore.
+ *
+ * A group is either a single point, a collection of grouped points that
+ * are close together or a cluster where all we have is a count and a
+ * center. This is just a view of the store's columns, it doesn't hold
+ * any state of its own besides which row we're looking at, so one of
+ * these can be moved along the rows with moveTo() instead of making a
+ * new one for every row.
+ */
+public class PointGroup {
+    final GeohashGroupStore store;
+    int row;
 
-import com.github.davidmoten.geo.GeoHash;
-import com.github.davidmoten.geo.LatLong;
+    PointGroup(GeohashGroupStore store, int row){
+	this.store = store;
+	this.row = row;
+    }
 
-public class PointGroup {
-    ArrayList<Feature> points;
-    int force_cluster_threshold;
-    Feature cluster_feature;
-    Point center;
-
-    public PointGroup(SolrDocumentList docs, int set_force_cluster_threshold,
-		      boolean stats_enabled, String hash_prefix,
-		      Point new_center){
-	points = new ArrayList<Feature>();
-	force_cluster_threshold = set_force_cluster_threshold;
-	cluster_feature = null;
-	center = new_center;
-
-	long docs_num_found = docs.getNumFound();
-	if (docs_num_found >= 1 &&
-	    docs_num_found <= force_cluster_threshold){
-	    for (SolrDocument doc: docs){
-		Feature f = new Feature();
-
-		f.setProperty(GeoSearch.POPUP_CONTENT_FEATURE_PROPERTY,
-			      (String) doc.getFirstValue("name") );
-		f.setProperty(GeoSearch.ORG_ID_FEATURE_PROPERTY,
-			      (String) doc.getFirstValue("org_id") );
-		if ( null != doc.getFirstValue("icon_group_id") ){
-			f.setProperty
-			    (GeoSearch.ICON_GROUP_FEATURE_PROPERTY,
-			     (String) doc.getFirstValue("icon_group_id") );
-		}
-		String location = (String)doc.getFirstValue("location");
-		String[] location_parts = location.split(", ");
-		Point p = new Point(
-				    Double.parseDouble(location_parts[1]),
-				    Double.parseDouble(location_parts[0]) );
-		f.setGeometry(p);
-		points.add(f);
-	    }
+    public PointGroup moveTo(int new_row){
+	row = new_row;
+	return this;
+    }
 
-	}
-	else if (docs_num_found > 1) {
-	    cluster_feature = new Feature();
-	    cluster_feature.setProperty(
-	        GeoSearch.CLUSTER_COUNT_FEATURE_PROPERTY,
-			  docs.getNumFound() );
-	    if (!stats_enabled){
-		LatLong lat_long = GeoHash.decodeHash(hash_prefix);
-		cluster_feature.setGeometry(new Point( lat_long.getLon(),
-						       lat_long.getLat()
-						       ) );
-	    }
-	}
+    public int getRow(){
+	return row;
     }
 
     public boolean empty(){
-	return points.size() == 0 && cluster_feature == null;
+	return store.counts[row] == 0;
     }
 
     public boolean single_point(){
-	if (points.size() == 1){
-	    assert(cluster_feature == null );
+	if (store.first_points[row] != GeohashGroupStore.NO_POINTS &&
+	    store.counts[row] == 1)
 	    return true;
-	}
 	else
 	    return false;
     }
 
+    /**
+     * A new Feature for our one point, see GeohashGroupStore.point_feature()
+     */
     public Feature get_single_point(){
 	assert(single_point());
-	return points.get(0);
+	return store.point_feature(store.first_points[row]);
     }
 
     public boolean cluster_collection(){
-	if (cluster_feature!=null){
-	    assert(points.size() == 0);
+	if (store.first_points[row] == GeohashGroupStore.NO_POINTS &&
+	    !empty() )
 	    return true;
-	}
 	else
 	    return false;
-	    
     }
 
+    /**
+     * A new Feature for this cluster, with its count and center
+     */
     public Feature get_cluster_feature(){
 	assert(cluster_collection());
+	Feature cluster_feature = new Feature();
+	cluster_feature.setProperty(
+	    GeoSearch.CLUSTER_COUNT_FEATURE_PROPERTY, store.counts[row] );
+	cluster_feature.setGeometry(getGeometry());
 	return cluster_feature;
     }
 
     public boolean grouped_points_collection(){
-	if (points.size() > 1){
-	    assert(cluster_feature == null );
+	if (store.first_points[row] != GeohashGroupStore.NO_POINTS &&
+	    store.counts[row] > 1)
 	    return true;
-	}
-	else if (points.size() == 1)
-	    assert( single_point() );
 	else
-	    assert( cluster_collection() );
-
-	return false;
+	    return false;
     }
 
+    /**
+     * New Features for our points, see GeohashGroupStore.point_feature()
+     */
     public ArrayList<Feature> get_points(){
 	assert(grouped_points_collection());
+	ArrayList<Feature> points =
+	    new ArrayList<Feature>((int)store.counts[row]);
+	for (int p = store.first_points[row]; p != GeohashGroupStore.NO_POINTS;
+	     p = store.next_points[p])
+	    points.add(store.point_feature(p));
 	return points;
     }
 
-    public Point getGeometry(){
-	Point return_point = null;
+    public double getLongitude(){
+	return store.longitudes[row];
+    }
 
-	if (single_point()){
-	    return_point = (Point) points.get(0).getGeometry();
-	    assert( null != return_point );
-	}
-	else if (grouped_points_collection()){
-	    if (center == null){
-		// fixme, should be always statistically derived
-		return_point =  (Point) points.get(0).getGeometry();
-		assert(null != return_point);
-	    }
-	    else
-		return_point = center;
-	}
-	else if (cluster_collection()){
-	    return_point =  (Point) (cluster_feature.getGeometry());
-	    assert( null != return_point );
-	}
-	else
-	    assert(false);
+    public double getLatitude(){
+	return store.latitudes[row];
+    }
 
-	return return_point;
+    public Point getGeometry(){
+	assert(!empty());
+	return new Point(getLongitude(), getLatitude());
     }
 
     public long getPointCount(){
-	if (cluster_collection())
-	    return cluster_feature.getProperty
-		(GeoSearch.CLUSTER_COUNT_FEATURE_PROPERTY);
-	else if ( ! empty() )
-	    return points.size();
-	else{
-	    assert(false);
-	    return -1;
-	}
+	assert(!empty());
+	return store.counts[row];
     }
 
    /* Derived from
      * http://cgit.drupalcode.org/geocluster/tree/includes/GeoclusterHelper.inc
+     *
+     * Works on one coordinate (longitude or latitude) at a time, so we
+     * don't need a Point for the result
      */
-    static Point getFactoredCenter
-	(Point p1, Point p2, long count1, long count2){
-	assert (null != p1);
-	assert( null != p2);
-	assert( null != p1.getCoordinates() );
-	assert( null != p2.getCoordinates() );
-	double lon =
-	    p1.getCoordinates().getLongitude()*count1 +
-	    p2.getCoordinates().getLongitude()*count2;
-	double lat =
-	    p1.getCoordinates().getLatitude()*count1 +
-	    p2.getCoordinates().getLatitude()*count2;
-	long totalFactor = count1+count2;
-	return
-	    new Point(lon / totalFactor, lat / totalFactor);
-    }
-
-    /* Will also change otherPG as a performance optimization, be sure to
-       stop using otherPG after calling
+    static double getFactoredCenter
+	(double coordinate1, double coordinate2, long count1, long count2){
+	return (coordinate1*count1 + coordinate2*count2) / (count1+count2);
+    }
+
+    /* otherPG is merged into this group, otherPG's row is left as it was,
+       it's up to the caller to remove it from the store
 
      Inspired by addCluster() in
      http://cgit.drupalcode.org/geocluster/tree/modules/geocluster_solr/
@@ -185,63 +136,34 @@ public class PointGroup {
 
      */
     public void mergeIn(PointGroup otherPG){
-	long orig_count = -1;
-	long other_orig_count = otherPG.getPointCount();
-	Point orig_geometry = getGeometry();
-	Point other_orig_geometry = otherPG.getGeometry();
-
-	if (cluster_collection()){
-	    orig_count = cluster_feature.getProperty
-		(GeoSearch.CLUSTER_COUNT_FEATURE_PROPERTY);
-	}
-	else if ( !empty() ){
-	    orig_count = points.size();
-
-	    if (otherPG.cluster_collection()){
-		// optimizations vs
-		// cluster_feature = new Feature();
-		// cluster_feature.setProperty...
-		// the big assumption here is that otherPG is no longer used
-		cluster_feature = otherPG.cluster_feature;
-		points.clear();
-		assert(cluster_collection());
-		getGeometry();
-		// have to set geography and center
+	assert(otherPG.store == store);
+	int other_row = otherPG.row;
+	long orig_count = store.counts[row];
+	long other_orig_count = store.counts[other_row];
+	assert( orig_count >= 1 && other_orig_count >= 1 );
+	long new_count = orig_count + other_orig_count;
+
+	if (store.first_points[row] != GeohashGroupStore.NO_POINTS){
+	    // we stay a collection of points only if the other is too and
+	    // we don't end up with too many to show
+	    if (store.first_points[other_row] == GeohashGroupStore.NO_POINTS ||
+		new_count > store.force_cluster_threshold){
+		store.first_points[row] = GeohashGroupStore.NO_POINTS;
+		store.last_points[row] = GeohashGroupStore.NO_POINTS;
 	    }
 	    else {
-		assert( ! otherPG.empty() );	
-		if ((orig_count + other_orig_count) > force_cluster_threshold){
-		    cluster_feature = new Feature();
-		    center = null;
-		    points.clear();
-		    assert(cluster_collection());
-		}
-		else
-		    for (Feature f: otherPG.points)
-			points.add(f);
+		store.next_points[store.last_points[row]] =
+		    store.first_points[other_row];
+		store.last_points[row] = store.last_points[other_row];
 	    }
 	}
-	else
-	    assert (false);
 
-	assert( orig_count >= 1 && other_orig_count >= 1 );
-
-	Point new_center = getFactoredCenter(orig_geometry,
-					     other_orig_geometry,
-					     orig_count,
-					     other_orig_count);
-	// if we are/have-become a cluster, set up the count and center
-	if (cluster_collection()){
-	    cluster_feature.setProperty
-		(GeoSearch.CLUSTER_COUNT_FEATURE_PROPERTY,
-		 orig_count + other_orig_count);
-	    cluster_feature.setGeometry(new_center);
-	    center = null;
-	}
-	else if (!empty())
-	    center = new_center;
-	else
-	    assert(false);
+	store.longitudes[row] = getFactoredCenter
+	    (store.longitudes[row], store.longitudes[other_row],
+	     orig_count, other_orig_count);
+	store.latitudes[row] = getFactoredCenter
+	    (store.latitudes[row], store.latitudes[other_row],
+	     orig_count, other_orig_count);
+	store.counts[row] = new_count;
     }
 }
-
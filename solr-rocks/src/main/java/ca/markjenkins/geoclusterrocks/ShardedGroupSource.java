@@ -0,0 +1,311 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.AggregationGroupSource;
+import ca.markjenkins.geoclusterrocks.ClusterPyramid;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashCellCache;
+import ca.markjenkins.geoclusterrocks.GeohashGroupSource;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.GroupingGroupSource;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+import ca.markjenkins.geoclusterrocks.SolrServers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.solr.client.solrj.SolrServer;
+
+/**
+ * Our locations split up by geohash prefix over several Solr cores or
+ * nodes, each with the same schema and only its own part of the world.
+ * Shards are given as geoclusterrocks.shards like
+ *
+ *   9,c,dj,dn=http://solr1:8080/solr;*=embedded:shard2
+ *
+ * that is prefixes (geohash_1 or geohash_2, or * for everything the
+ * other shards don't have) = where the shard is, a Solr URL or
+ * embedded:core for a core in our own solr home (see SolrServers), which
+ * is handy for trying this out on one machine. Shards are separated by
+ * semicolons.
+ *
+ * A query only goes to the shards with prefixes that touch its bounds
+ * (or the geohash cells it's for), all at once, and the groups that come
+ * back are put together before we cluster them, so clustering sees
+ * neighbours on both sides of a shard boundary like it would with one
+ * core. At low zooms a cell can be shorter than a prefix and so be split
+ * over shards, those come back from each and get added up, counts and
+ * centers both (see ClusterPyramid.coarsen()).
+ *
+ * Each shard loads its groups with result grouping or
+ * solr.GeoclusterComponent's aggregation, clustering inside Solr can't be
+ * sharded, it would cut clusters off at the boundaries.
+ */
+public class ShardedGroupSource implements GeohashGroupSource {
+    public static final String EVERYWHERE = "*";
+    public static final String EMBEDDED_PREFIX = "embedded:";
+    // longest prefixes we route on, geohash_2 cells
+    static final int MAX_PREFIX_LENGTH = 2;
+
+    static class Shard {
+	// null for the shard that has everything the others don't
+	final String[] prefixes;
+	final SolrServer solr;
+	final GeohashGroupSource source;
+
+	Shard(String[] prefixes, SolrServer solr, GeohashGroupSource source){
+	    this.prefixes = prefixes;
+	    this.solr = solr;
+	    this.source = source;
+	}
+    }
+
+    // every shard but everywhere
+    final List<Shard> shards;
+    final Shard everywhere;
+    // the length of the cells we work out which shards a query goes to with
+    final int route_len;
+
+    static final ThreadFactory shard_threads = new ThreadFactory(){
+	    public Thread newThread(Runnable r){
+		Thread t = new Thread(r, "shard query");
+		t.setDaemon(true);
+		return t;
+	    }
+	};
+
+    // threads come and go with the shards queried, they're just waiting on
+    // Solr after all. Ours, so they go with us in shutdown()
+    final ExecutorService fan_out =
+	Executors.newCachedThreadPool(shard_threads);
+
+    ShardedGroupSource(List<Shard> shards, Shard everywhere, int route_len){
+	this.shards = shards;
+	this.everywhere = everywhere;
+	this.route_len = route_len;
+    }
+
+    /**
+     * Shards from a geoclusterrocks.shards setting, loading their groups
+     * with aggregation (solr.GeoclusterComponent) or else result grouping
+     */
+    public static ShardedGroupSource parse(String spec, boolean aggregation){
+	List<Shard> shards = new ArrayList<Shard>();
+	Shard everywhere = null;
+	int route_len = 1;
+	for (String shard_spec: spec.split(";")){
+	    shard_spec = shard_spec.trim();
+	    if (shard_spec.isEmpty())
+		continue;
+	    int equals = shard_spec.indexOf('=');
+	    if (equals < 0)
+		throw new IllegalArgumentException
+		    ("shard " + shard_spec + " should be prefixes=server");
+	    String[] prefixes = shard_spec.substring(0, equals).split(",");
+	    SolrServer solr = server(shard_spec.substring(equals + 1).trim());
+	    GeohashGroupSource source = aggregation ?
+		new AggregationGroupSource(solr) :
+		new GroupingGroupSource(solr);
+
+	    for (int i = 0; i < prefixes.length; i++){
+		prefixes[i] = prefixes[i].trim();
+		if (prefixes[i].length() > MAX_PREFIX_LENGTH)
+		    throw new IllegalArgumentException
+			("shard prefix " + prefixes[i] + " is longer than " +
+			 MAX_PREFIX_LENGTH);
+		route_len = Math.max(route_len, prefixes[i].length());
+	    }
+	    if (prefixes.length == 1 && prefixes[0].equals(EVERYWHERE)){
+		if (everywhere != null)
+		    throw new IllegalArgumentException
+			("only one shard can be " + EVERYWHERE);
+		everywhere = new Shard(null, solr, source);
+	    }
+	    else
+		shards.add(new Shard(prefixes, solr, source));
+	}
+	if (shards.isEmpty() && everywhere == null)
+	    throw new IllegalArgumentException("no shards in " + spec);
+	return new ShardedGroupSource(shards, everywhere, route_len);
+    }
+
+    static SolrServer server(String where){
+	if (where.startsWith(EMBEDDED_PREFIX))
+	    return SolrServers.createEmbeddedSolrServer
+		(System.getProperty(SolrServers.SOLR_HOME_PROPERTY,
+				    SolrServers.DEFAULT_SOLR_HOME),
+		 where.substring(EMBEDDED_PREFIX.length()) );
+	return SolrServers.createHttpSolrServer(where);
+    }
+
+    /**
+     * The shards with any of geohash cell in them
+     */
+    List<Shard> owners(String cell){
+	List<Shard> owners = new ArrayList<Shard>();
+	boolean whole_cell = false;
+	for (Shard shard: shards)
+	    for (String prefix: shard.prefixes)
+		if (cell.startsWith(prefix)){
+		    owners.add(shard);
+		    whole_cell = true;
+		    break;
+		}
+		else if (prefix.startsWith(cell)){
+		    owners.add(shard);
+		    break;
+		}
+	if (!whole_cell && everywhere != null)
+	    owners.add(everywhere);
+	return owners;
+    }
+
+    public GeohashGroupStore load_groups(final LocationsQuery query,
+					 Collection<String> geohash_cells){
+	// which shards and what cells each of them gets, null for query's
+	// bounds
+	Map<Shard, List<String>> shard_cells =
+	    new LinkedHashMap<Shard, List<String>>();
+	if (geohash_cells != null){
+	    for (String cell: geohash_cells)
+		for (Shard owner: owners(cell)){
+		    List<String> cells = shard_cells.get(owner);
+		    if (cells == null){
+			cells = new ArrayList<String>();
+			shard_cells.put(owner, cells);
+		    }
+		    cells.add(cell);
+		}
+	}
+	else {
+	    double[] b = GeoSearch.parse_bounds(query.bounds);
+	    // there are only 1024 geohash_2 cells, so we always get these
+	    // unless the bounds are upside down. Bounds across the
+	    // antimeridian we cover on each side of it
+	    List<Collection<String>> coverings =
+		new ArrayList<Collection<String>>();
+	    if (b[0] > b[2]){
+		coverings.add(GeohashCellCache.covering_cells
+			      (b[1], b[0], b[3], 180, route_len));
+		coverings.add(GeohashCellCache.covering_cells
+			      (b[1], -180, b[3], b[2], route_len));
+	    }
+	    else
+		coverings.add(GeohashCellCache.covering_cells
+			      (b[1], b[0], b[3], b[2], route_len));
+	    for (Collection<String> covering: coverings)
+		if (covering == null){
+		    // no telling where that is, everyone gets asked
+		    for (Shard shard: shards)
+			shard_cells.put(shard, null);
+		    if (everywhere != null)
+			shard_cells.put(everywhere, null);
+		}
+		else
+		    for (String cell: covering)
+			for (Shard owner: owners(cell))
+			    shard_cells.put(owner, null);
+	}
+
+	List<Future<GeohashGroupStore>> queried =
+	    new ArrayList<Future<GeohashGroupStore>>();
+	List<GeohashGroupStore> loaded = new ArrayList<GeohashGroupStore>();
+	Entry<Shard, List<String>> last = null;
+	for (Entry<Shard, List<String>> entry: shard_cells.entrySet()){
+	    if (last != null){
+		final Shard shard = last.getKey();
+		final List<String> cells = last.getValue();
+		queried.add(fan_out.submit(new Callable<GeohashGroupStore>(){
+			public GeohashGroupStore call(){
+			    return shard.source.load_groups(query, cells);
+			}
+		    }));
+	    }
+	    last = entry;
+	}
+	// we'd only be waiting otherwise
+	if (last != null)
+	    loaded.add(last.getKey().source.load_groups(query,
+							last.getValue()));
+	try {
+	    for (Future<GeohashGroupStore> shard_groups: queried)
+		loaded.add(shard_groups.get());
+	}
+	catch (InterruptedException e){
+	    Thread.currentThread().interrupt();
+	    return null;
+	}
+	catch (ExecutionException e){
+	    if (e.getCause() instanceof RuntimeException)
+		throw (RuntimeException)e.getCause();
+	    throw new RuntimeException(e.getCause());
+	}
+
+	int total = 0;
+	for (GeohashGroupStore shard_groups: loaded){
+	    // one shard letting us down is a wrong map, not a smaller one
+	    if (shard_groups == null)
+		return null;
+	    total += shard_groups.size();
+	}
+	if (loaded.size() == 1)
+	    return loaded.get(0);
+
+	GeohashGroupStore geohash_groups = new GeohashGroupStore
+	    (query.hash_len, query.max_group_size, total);
+	for (GeohashGroupStore shard_groups: loaded)
+	    geohash_groups.add_all(shard_groups);
+	geohash_groups.sort();
+	// cells split over shards come back from each of them
+	for (int row = 1; row < geohash_groups.size(); row++)
+	    if (geohash_groups.hashes[row] == geohash_groups.hashes[row - 1])
+		return ClusterPyramid.coarsen(geohash_groups, query.hash_len,
+					      query.max_group_size);
+	return geohash_groups;
+    }
+
+    public boolean clustered(){
+	return false;
+    }
+
+    /**
+     * All of the shards' index versions rolled into one
+     */
+    public Long index_version(){
+	long version = 0;
+	for (SolrServer solr: servers()){
+	    Long shard_version = ClusterPyramid.index_version(solr);
+	    if (shard_version == null)
+		return null;
+	    version = version * 31 + shard_version;
+	}
+	return version;
+    }
+
+    /**
+     * Every shard's Solr, everywhere's last
+     */
+    List<SolrServer> servers(){
+	List<SolrServer> servers = new ArrayList<SolrServer>();
+	for (Shard shard: shards)
+	    servers.add(shard.solr);
+	if (everywhere != null)
+	    servers.add(everywhere.solr);
+	return servers;
+    }
+
+    public void shutdown(){
+	fan_out.shutdown();
+	for (SolrServer solr: servers())
+	    SolrServers.shutdown(solr);
+    }
+}
@@ -0,0 +1,40 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.ClusterPyramid;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeoSearchMetrics;
+import ca.markjenkins.geoclusterrocks.GeohashGroupSource;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+
+import java.util.Collection;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * solr.GeoclusterComponent does the grouping and the clustering, all we
+ * get back is what's left to show
+ */
+public class SolrClusteringGroupSource implements GeohashGroupSource {
+    public GeohashGroupStore load_groups(LocationsQuery query,
+					 Collection<String> geohash_cells){
+	NamedList<Object> geocluster =
+	    GeoSearch.query_geocluster_in_solr(GeoSearch.getSolrServer(), query,
+					       geohash_cells, true);
+	if (geocluster == null)
+	    return null;
+	long start = System.nanoTime();
+	GeohashGroupStore geohash_groups =
+	    GeoSearch.load_component_groups(geocluster, query.max_group_size);
+	GeoSearchMetrics.LOAD_GROUPS.record(query.zoom, start);
+	return geohash_groups;
+    }
+
+    public boolean clustered(){
+	return true;
+    }
+
+    public Long index_version(){
+	return ClusterPyramid.index_version(GeoSearch.getSolrServer());
+    }
+}
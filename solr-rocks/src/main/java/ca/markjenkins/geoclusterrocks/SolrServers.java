@@ -0,0 +1,113 @@
+package ca.markjenkins.geoclusterrocks;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.core.CoreContainer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the SolrServer that GeoSearch sends its queries to.
+ *
+ * In http mode (the default) we talk to Solr over HTTP, which is what we
+ * have always done. In embedded mode Solr runs in-process as an
+ * EmbeddedSolrServer over the solr/conf schema, sharing the JVM with the
+ * Wicket app, so query_locations_in_solr no longer pays for HTTP and for
+ * (de)serializing hundreds of thousands of groups on every map pan.
+ *
+ * The mode is picked at startup, see WicketApplication.init() and
+ * StartManually
+ */
+public class SolrServers {
+    public static final String SOLR_MODE_PROPERTY = "geoclusterrocks.solr.mode";
+    public static final String SOLR_URL_PROPERTY = "geoclusterrocks.solr.url";
+    public static final String SOLR_HOME_PROPERTY = "geoclusterrocks.solr.home";
+    public static final String SOLR_CORE_PROPERTY = "geoclusterrocks.solr.core";
+
+    public static final String HTTP_MODE = "http";
+    public static final String EMBEDDED_MODE = "embedded";
+
+    static final String DEFAULT_SOLR_URL = "http://localhost:8080/solr";
+    static final String DEFAULT_SOLR_HOME = "solr";
+    static final String DEFAULT_CORE_NAME = "collection1";
+
+    static Logger log_l4 = LoggerFactory.getLogger( SolrServers.class );
+
+    // The webapp also runs Solr itself (see SolrRequestFilter in web.xml),
+    // when it does, SharedCoreSolrDispatchFilter leaves its CoreContainer
+    // here so that embedded mode can share the very same cores instead of
+    // opening a second IndexWriter on the same data directory
+    private static volatile CoreContainer shared_core_container = null;
+
+    // only set when we loaded a CoreContainer ourselves and are therefore
+    // responsible for shutting it down
+    private static CoreContainer own_core_container = null;
+
+    public static void shareCoreContainer(CoreContainer cores){
+	shared_core_container = cores;
+    }
+
+    public static SolrServer createHttpSolrServer(String url){
+	return new HttpSolrServer(url);
+    }
+
+    public static synchronized SolrServer createEmbeddedSolrServer
+	(String solr_home, String core_name){
+	CoreContainer cores = shared_core_container;
+	if (cores == null){
+	    if (own_core_container == null){
+		log_l4.info("loading embedded Solr cores from " + solr_home);
+		own_core_container = new CoreContainer(solr_home);
+		own_core_container.load();
+	    }
+	    cores = own_core_container;
+	}
+	return new EmbeddedSolrServer(cores, core_name);
+    }
+
+    /**
+     * Create a SolrServer for the given mode, settings we aren't given
+     * (null) come from system properties or fall back to our defaults
+     */
+    public static SolrServer create(String mode, String url, String solr_home,
+				    String core_name){
+	if (mode == null)
+	    mode = System.getProperty(SOLR_MODE_PROPERTY, HTTP_MODE);
+
+	if (mode.equals(EMBEDDED_MODE)){
+	    if (solr_home == null)
+		solr_home = System.getProperty(SOLR_HOME_PROPERTY,
+					       DEFAULT_SOLR_HOME);
+	    if (core_name == null)
+		core_name = System.getProperty(SOLR_CORE_PROPERTY,
+					       DEFAULT_CORE_NAME);
+	    return createEmbeddedSolrServer(solr_home, core_name);
+	}
+	else if (mode.equals(HTTP_MODE)){
+	    if (url == null)
+		url = System.getProperty(SOLR_URL_PROPERTY, DEFAULT_SOLR_URL);
+	    return createHttpSolrServer(url);
+	}
+	else
+	    throw new IllegalArgumentException
+		("unknown Solr mode " + mode + ", expected " + HTTP_MODE +
+		 " or " + EMBEDDED_MODE);
+    }
+
+    /**
+     * Shut down a SolrServer made by create(), an embedded server sharing
+     * the dispatch filter's cores leaves them alone, they're not ours
+     */
+    public static synchronized void shutdown(SolrServer server){
+	if (server instanceof EmbeddedSolrServer){
+	    if (own_core_container != null){
+		own_core_container.shutdown();
+		own_core_container = null;
+	    }
+	}
+	else if (server != null)
+	    server.shutdown();
+    }
+}
@@ -16,6 +16,12 @@ public class StartManually
 	{
 	  // this add resource reloading...
     System.setProperty( "wicket.configuration", "development" );
+
+    // pass "embedded" to have GeoSearch query the Solr cores running in
+    // this JVM directly instead of over HTTP, see SolrServers
+    if ( args.length > 0 && args[0].equals(SolrServers.EMBEDDED_MODE) )
+      System.setProperty( SolrServers.SOLR_MODE_PROPERTY,
+                          SolrServers.EMBEDDED_MODE );
     System.setProperty( "SpatialContextFactory", JtsSpatialContextFactory.class.getName() );
 
 	  File dir = new File( "src/main/webapp" );
@@ -36,6 +42,8 @@ public class StartManually
 		bb.setWar("src/main/webapp");
 
 		// START JMX SERVER
+		// (GeoSearchMetrics are on the platform MBeanServer either way,
+		// this would add Jetty's own)
 		// MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
 		// MBeanContainer mBeanContainer = new MBeanContainer(mBeanServer);
 		// server.getContainer().addEventListener(mBeanContainer);
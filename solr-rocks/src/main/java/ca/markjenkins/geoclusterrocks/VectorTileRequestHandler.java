@@ -0,0 +1,57 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.GeoSearchMetrics;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.VectorTileWriter;
+
+import java.io.IOException;
+
+import com.google.common.io.CountingOutputStream;
+
+import org.apache.wicket.request.IRequestCycle;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.http.WebResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GeoJsonRequestHandler for format=mvt, the groups go out as a vector
+ * tile of bounds instead, see VectorTileWriter
+ */
+public class VectorTileRequestHandler implements IRequestHandler {
+    static Logger log_l4 =
+	LoggerFactory.getLogger(VectorTileRequestHandler.class);
+
+    GeohashGroupStore geohash_groups;
+    // for GeoSearchMetrics
+    final int zoom;
+    final double[] bounds;
+
+    public VectorTileRequestHandler(GeohashGroupStore geohash_groups,
+				    int zoom, double[] bounds){
+	this.geohash_groups = geohash_groups;
+	this.zoom = zoom;
+	this.bounds = bounds;
+    }
+
+    public void respond(IRequestCycle cy){
+	WebResponse response = (WebResponse)cy.getResponse();
+	response.setContentType(VectorTileWriter.CONTENT_TYPE);
+	try {
+	    long start = System.nanoTime();
+	    CountingOutputStream out =
+		new CountingOutputStream(response.getOutputStream());
+	    VectorTileWriter.write(geohash_groups, bounds, out);
+	    GeoSearchMetrics.serialized(zoom, start, out.getCount());
+	}
+	catch (IOException e){
+	    // most likely the client went away on us, nothing we can do
+	    log_l4.warn("couldn't write out our vector tile", e);
+	}
+    }
+
+    public void detach(IRequestCycle cy){
+	geohash_groups = null;
+    }
+}
@@ -0,0 +1,303 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.PointFeatures;
+import ca.markjenkins.geoclusterrocks.PointGroup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.geojson.Feature;
+
+/**
+ * What's left of a GeohashGroupStore after clustering as a Mapbox Vector
+ * Tile (version 2 of the spec) instead of GeoJSON, for when payload size
+ * matters more than being able to read it.
+ *
+ * The tile is whatever bounds the request was for, projected to web
+ * mercator, with positions as integers from 0 to EXTENT across it (a
+ * little outside for the odd cluster center just past the edge). Property
+ * names and values are written once per layer and referred to by number,
+ * so the same org or icon group over and over costs next to nothing.
+ *
+ * There are three layers, like the three parts of our JSON
+ *
+ *   clusters        a point per cluster, with clusterCount
+ *   grouped_points  a point per grouped point, with its properties and
+ *                   group, which is the same number for every point of
+ *                   a group
+ *   single_points   a point per single point, with its properties
+ *
+ * The protobuf encoding is simple enough that we do it ourselves rather
+ * than take on a dependency for it.
+ */
+public class VectorTileWriter {
+    public static final String CONTENT_TYPE =
+	"application/vnd.mapbox-vector-tile";
+    public static final int EXTENT = 4096;
+    static final int VERSION = 2;
+    static final String GROUP_PROPERTY = "group";
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // protobuf wire types
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int LENGTH_DELIMITED = 2;
+
+    // vector_tile.proto field numbers
+    static final int TILE_LAYERS = 3;
+    static final int LAYER_VERSION = 15;
+    static final int LAYER_NAME = 1;
+    static final int LAYER_FEATURES = 2;
+    static final int LAYER_KEYS = 3;
+    static final int LAYER_VALUES = 4;
+    static final int LAYER_EXTENT = 5;
+    static final int FEATURE_TAGS = 2;
+    static final int FEATURE_TYPE = 3;
+    static final int FEATURE_GEOMETRY = 4;
+    static final int VALUE_STRING = 1;
+    static final int VALUE_DOUBLE = 3;
+    static final int VALUE_UINT = 5;
+    static final int VALUE_SINT = 6;
+    static final int VALUE_BOOL = 7;
+    static final int GEOM_POINT = 1;
+    // MoveTo, once
+    static final int MOVE_TO_ONE = (1 << 3) | 1;
+
+    /**
+     * Where in the tile positions end up, bounds are what
+     * GeoSearch.parse_bounds() gives
+     */
+    static class Projection {
+	final double min_x;
+	final double min_y;
+	final double x_scale;
+	final double y_scale;
+
+	Projection(double[] bounds){
+	    min_x = mercator_x(bounds[0]);
+	    // tile y goes down from the top, the north
+	    min_y = mercator_y(bounds[3]);
+	    x_scale = EXTENT / (mercator_x(bounds[2]) - min_x);
+	    y_scale = EXTENT / (mercator_y(bounds[1]) - min_y);
+	}
+
+	int x(double longitude){
+	    return (int)Math.round((mercator_x(longitude) - min_x) * x_scale);
+	}
+
+	int y(double latitude){
+	    return (int)Math.round((mercator_y(latitude) - min_y) * y_scale);
+	}
+    }
+
+    static double mercator_x(double longitude){
+	return (longitude + 180) / 360;
+    }
+
+    static double mercator_y(double latitude){
+	double lat = Math.toRadians
+	    (Math.max(-Clustering.MAX_LATITUDE,
+		      Math.min(Clustering.MAX_LATITUDE, latitude)));
+	return (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI)
+	    / 2;
+    }
+
+    /**
+     * One layer of the tile, its features as they're added and the keys
+     * and values they use
+     */
+    static class Layer {
+	final String name;
+	final ByteArrayOutputStream features = new ByteArrayOutputStream();
+	final Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+	final Map<Object, Integer> values = new LinkedHashMap<Object, Integer>();
+	// reused for every feature
+	final ByteArrayOutputStream feature = new ByteArrayOutputStream();
+	final ByteArrayOutputStream packed = new ByteArrayOutputStream();
+	int[] tags = new int[16];
+	int tag_count = 0;
+
+	Layer(String name){
+	    this.name = name;
+	}
+
+	void tag(String key, Object value){
+	    if (value == null)
+		return;
+	    if (tag_count + 2 > tags.length)
+		tags = Arrays.copyOf(tags, tags.length * 2);
+	    tags[tag_count++] = number(keys, key);
+	    tags[tag_count++] = number(values, value);
+	}
+
+	static <T> int number(Map<T, Integer> numbers, T t){
+	    Integer number = numbers.get(t);
+	    if (number == null){
+		number = numbers.size();
+		numbers.put(t, number);
+	    }
+	    return number;
+	}
+
+	/**
+	 * Add a point feature with the tags we've been given since the last
+	 * one
+	 */
+	void add_point(int x, int y){
+	    feature.reset();
+	    packed.reset();
+	    for (int i = 0; i < tag_count; i++)
+		write_varint(packed, tags[i]);
+	    write_bytes(feature, FEATURE_TAGS, packed);
+	    write_tag(feature, FEATURE_TYPE, VARINT);
+	    write_varint(feature, GEOM_POINT);
+	    packed.reset();
+	    write_varint(packed, MOVE_TO_ONE);
+	    write_varint(packed, zigzag(x));
+	    write_varint(packed, zigzag(y));
+	    write_bytes(feature, FEATURE_GEOMETRY, packed);
+	    write_bytes(features, LAYER_FEATURES, feature);
+	    tag_count = 0;
+	}
+
+	void write_to(ByteArrayOutputStream tile) throws IOException {
+	    ByteArrayOutputStream layer = new ByteArrayOutputStream();
+	    write_tag(layer, LAYER_VERSION, VARINT);
+	    write_varint(layer, VERSION);
+	    write_string(layer, LAYER_NAME, name);
+	    features.writeTo(layer);
+	    for (String key: keys.keySet())
+		write_string(layer, LAYER_KEYS, key);
+	    ByteArrayOutputStream value_bytes = new ByteArrayOutputStream();
+	    for (Object value: values.keySet()){
+		value_bytes.reset();
+		write_value(value_bytes, value);
+		write_bytes(layer, LAYER_VALUES, value_bytes);
+	    }
+	    write_tag(layer, LAYER_EXTENT, VARINT);
+	    write_varint(layer, EXTENT);
+	    write_bytes(tile, TILE_LAYERS, layer);
+	}
+    }
+
+    public static void write(GeohashGroupStore geohash_groups,
+			     double[] bounds, OutputStream out)
+	throws IOException {
+	Projection projection = new Projection(bounds);
+	Layer clusters = new Layer("clusters");
+	Layer grouped_points = new Layer("grouped_points");
+	Layer single_points = new Layer("single_points");
+	PointGroup pg = geohash_groups.group(0);
+	long group = 0;
+	for (int row = 0; row < geohash_groups.size(); row++){
+	    if (geohash_groups.isRemoved(row))
+		continue;
+	    pg.moveTo(row);
+	    if (pg.cluster_collection()){
+		clusters.tag(GeoSearch.CLUSTER_COUNT_FEATURE_PROPERTY,
+			     pg.getPointCount());
+		clusters.add_point(projection.x(pg.getLongitude()),
+				   projection.y(pg.getLatitude()) );
+	    }
+	    else if (pg.single_point())
+		add_feature(single_points, pg.get_single_point(), projection);
+	    else {
+		for (int p = geohash_groups.first_points[row];
+		     p != GeohashGroupStore.NO_POINTS;
+		     p = geohash_groups.next_points[p]){
+		    grouped_points.tag(GROUP_PROPERTY, group);
+		    add_feature(grouped_points,
+				geohash_groups.point_feature(p), projection);
+		}
+		group++;
+	    }
+	}
+
+	ByteArrayOutputStream tile = new ByteArrayOutputStream();
+	clusters.write_to(tile);
+	grouped_points.write_to(tile);
+	single_points.write_to(tile);
+	tile.writeTo(out);
+    }
+
+    static void add_feature(Layer layer, Feature f, Projection projection){
+	for (Entry<String, Object> property: f.getProperties().entrySet())
+	    layer.tag(property.getKey(), property.getValue());
+	layer.add_point(projection.x(PointFeatures.longitude(f)),
+			projection.y(PointFeatures.latitude(f)) );
+    }
+
+    static int zigzag(int n){
+	return (n << 1) ^ (n >> 31);
+    }
+
+    static void write_varint(ByteArrayOutputStream out, long value){
+	while ((value & ~0x7FL) != 0){
+	    out.write((int)((value & 0x7F) | 0x80));
+	    value >>>= 7;
+	}
+	out.write((int)value);
+    }
+
+    static void write_tag(ByteArrayOutputStream out, int field,
+			  int wire_type){
+	write_varint(out, (field << 3) | wire_type);
+    }
+
+    static void write_bytes(ByteArrayOutputStream out, int field,
+			    ByteArrayOutputStream bytes){
+	write_tag(out, field, LENGTH_DELIMITED);
+	write_varint(out, bytes.size());
+	try {
+	    bytes.writeTo(out);
+	}
+	catch (IOException e){
+	    // not from one ByteArrayOutputStream to another
+	    throw new AssertionError(e);
+	}
+    }
+
+    static void write_string(ByteArrayOutputStream out, int field,
+			     String s){
+	byte[] bytes = s.getBytes(UTF_8);
+	write_tag(out, field, LENGTH_DELIMITED);
+	write_varint(out, bytes.length);
+	out.write(bytes, 0, bytes.length);
+    }
+
+    static void write_value(ByteArrayOutputStream out, Object value){
+	if (value instanceof Boolean){
+	    write_tag(out, VALUE_BOOL, VARINT);
+	    write_varint(out, ((Boolean)value) ? 1 : 0);
+	}
+	else if (value instanceof Long || value instanceof Integer){
+	    long n = ((Number)value).longValue();
+	    if (n >= 0){
+		write_tag(out, VALUE_UINT, VARINT);
+		write_varint(out, n);
+	    }
+	    else {
+		write_tag(out, VALUE_SINT, VARINT);
+		write_varint(out, (n << 1) ^ (n >> 63));
+	    }
+	}
+	else if (value instanceof Number){
+	    write_tag(out, VALUE_DOUBLE, FIXED64);
+	    long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+	    for (int i = 0; i < 8; i++)
+		out.write((int)(bits >>> (8 * i)) & 0xFF);
+	}
+	else
+	    write_string(out, VALUE_STRING, value.toString());
+    }
+}
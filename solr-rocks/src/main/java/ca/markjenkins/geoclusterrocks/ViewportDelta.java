@@ -0,0 +1,204 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.ClusterPyramid;
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeoJsonWriter;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeoSearchMetrics;
+import ca.markjenkins.geoclusterrocks.GeohashGroupSource;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wicket.request.IRequestCycle;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.http.WebResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The answer to a pan when the client tells us what it was looking at
+ * before (previous_bounds and previous_zoom), just what changed instead
+ * of everything in bounds all over again
+ *
+ *   {"add": {clusters, grouped_points, single_points like always},
+ *    "remove": [[w, s, e, n], ...]}
+ *
+ * where remove is the parts of the previous bounds that are out of view
+ * now, the client drops whatever it has there. What it has in the part
+ * of the view that it saw before it keeps, markers_and_clusters_US.js
+ * does all of this.
+ *
+ * For add we only load the newly exposed strips (up to four of them
+ * around what the two views have in common), and cluster them together.
+ * The strips don't share a single point with each other or with the
+ * previous bounds, so nothing the client has is counted again. That's
+ * also why there's no halo like a ClusterTileServlet tile has: a halo
+ * reaching into the previous bounds would have strip clusters take in
+ * points the client is still showing. So groups on either side of where
+ * the previous view ends don't get merged like a full request would
+ * have them, that's the price of not doing that work again.
+ *
+ * The unfiltered map is different, ClusterPyramid's clusters are the
+ * same whatever part of the map we ask for, so we pick out the ones in
+ * the strips and they fit right in with what the client has.
+ *
+ * A change of zoom or views that don't overlap get everything in bounds
+ * as add and all of the previous bounds as remove.
+ */
+public class ViewportDelta implements IRequestHandler {
+    static Logger log_l4 = LoggerFactory.getLogger(ViewportDelta.class);
+
+    GeohashGroupStore added;
+    final List<double[]> removed;
+    // for GeoSearchMetrics
+    final int zoom;
+
+    ViewportDelta(GeohashGroupStore added, List<double[]> removed,
+		  int zoom){
+	this.added = added;
+	this.removed = removed;
+	this.zoom = zoom;
+    }
+
+    /**
+     * What changed going from previous_bounds at previous_zoom to query,
+     * null if Solr lets us down
+     */
+    public static ViewportDelta load(GeohashGroupSource source,
+				     LocationsQuery query,
+				     double[] previous_bounds,
+				     int previous_zoom){
+	double[] bounds = GeoSearch.parse_bounds(query.bounds);
+	if (previous_zoom != query.zoom || !overlap(bounds, previous_bounds)){
+	    List<double[]> removed = new ArrayList<double[]>();
+	    removed.add(previous_bounds);
+	    GeohashGroupStore everything =
+		GeoSearch.clustered_groups(source, query);
+	    return everything == null ? null :
+		new ViewportDelta(everything, removed, query.zoom);
+	}
+	List<double[]> removed = difference(previous_bounds, bounds);
+	List<double[]> exposed = difference(bounds, previous_bounds);
+	GeohashGroupStore added = new GeohashGroupStore
+	    (query.hash_len, query.max_group_size, 0);
+
+	ClusterPyramid pyramid = ClusterPyramid.pyramid_for(query, source);
+	if (pyramid != null || source.clustered()){
+	    // already clustered, strip by strip
+	    for (double[] strip: exposed){
+		GeohashGroupStore strip_groups = pyramid != null ?
+		    pyramid.groups_in(query.zoom, strip) :
+		    GeoSearch.query_geohash_groups
+		    (source, query.with_bounds(GeoSearch.bounds_param(strip)));
+		if (strip_groups == null)
+		    return null;
+		for (int row = 0; row < strip_groups.size(); row++)
+		    if (!strip_groups.isRemoved(row))
+			added.add_row(strip_groups, row);
+	    }
+	    added.sort();
+	    return new ViewportDelta(added, removed, query.zoom);
+	}
+
+	for (double[] strip: exposed){
+	    GeohashGroupStore strip_groups = GeoSearch.query_geohash_groups
+		(source, query.with_bounds(GeoSearch.bounds_param(strip)));
+	    if (strip_groups == null)
+		return null;
+	    added.add_all(strip_groups);
+	}
+	added.sort();
+	// a cell across the edge of two strips came back from each of them
+	for (int row = 1; row < added.size(); row++)
+	    if (added.hashes[row] == added.hashes[row - 1]){
+		added = ClusterPyramid.coarsen(added, query.hash_len,
+					       query.max_group_size);
+		break;
+	    }
+	GeoSearchMetrics.loaded(query.zoom, added);
+	long start = System.nanoTime();
+	Clustering.clusterByNeighborCheck(added, query.zoom);
+	GeoSearchMetrics.clustered(query.zoom, start, added);
+	return new ViewportDelta(added, removed, query.zoom);
+    }
+
+    static boolean overlap(double[] a, double[] b){
+	return a[0] < b[2] && b[0] < a[2] && a[1] < b[3] && b[1] < a[3];
+    }
+
+    /**
+     * The parts of bounds a that aren't in b, all of a if they don't
+     * overlap. There's a strip for each side of b that a goes past, the
+     * west and east ones full height and the south and north ones between
+     * those.
+     *
+     * Bounds take in their edges, so the strips stop just short (by one
+     * ulp) of b and of each other, a point is never in more than one
+     */
+    static List<double[]> difference(double[] a, double[] b){
+	List<double[]> strips = new ArrayList<double[]>();
+	if (!overlap(a, b)){
+	    strips.add(a);
+	    return strips;
+	}
+	double west = Math.max(a[0], b[0]);
+	double south = Math.max(a[1], b[1]);
+	double east = Math.min(a[2], b[2]);
+	double north = Math.min(a[3], b[3]);
+	if (a[0] < west)
+	    strips.add(new double[] {a[0], a[1], Math.nextAfter(west, -180),
+				     a[3]});
+	if (east < a[2])
+	    strips.add(new double[] {Math.nextUp(east), a[1], a[2], a[3]});
+	if (a[1] < south)
+	    strips.add(new double[] {west, a[1], east,
+				     Math.nextAfter(south, -90)});
+	if (north < a[3])
+	    strips.add(new double[] {west, Math.nextUp(north), east, a[3]});
+	return strips;
+    }
+
+    public void respond(IRequestCycle cy){
+	WebResponse response = (WebResponse)cy.getResponse();
+	response.setContentType("application/json");
+	try {
+	    long start = System.nanoTime();
+	    CountingOutputStream out =
+		new CountingOutputStream(response.getOutputStream());
+	    JsonGenerator gen = GeoJsonWriter.json_factory.createGenerator
+		(out, JsonEncoding.UTF8);
+	    gen.writeStartObject();
+	    gen.writeFieldName("add");
+	    GeoJsonWriter.write_groups(gen, added);
+	    gen.writeArrayFieldStart("remove");
+	    for (double[] bounds: removed){
+		gen.writeStartArray();
+		for (double bound: bounds)
+		    gen.writeNumber(bound);
+		gen.writeEndArray();
+	    }
+	    gen.writeEndArray();
+	    gen.writeEndObject();
+	    gen.close();
+	    GeoSearchMetrics.serialized(zoom, start, out.getCount());
+	}
+	catch (IOException e){
+	    // most likely the client went away on us, nothing we can do
+	    log_l4.warn("couldn't write out our viewport delta", e);
+	}
+    }
+
+    public void detach(IRequestCycle cy){
+	added = null;
+    }
+}
@@ -26,5 +26,38 @@ public class WicketApplication extends WebApplication
   protected void init() {
     super.init();
 
+    // http (default) or embedded, see SolrServers. Filter init-params in
+    // web.xml win over system properties, which StartManually can set
+    GeoSearch.configureSolrServer(
+      getInitParameter(SolrServers.SOLR_MODE_PROPERTY),
+      getInitParameter(SolrServers.SOLR_URL_PROPERTY),
+      getInitParameter(SolrServers.SOLR_HOME_PROPERTY),
+      getInitParameter(SolrServers.SOLR_CORE_PROPERTY) );
+
+    // where the clustering is done and how the groups are loaded, see
+    // GeoSearch.configureGroupSource()
+    GeoSearch.configureGroupSource(
+      getInitParameter(GeoSearch.CLUSTERING_PROPERTY),
+      getInitParameter(GeoSearch.GROUPS_PROPERTY),
+      getInitParameter(GeoSearch.POINTS_FILE_PROPERTY),
+      getInitParameter(GeoSearch.SHARDS_PROPERTY) );
+
+    // whether big sets of groups are clustered on a ForkJoinPool, see
+    // Clustering.clusterByNeighborCheck()
+    Clustering.configureParallelClustering(
+      getInitParameter(Clustering.PARALLEL_CLUSTERING_PROPERTY) );
+
+    // per stage timings for jconsole and friends, see GeoSearchMetrics
+    GeoSearchMetrics.register();
+  }
+
+  @Override
+  protected void onDestroy() {
+    GeoSearchMetrics.unregister();
+    GeoSearch.shutdownGroupSource();
+    GeoSearch.shutdownSolrServer();
+    Clustering.shutdown();
+    ClusterPyramid.shutdown();
+    super.onDestroy();
   }
 }
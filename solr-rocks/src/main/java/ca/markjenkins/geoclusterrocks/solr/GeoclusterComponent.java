@@ -0,0 +1,286 @@
+package ca.markjenkins.geoclusterrocks.solr;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.DistanceThresholdOutOfRangeException;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.HashSorter;
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+import ca.markjenkins.geoclusterrocks.PointFeatures;
+import ca.markjenkins.geoclusterrocks.PointGroup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+
+/**
+ * Does what GeoSearch does with Solr's geohash groups and stats, but
+ * right here next to the index, so that all we send back are the few
+ * hundred clusters and points left after clustering instead of up to
+ * NUM_ROWS_ALLOWED groups with their docs and stats.
+ *
+ * For every doc matching the query we look up its latitude and longitude
+ * through the fields' ValueSource (FieldCache), work out its geohash cell
+ * ourselves and sort by that, which gives us each cell's count and mean
+ * center (what the stats facets give GeoSearch) in one pass. Cells small
+ * enough to show as points get their stored fields loaded, then it's the
+ * same GeohashGroupStore and Clustering.clusterByNeighborCheck() that
+ * GeoSearch uses.
+ *
+ * Turned on with geocluster=true, see the /geocluster handler in
+ * solrconfig.xml. With geocluster.merge=false we stop after grouping,
+ * which gives the count and mean center of every cell in one pass instead
+ * of result grouping plus stats (see AggregationGroupSource).
+ * Distributed requests aren't supported.
+ */
+public class GeoclusterComponent extends SearchComponent {
+    public static final String COMPONENT_NAME = "geocluster";
+
+    // request parameters
+    public static final String GEOCLUSTER = "geocluster";
+    public static final String ZOOM = "geocluster.zoom";
+    public static final String DISTANCE_THRESHOLD =
+	"geocluster.distance_threshold";
+    // how many points a cell can have and still show them, like group.limit
+    public static final String GROUP_LIMIT = "geocluster.group_limit";
+    // false to only group and leave the clustering to the caller
+    public static final String MERGE = "geocluster.merge";
+
+    // what we send back under COMPONENT_NAME
+    public static final String HASH_LENGTH = "hash_len";
+    public static final String GROUPS = "groups";
+    public static final String GEOHASH = "geohash";
+    public static final String COUNT = "count";
+    public static final String LONGITUDE = "longitude";
+    public static final String LATITUDE = "latitude";
+    public static final String POINTS = "points";
+
+    static final Set<String> POINT_FIELDS = new HashSet<String>(Arrays.asList(
+	PointFeatures.NAME_FIELD, PointFeatures.ORG_ID_FIELD,
+	PointFeatures.ICON_GROUP_FIELD ));
+
+    @Override
+    public void prepare(ResponseBuilder rb) throws IOException {
+	if (rb.req.getParams().getBool(GEOCLUSTER, false))
+	    rb.setNeedDocSet(true);
+    }
+
+    @Override
+    public void process(ResponseBuilder rb) throws IOException {
+	SolrParams params = rb.req.getParams();
+	if (!params.getBool(GEOCLUSTER, false))
+	    return;
+
+	int zoom = params.getInt(ZOOM, 0);
+	int distance_threshold = params.getInt
+	    (DISTANCE_THRESHOLD, Clustering.GEOCLUSTER_DEFAULT_DISTANCE);
+	int group_limit = params.getInt(GROUP_LIMIT, 1);
+	if (zoom < 0 || zoom >= Clustering.ZOOMS)
+	    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+				    "no such zoom " + zoom);
+	int hash_len;
+	try {
+	    hash_len = Clustering.get_geohash_length(distance_threshold, zoom);
+	}
+	catch (DistanceThresholdOutOfRangeException e){
+	    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
+	}
+
+	GeohashGroupStore geohash_groups =
+	    load_groups(rb.req.getSearcher(), rb.getResults().docSet,
+			hash_len, group_limit);
+	if (params.getBool(MERGE, true))
+	    Clustering.clusterByNeighborCheck(geohash_groups, zoom);
+	rb.rsp.add(COMPONENT_NAME, clustered_groups(geohash_groups));
+    }
+
+    /**
+     * The hash, docid and position of every doc we're clustering, sorted by
+     * hash so that each geohash cell's docs are together
+     */
+    static class DocColumns extends HashSorter {
+	int size = 0;
+	final long[] hashes;
+	final int[] docs;
+	final double[] longitudes;
+	final double[] latitudes;
+
+	DocColumns(int capacity){
+	    hashes = new long[capacity];
+	    docs = new int[capacity];
+	    longitudes = new double[capacity];
+	    latitudes = new double[capacity];
+	}
+
+	void add(long hash, int doc, double longitude, double latitude){
+	    hashes[size] = hash;
+	    docs[size] = doc;
+	    longitudes[size] = longitude;
+	    latitudes[size] = latitude;
+	    size++;
+	}
+
+	void sort(){
+	    sort(hashes, size);
+	}
+
+	protected void swap(int a, int b){
+	    long hash = hashes[a];
+	    hashes[a] = hashes[b];
+	    hashes[b] = hash;
+	    int doc = docs[a];
+	    docs[a] = docs[b];
+	    docs[b] = doc;
+	    double longitude = longitudes[a];
+	    longitudes[a] = longitudes[b];
+	    longitudes[b] = longitude;
+	    double latitude = latitudes[a];
+	    latitudes[a] = latitudes[b];
+	    latitudes[b] = latitude;
+	}
+    }
+
+    static ValueSource value_source(SolrIndexSearcher searcher,
+				    String field_name){
+	SchemaField field = searcher.getSchema().getField(field_name);
+	return field.getType().getValueSource(field, null);
+    }
+
+    /**
+     * Every doc in docs grouped into geohash cells of length hash_len, the
+     * same groups (with stats) GeoSearch loads from Solr
+     */
+    static GeohashGroupStore load_groups(SolrIndexSearcher searcher,
+					 DocSet docs, int hash_len,
+					 int group_limit)
+	throws IOException {
+	DocColumns columns = new DocColumns(docs.size());
+
+	ValueSource longitude_source =
+	    value_source(searcher, PointFeatures.LONGITUDE_FIELD);
+	ValueSource latitude_source =
+	    value_source(searcher, PointFeatures.LATITUDE_FIELD);
+	Map context = ValueSource.newContext(searcher);
+	longitude_source.createWeight(context, searcher);
+	latitude_source.createWeight(context, searcher);
+
+	List<AtomicReaderContext> leaves =
+	    searcher.getTopReaderContext().leaves();
+	AtomicReaderContext leaf = null;
+	int leaf_end = -1;
+	FunctionValues longitudes = null;
+	FunctionValues latitudes = null;
+	DocIterator doc_iter = docs.iterator();
+	while (doc_iter.hasNext()){
+	    int doc = doc_iter.nextDoc();
+	    // docs come in order, so we only move on to the next segment
+	    if (leaf == null || doc < leaf.docBase || doc >= leaf_end){
+		leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+		leaf_end = leaf.docBase + leaf.reader().maxDoc();
+		longitudes = longitude_source.getValues(context, leaf);
+		latitudes = latitude_source.getValues(context, leaf);
+	    }
+	    int leaf_doc = doc - leaf.docBase;
+	    // nothing to put on the map
+	    if (!latitudes.exists(leaf_doc) || !longitudes.exists(leaf_doc))
+		continue;
+	    double longitude = longitudes.doubleVal(leaf_doc);
+	    double latitude = latitudes.doubleVal(leaf_doc);
+	    columns.add(LongGeohash.encode(latitude, longitude, hash_len),
+			doc, longitude, latitude);
+	}
+	columns.sort();
+
+	GeohashGroupStore geohash_groups =
+	    new GeohashGroupStore(hash_len, group_limit, 0);
+	int i = 0;
+	while (i < columns.size){
+	    long hash = columns.hashes[i];
+	    int cell_end = i;
+	    double longitude_sum = 0;
+	    double latitude_sum = 0;
+	    for (; cell_end < columns.size && columns.hashes[cell_end] == hash;
+		 cell_end++){
+		longitude_sum += columns.longitudes[cell_end];
+		latitude_sum += columns.latitudes[cell_end];
+	    }
+	    int count = cell_end - i;
+	    int row = geohash_groups.add_group(hash, count,
+					       longitude_sum / count,
+					       latitude_sum / count);
+	    if (count <= group_limit)
+		for (int p = i; p < cell_end; p++){
+		    Document doc = searcher.doc(columns.docs[p], POINT_FIELDS);
+		    geohash_groups.add_point
+			(row, doc.get(PointFeatures.NAME_FIELD),
+			 doc.get(PointFeatures.ORG_ID_FIELD),
+			 doc.get(PointFeatures.ICON_GROUP_FIELD),
+			 columns.longitudes[p], columns.latitudes[p]);
+		}
+	    i = cell_end;
+	}
+	// already in order, so this is just a formality
+	geohash_groups.sort();
+	return geohash_groups;
+    }
+
+    /**
+     * What's left of geohash_groups after clustering, one entry per group
+     * with its geohash, count and center, plus the points if it has them
+     */
+    static NamedList<Object> clustered_groups
+	(GeohashGroupStore geohash_groups){
+	List<NamedList<Object>> groups = new ArrayList<NamedList<Object>>();
+	PointGroup pg = geohash_groups.group(0);
+	for (int row = 0; row < geohash_groups.size(); row++){
+	    if (geohash_groups.isRemoved(row))
+		continue;
+	    pg.moveTo(row);
+	    NamedList<Object> group = new SimpleOrderedMap<Object>();
+	    group.add(GEOHASH, geohash_groups.getGeohash(row));
+	    group.add(COUNT, pg.getPointCount());
+	    group.add(LONGITUDE, pg.getLongitude());
+	    group.add(LATITUDE, pg.getLatitude());
+	    if (!pg.cluster_collection()){
+		group.add(POINTS, PointFeatures.to_docs(geohash_groups, row));
+	    }
+	    groups.add(group);
+	}
+
+	NamedList<Object> result = new SimpleOrderedMap<Object>();
+	result.add(HASH_LENGTH, geohash_groups.getHashLength());
+	result.add(GROUPS, groups);
+	return result;
+    }
+
+    @Override
+    public String getDescription() {
+	return "geohash clustering of the matching docs";
+    }
+
+    @Override
+    public String getSource() {
+	return null;
+    }
+}
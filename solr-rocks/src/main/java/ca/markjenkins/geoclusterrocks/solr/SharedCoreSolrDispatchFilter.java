@@ -0,0 +1,19 @@
+package ca.markjenkins.geoclusterrocks.solr;
+
+import ca.markjenkins.geoclusterrocks.SolrServers;
+
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.servlet.SolrDispatchFilter;
+
+/**
+ * A SolrDispatchFilter that lets the rest of the webapp use its cores,
+ * see SolrServers.createEmbeddedSolrServer()
+ */
+public class SharedCoreSolrDispatchFilter extends SolrDispatchFilter {
+    @Override
+    protected CoreContainer createCoreContainer() {
+	CoreContainer cores = super.createCoreContainer();
+	SolrServers.shareCoreContainer(cores);
+	return cores;
+    }
+}
@@ -134,52 +134,106 @@ function show_continental_US_map(div_name){
     };
 
 
-    function display_map(){
+    // the bounds and zoom of the markers we have on the map, so that a
+    // pan only has to ask for what's new (see ViewportDelta), and the
+    // number of our latest request, only its answer is shown
+    var shown_bounds = null;
+    var shown_zoom = null;
+    var request_number = 0;
+
+    function add_features(data){
+	var geojson_layer = L.geoJson(
+	    false,
+	    geojson_layer_options
+	);
+	geojson_layer.addData(data['clusters']);
+	geojson_layer.addData(data['single_points']);
+	markerGroup.addLayer(geojson_layer);
+
+	for(var i=0; i<data['grouped_points'].length; i++){
+	    var oms = new OverlappingMarkerSpiderfier(
+		map, {keepSpiderfied: true});
+	    var spidergeojson_layer = L.geoJson(
+		false, {
+		    pointToLayer: function(feature, latlng){
+			new_marker = icon_group_marker_for_feature(feature, latlng);
+			oms.addMarker(new_marker);
+			return new_marker;
+		    },
+		    onEachFeature: function(feature, layer){
+			layer.bindPopup(
+			    '<a href="/organizations/' +
+			    feature.properties.org_id +
+			    '/">' +
+			    feature.properties.popupContent +
+			    '</a>' );
+		    }
+		}
+	    );
+
+	    spidergeojson_layer.addData(
+		data['grouped_points'][i]);
+	    markerGroup.addLayer(spidergeojson_layer);
+	}
+    }
+
+    // drop the markers in any of remove's [west, south, east, north]
+    function remove_markers(remove){
+	markerGroup.eachLayer(function(layer){
+	    layer.eachLayer(function(marker){
+		var latlng = marker.getLatLng();
+		for(var i=0; i<remove.length; i++){
+		    if (latlng.lng >= remove[i][0] &&
+			latlng.lat >= remove[i][1] &&
+			latlng.lng <= remove[i][2] &&
+			latlng.lat <= remove[i][3]){
+			layer.removeLayer(marker);
+			return;
+		    }
+		}
+	    });
+	});
+    }
+
+    // everything in view, or just what changed since what we have
+    function display_map(everything){
         var type_exclusion_queries = '';
 	if ( document.getElementById("cu_control").checked ){
             type_exclusion_queries = '&ignore_icon_types=0';
 	}
 
-	jQuery.getJSON("geosearch?bounds=" +
-		  map.getBounds().toBBoxString() +
-		  "&zoom=" + map.getZoom() +
-		  type_exclusion_queries,
+	var bounds = map.getBounds().toBBoxString();
+	var zoom = map.getZoom();
+	var previous_view = '';
+	if (!everything && shown_bounds != null){
+	    previous_view = "&previous_bounds=" + shown_bounds +
+		"&previous_zoom=" + shown_zoom;
+	}
+	var this_request = ++request_number;
+
+	jQuery.getJSON("geosearch?bounds=" + bounds +
+		  "&zoom=" + zoom +
+		  type_exclusion_queries + previous_view,
 		  function(data, status, jqXHR){
-		      var geojson_layer = L.geoJson(
-			  false,
-			  geojson_layer_options
-		      );
-		      geojson_layer.addData(data['clusters']);
-		      geojson_layer.addData(data['single_points']);
-		      markerGroup.clearLayers();
-		      markerGroup.addLayer(geojson_layer);
-
-		      for(var i=0; i<data['grouped_points'].length; i++){
-			  var oms = new OverlappingMarkerSpiderfier(
-			      map, {keepSpiderfied: true});
-			  var spidergeojson_layer = L.geoJson(
-			      false, {
-				  pointToLayer: function(feature, latlng){
-				      new_marker = icon_group_marker_for_feature(feature, latlng);
-				      oms.addMarker(new_marker);
-				      return new_marker;
-				  },
-			       	  onEachFeature: function(feature, layer){
-				      layer.bindPopup(
-					  '<a href="/organizations/' +
-					  feature.properties.org_id +
-					  '/">' +
-					  feature.properties.popupContent +
-					  '</a>' );
-				  }
-			      }
-			  );
-
-			  spidergeojson_layer.addData(
-			      data['grouped_points'][i]);
-			  markerGroup.addLayer(spidergeojson_layer);
+		      // a newer one is on its way, from what we have now
+		      if (this_request != request_number){
+			  return;
 		      }
-
+		      if (previous_view == ''){
+			  markerGroup.clearLayers();
+			  add_features(data);
+		      }
+		      else if (data['add']){
+			  remove_markers(data['remove']);
+			  add_features(data['add']);
+		      }
+		      else {
+			  // the server let us down, next time ask for it all
+			  shown_bounds = null;
+			  return;
+		      }
+		      shown_bounds = bounds;
+		      shown_zoom = zoom;
 		  }
 		 );
     }
@@ -188,17 +242,18 @@ function show_continental_US_map(div_name){
 	if (map._popup){
 	    map._popup._source.closePopup();
 	}
-	display_map();
+	display_map(false);
     }
 
+    // the filters changed, nothing we have is any good
     function handle_cu_control_change(){
-	display_map();
+	display_map(true);
     }
 
     map.on('moveend', handle_map_move_end);
     document.getElementById("cu_control").addEventListener(
     "click", handle_cu_control_change, false);
-    display_map();
+    display_map(true);
 }
 
 // @license-end
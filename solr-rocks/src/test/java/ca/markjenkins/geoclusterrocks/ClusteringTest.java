@@ -0,0 +1,310 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+
+import com.github.davidmoten.geo.GeoHash;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * clusterByNeighborCheck() against the way it was done before there was
+ * a GeohashGroupStore, a TreeMap of groups keyed by geohash String with
+ * neighbours from davidmoten's GeoHash, and in parallel against on one
+ * thread
+ */
+public class ClusteringTest {
+    static final int POINTS = 20000;
+    static final int[] ZOOMS = {2, 4, 6, 8, 10, 12};
+
+    static class Group {
+	long count;
+	double longitude;
+	double latitude;
+    }
+
+    /**
+     * points random points around longitude, latitude (spread degrees
+     * either way) grouped into geohash cells of length hash_len, with
+     * their mean centers
+     */
+    static TreeMap<String, Group> random_groups
+	(Random random, int points, double longitude, double latitude,
+	 double spread, int hash_len){
+	TreeMap<String, Group> groups = new TreeMap<String, Group>();
+	for (int i = 0; i < points; i++){
+	    double point_longitude =
+		longitude + (random.nextDouble() * 2 - 1) * spread;
+	    // across the antimeridian
+	    if (point_longitude >= 180)
+		point_longitude -= 360;
+	    else if (point_longitude < -180)
+		point_longitude += 360;
+	    double point_latitude =
+		latitude + (random.nextDouble() * 2 - 1) * spread;
+	    String geohash = GeoHash.encodeHash
+		(point_latitude, point_longitude, hash_len);
+	    Group group = groups.get(geohash);
+	    if (group == null){
+		group = new Group();
+		groups.put(geohash, group);
+	    }
+	    group.longitude = (group.longitude * group.count +
+			       point_longitude) / (group.count + 1);
+	    group.latitude = (group.latitude * group.count +
+			      point_latitude) / (group.count + 1);
+	    group.count++;
+	}
+	return groups;
+    }
+
+    static GeohashGroupStore store(TreeMap<String, Group> groups,
+				   int hash_len){
+	GeohashGroupStore geohash_groups =
+	    new GeohashGroupStore(hash_len, 1, groups.size());
+	for (Map.Entry<String, Group> entry: groups.entrySet())
+	    geohash_groups.add_group(LongGeohash.encode(entry.getKey()),
+				     entry.getValue().count,
+				     entry.getValue().longitude,
+				     entry.getValue().latitude);
+	geohash_groups.sort();
+	return geohash_groups;
+    }
+
+    /**
+     * The old TreeMap clustering, merging into groups in key order and
+     * leaving the merged ones out. GeoHash.top() wraps around past the
+     * poles, LongGeohash doesn't, so neither do we. The distance is
+     * Clustering.shouldCluster()'s
+     */
+    static TreeMap<String, Group> baseline_clusters
+	(TreeMap<String, Group> groups, int zoom){
+	double resolution = Clustering.resolutions[zoom];
+	TreeMap<String, Group> clusters = new TreeMap<String, Group>();
+	for (Map.Entry<String, Group> entry: groups.entrySet()){
+	    Group copy = new Group();
+	    copy.count = entry.getValue().count;
+	    copy.longitude = entry.getValue().longitude;
+	    copy.latitude = entry.getValue().latitude;
+	    clusters.put(entry.getKey(), copy);
+	}
+	TreeMap<String, Group> removed = new TreeMap<String, Group>();
+	for (String item_hash: groups.keySet()){
+	    if (removed.containsKey(item_hash))
+		continue;
+	    Group item = clusters.get(item_hash);
+	    double longitude = item.longitude;
+	    double latitude = item.latitude;
+	    String[] neighbours = Clustering.getTopRightNeighbors(item_hash);
+	    boolean on_top = GeoHash.decodeHash(neighbours[1]).getLat() <
+		GeoHash.decodeHash(item_hash).getLat();
+	    for (int i = 0; i < neighbours.length; i++){
+		if (on_top && i < 3)
+		    continue;
+		String other_hash = neighbours[i];
+		if (removed.containsKey(other_hash))
+		    continue;
+		Group other = clusters.get(other_hash);
+		if (other == null ||
+		    !Clustering.shouldCluster
+		    (longitude, latitude, other.longitude, other.latitude,
+		     resolution, Clustering.GEOCLUSTER_DEFAULT_DISTANCE))
+		    continue;
+		long count = item.count + other.count;
+		item.longitude = (item.longitude * item.count +
+				  other.longitude * other.count) / count;
+		item.latitude = (item.latitude * item.count +
+				 other.latitude * other.count) / count;
+		item.count = count;
+		removed.put(other_hash, other);
+	    }
+	}
+	for (String other_hash: removed.keySet())
+	    clusters.remove(other_hash);
+	return clusters;
+    }
+
+    static void assert_same_clusters(String what,
+				     TreeMap<String, Group> expected,
+				     GeohashGroupStore geohash_groups){
+	TreeMap<String, Group> left = new TreeMap<String, Group>(expected);
+	for (int row = 0; row < geohash_groups.size(); row++){
+	    if (geohash_groups.isRemoved(row))
+		continue;
+	    String geohash = geohash_groups.getGeohash(row);
+	    Group group = left.remove(geohash);
+	    if (group == null)
+		throw new AssertionError(what + ": " + geohash +
+					 " should have been merged");
+	    assertEquals(what + ": " + geohash, group.count,
+			 geohash_groups.counts[row]);
+	    assertEquals(what + ": " + geohash, group.longitude,
+			 geohash_groups.longitudes[row], 1e-9);
+	    assertEquals(what + ": " + geohash, group.latitude,
+			 geohash_groups.latitudes[row], 1e-9);
+	}
+	assertEquals(what + ": missing " + left.keySet(), 0, left.size());
+    }
+
+    void check_like_baseline(long seed, double longitude, double latitude,
+			     double spread){
+	int merged = 0;
+	for (int zoom: ZOOMS){
+	    int hash_len = Clustering.get_geohash_length
+		(Clustering.GEOCLUSTER_DEFAULT_DISTANCE, zoom);
+	    TreeMap<String, Group> groups = random_groups
+		(new Random(seed), POINTS, longitude, latitude, spread,
+		 hash_len);
+	    GeohashGroupStore geohash_groups = store(groups, hash_len);
+	    Clustering.clusterByNeighborCheck(geohash_groups, zoom, null);
+	    assert_same_clusters("zoom " + zoom,
+				 baseline_clusters(groups, zoom),
+				 geohash_groups);
+	    merged += geohash_groups.removed_count;
+	}
+	// or we haven't tested much
+	assertTrue(merged > 0);
+    }
+
+    @Test
+    public void like_baseline_in_north_america(){
+	check_like_baseline(1, -98, 39, 25);
+    }
+
+    @Test
+    public void like_baseline_across_the_antimeridian(){
+	check_like_baseline(2, 180, -15, 20);
+    }
+
+    @Test
+    public void like_baseline_in_the_far_north(){
+	check_like_baseline(3, 20, 70, 15);
+    }
+
+    @Test
+    public void like_baseline_in_one_city(){
+	check_like_baseline(4, -97.14, 49.89, 0.2);
+    }
+
+    static GeohashGroupStore copy(GeohashGroupStore groups){
+	GeohashGroupStore copy = new GeohashGroupStore
+	    (groups.getHashLength(), groups.force_cluster_threshold,
+	     groups.size());
+	copy.add_all(groups);
+	return copy;
+    }
+
+    /**
+     * Groups with points for the small ones, so merging has lists of
+     * points to join up too
+     */
+    static GeohashGroupStore store_with_points
+	(TreeMap<String, Group> groups, int hash_len, int max_group_size){
+	GeohashGroupStore geohash_groups =
+	    new GeohashGroupStore(hash_len, max_group_size, groups.size());
+	for (Map.Entry<String, Group> entry: groups.entrySet()){
+	    Group group = entry.getValue();
+	    int row = geohash_groups.add_group
+		(LongGeohash.encode(entry.getKey()), group.count,
+		 group.longitude, group.latitude);
+	    if (group.count <= max_group_size)
+		for (int i = 0; i < group.count; i++)
+		    geohash_groups.add_point(row, entry.getKey() + i, null,
+					     null, group.longitude,
+					     group.latitude);
+	}
+	geohash_groups.sort();
+	return geohash_groups;
+    }
+
+    static void assert_same_rows(String what, GeohashGroupStore sequential,
+				 GeohashGroupStore parallel){
+	assertEquals(what, sequential.size(), parallel.size());
+	assertEquals(what, sequential.removed_count, parallel.removed_count);
+	for (int row = 0; row < sequential.size(); row++){
+	    String at = what + ": " + sequential.getGeohash(row);
+	    assertEquals(at, sequential.isRemoved(row),
+			 parallel.isRemoved(row));
+	    if (sequential.isRemoved(row))
+		continue;
+	    assertEquals(at, sequential.counts[row], parallel.counts[row]);
+	    // exactly, it's the same arithmetic in the same order
+	    assertEquals(at, sequential.longitudes[row],
+			 parallel.longitudes[row], 0);
+	    assertEquals(at, sequential.latitudes[row],
+			 parallel.latitudes[row], 0);
+	    int parallel_point = parallel.first_points[row];
+	    for (int point = sequential.first_points[row];
+		 point != GeohashGroupStore.NO_POINTS;
+		 point = sequential.next_points[point]){
+		assertEquals(at, point, parallel_point);
+		parallel_point = parallel.next_points[parallel_point];
+	    }
+	    assertEquals(at, GeohashGroupStore.NO_POINTS, parallel_point);
+	}
+    }
+
+    /**
+     * Cluster copies of the same groups on this thread and with
+     * clustering, which is either a pool or null for
+     * clusterByNeighborCheck() to pick, and expect the same rows
+     */
+    void check_parallel(ForkJoinPool pool){
+	int saved_min_groups = Clustering.parallel_clustering_min_groups;
+	int saved_stripe_rows = Clustering.neighbour_stripe_rows;
+	Clustering.parallel_clustering_min_groups = 1;
+	// lots of stripes, with neighbours in other stripes
+	Clustering.neighbour_stripe_rows = 16;
+	try {
+	    int merged = 0;
+	    for (int zoom: ZOOMS){
+		int hash_len = Clustering.get_geohash_length
+		    (Clustering.GEOCLUSTER_DEFAULT_DISTANCE, zoom);
+		GeohashGroupStore groups = store_with_points
+		    (random_groups(new Random(zoom), POINTS, 180, 40, 40,
+				   hash_len), hash_len, 3);
+		GeohashGroupStore sequential = copy(groups);
+		GeohashGroupStore parallel = copy(groups);
+		Clustering.clusterByNeighborCheck(sequential, zoom, null);
+		if (pool == null)
+		    Clustering.clusterByNeighborCheck(parallel, zoom);
+		else
+		    Clustering.clusterByNeighborCheck(parallel, zoom, pool);
+		assert_same_rows("zoom " + zoom, sequential, parallel);
+		merged += sequential.removed_count;
+	    }
+	    assertTrue(merged > 0);
+	}
+	finally {
+	    Clustering.parallel_clustering_min_groups = saved_min_groups;
+	    Clustering.neighbour_stripe_rows = saved_stripe_rows;
+	}
+    }
+
+    @Test
+    public void parallel_like_sequential(){
+	// clustering_pool is only used with more than one core, ours has
+	// four threads whatever we're running on
+	ForkJoinPool pool = new ForkJoinPool(4);
+	try {
+	    check_parallel(pool);
+	}
+	finally {
+	    pool.shutdown();
+	}
+    }
+
+    @Test
+    public void parallel_when_there_are_enough_groups(){
+	check_parallel(null);
+    }
+}
@@ -0,0 +1,245 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeoSearch;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The parts of GeoSearch that don't need a Solr to talk to
+ */
+public class GeoSearchTest {
+    static final String[] CELLS = {"9q8y", "9q9p", "dr5r", "dr72"};
+
+    /**
+     * Groups for CELLS with counts of 10 centered on their cells, and
+     * the one given single point
+     */
+    static GeohashGroupStore groups(String single_point_cell){
+	GeohashGroupStore geohash_groups = new GeohashGroupStore(4, 1, 0);
+	for (String cell: CELLS){
+	    long count = cell.equals(single_point_cell) ? 1 : 10;
+	    int row = geohash_groups.add_group
+		(LongGeohash.encode(cell), count, 0, 0);
+	    if (count == 1)
+		geohash_groups.add_point(row, "single", null, null, 0, 0);
+	}
+	geohash_groups.sort();
+	return geohash_groups;
+    }
+
+    /**
+     * The stats of one facet entry, mean somewhere in the middle, or
+     * first if mean_first
+     */
+    static NamedList<Object> stats(double mean, boolean mean_first){
+	NamedList<Object> stats = new SimpleOrderedMap<Object>();
+	if (mean_first)
+	    stats.add("mean", mean);
+	stats.add("min", mean - 1);
+	stats.add("max", mean + 1);
+	stats.add("count", 10L);
+	if (!mean_first)
+	    stats.add("mean", mean);
+	stats.add("stddev", 0.5);
+	return stats;
+    }
+
+    /**
+     * A response with latitude and longitude stats faceted on geohash_4
+     * for the cells given, in the order given. A cell's mean latitude is
+     * its index in CELLS + 10, its mean longitude its index - 100
+     */
+    static NamedList<Object> response(String[] latitude_cells,
+				      String[] longitude_cells){
+	NamedList<Object> latitude_facet = new SimpleOrderedMap<Object>();
+	for (int i = 0; i < latitude_cells.length; i++)
+	    latitude_facet.add(latitude_cells[i],
+			       stats(index(latitude_cells[i]) + 10, i == 1));
+	NamedList<Object> longitude_facet = new SimpleOrderedMap<Object>();
+	for (int i = 0; i < longitude_cells.length; i++)
+	    longitude_facet.add(longitude_cells[i],
+				stats(index(longitude_cells[i]) - 100,
+				      i == 2));
+	NamedList<Object> stats_fields = new SimpleOrderedMap<Object>();
+	stats_fields.add("latitude", field(latitude_facet));
+	stats_fields.add("longitude", field(longitude_facet));
+	NamedList<Object> stats = new SimpleOrderedMap<Object>();
+	stats.add("stats_fields", stats_fields);
+	NamedList<Object> response = new NamedList<Object>();
+	response.add("stats", stats);
+	return response;
+    }
+
+    static NamedList<Object> field(NamedList<Object> facet){
+	NamedList<Object> facets = new SimpleOrderedMap<Object>();
+	facets.add("geohash_4", facet);
+	NamedList<Object> field = stats(0, false);
+	field.add("facets", facets);
+	return field;
+    }
+
+    static int index(String cell){
+	for (int i = 0; i < CELLS.length; i++)
+	    if (CELLS[i].equals(cell))
+		return i;
+	throw new IllegalArgumentException(cell);
+    }
+
+    /**
+     * Every group but the one in unmoved_cell moved to its means
+     */
+    static void assert_centers(GeohashGroupStore geohash_groups,
+			       String unmoved_cell){
+	for (String cell: CELLS){
+	    int row = geohash_groups.find(cell);
+	    if (cell.equals(unmoved_cell)){
+		assertEquals(cell, 0, geohash_groups.longitudes[row], 0);
+		assertEquals(cell, 0, geohash_groups.latitudes[row], 0);
+	    }
+	    else {
+		assertEquals(cell, index(cell) - 100,
+			     geohash_groups.longitudes[row], 0);
+		assertEquals(cell, index(cell) + 10,
+			     geohash_groups.latitudes[row], 0);
+	    }
+	}
+    }
+
+    @Test
+    public void statistics_in_the_same_order(){
+	GeohashGroupStore geohash_groups = groups(null);
+	GeoSearch.applyClusterStatistics(response(CELLS, CELLS),
+					 geohash_groups);
+	assert_centers(geohash_groups, null);
+    }
+
+    @Test
+    public void statistics_in_another_order(){
+	GeohashGroupStore geohash_groups = groups(null);
+	GeoSearch.applyClusterStatistics
+	    (response(CELLS, new String[] {"dr72", "9q8y", "dr5r", "9q9p"}),
+	     geohash_groups);
+	assert_centers(geohash_groups, null);
+    }
+
+    @Test
+    public void statistics_in_the_same_order_then_not(){
+	GeohashGroupStore geohash_groups = groups(null);
+	GeoSearch.applyClusterStatistics
+	    (response(CELLS, new String[] {"9q8y", "9q9p", "dr72", "dr5r"}),
+	     geohash_groups);
+	assert_centers(geohash_groups, null);
+    }
+
+    @Test
+    public void no_latitude_no_move(){
+	GeohashGroupStore geohash_groups = groups(null);
+	GeoSearch.applyClusterStatistics
+	    (response(new String[] {"9q8y", "9q9p", "dr72"},
+		      new String[] {"dr5r", "dr72", "9q9p", "9q8y"}),
+	     geohash_groups);
+	assert_centers(geohash_groups, "dr5r");
+    }
+
+    @Test
+    public void single_points_stay_put(){
+	GeohashGroupStore geohash_groups = groups("9q9p");
+	GeoSearch.applyClusterStatistics(response(CELLS, CELLS),
+					 geohash_groups);
+	assert_centers(geohash_groups, "9q9p");
+    }
+
+    @Test
+    public void no_statistics(){
+	GeohashGroupStore geohash_groups = groups(null);
+	GeoSearch.applyClusterStatistics(new NamedList<Object>(),
+					 geohash_groups);
+	for (int row = 0; row < geohash_groups.size(); row++){
+	    assertEquals(0, geohash_groups.longitudes[row], 0);
+	    assertEquals(0, geohash_groups.latitudes[row], 0);
+	}
+    }
+
+    static final String BOUNDS = "-123.5,37.1,-121.2,38.9";
+
+    static LocationsQuery query(int[] icon_types_to_ignore,
+				Map<String, List<String>> match_criteria,
+				String... search_text_words){
+	return new LocationsQuery
+	    (BOUNDS, 10, null, icon_types_to_ignore, true, 1,
+	     Clustering.GEOCLUSTER_DEFAULT_DISTANCE, match_criteria,
+	     new ArrayList<String>(Arrays.asList(search_text_words)), null);
+    }
+
+    @Test
+    public void filter_queries(){
+	Map<String, List<String>> match_criteria =
+	    new HashMap<String, List<String>>();
+	match_criteria.put("type_name", Arrays.asList("B", "A"));
+	match_criteria.put("city", Arrays.asList("Winnipeg"));
+	match_criteria.put("zip", new ArrayList<String>());
+	assertEquals(Arrays.asList("location:[37.1,-123.5 TO 38.9,-121.2]",
+				   "-icon_group_id:\"1\"",
+				   "-icon_group_id:\"3\"",
+				   "city:(\"Winnipeg\")",
+				   "type_name:(\"A\" \"B\")"),
+		     GeoSearch.locations_filter_queries
+		     (query(new int[] {3, 1}, match_criteria), null));
+    }
+
+    @Test
+    public void filter_queries_whatever_the_order(){
+	Map<String, List<String>> match_criteria =
+	    new LinkedHashMap<String, List<String>>();
+	match_criteria.put("type_name", Arrays.asList("B", "A", "B"));
+	match_criteria.put("city", Arrays.asList("Winnipeg", "Brandon"));
+	Map<String, List<String>> other_criteria =
+	    new LinkedHashMap<String, List<String>>();
+	other_criteria.put("city", Arrays.asList("Brandon", "Winnipeg"));
+	other_criteria.put("type_name", Arrays.asList("A", "B"));
+
+	LocationsQuery query =
+	    query(new int[] {3, 1, 3, 7}, match_criteria, "farm", "co-op");
+	LocationsQuery other_query =
+	    query(new int[] {7, 1, 3}, other_criteria, "co-op", "farm",
+		  "farm");
+	List<String> filter_queries =
+	    GeoSearch.locations_filter_queries(query, null);
+	assertEquals(filter_queries,
+		     GeoSearch.locations_filter_queries(other_query, null));
+	// one each
+	assertEquals(new ArrayList<String>(new LinkedHashSet<String>
+					   (filter_queries)),
+		     filter_queries);
+	assertEquals(GeoSearch.search_text_query(query.search_text_words),
+		     GeoSearch.search_text_query
+		     (other_query.search_text_words));
+    }
+
+    @Test
+    public void filter_queries_for_cells(){
+	LocationsQuery query = query(null, new HashMap<String, List<String>>());
+	assertEquals(Arrays.asList("geohash_" + query.hash_len +
+				   ":(9q8y OR 9q9p OR dr5r)",
+				   "location:[37.1,-123.5 TO 38.9,-121.2]"),
+		     GeoSearch.locations_filter_queries
+		     (query, Arrays.asList("dr5r", "9q8y", "9q9p", "dr5r")));
+    }
+}
@@ -0,0 +1,134 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.LongGeohash;
+
+import com.github.davidmoten.geo.GeoHash;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * LongGeohash against davidmoten's GeoHash, which is what we used
+ * before and what GeohashCellCache still uses for covering cells.
+ *
+ * The neighbours aren't identical everywhere: GeoHash.top() and bottom()
+ * wrap around past the poles, LongGeohash has NO_NEIGHBOUR there, which
+ * is what clustering wants. So for cells on a pole we only check that
+ * LongGeohash says NO_NEIGHBOUR, everywhere else the neighbours have to
+ * be the same cells.
+ */
+public class LongGeohashTest {
+    static final int SAMPLES = 100000;
+
+    /**
+     * A random point, a lot of them right on the poles and the
+     * antimeridian, where plain random points hardly ever are
+     */
+    static double[] random_point(Random random){
+	double latitude = random.nextDouble() * 180 - 90;
+	double longitude = random.nextDouble() * 360 - 180;
+	switch (random.nextInt(4)){
+	case 0:
+	    latitude = random.nextBoolean() ? -90 : 89.9999999999;
+	    break;
+	case 1:
+	    longitude = random.nextBoolean() ? -180 : 179.9999999999;
+	    break;
+	}
+	return new double[] {latitude, longitude};
+    }
+
+    @Test
+    public void encode_like_geohash(){
+	Random random = new Random(SAMPLES);
+	for (int i = 0; i < SAMPLES; i++){
+	    int len = 1 + random.nextInt(LongGeohash.MAX_HASH_LENGTH);
+	    double[] point = random_point(random);
+	    String geohash = GeoHash.encodeHash(point[0], point[1], len);
+	    assertEquals(geohash + " at " + point[0] + "," + point[1],
+			 LongGeohash.encode(geohash),
+			 LongGeohash.encode(point[0], point[1], len));
+	}
+    }
+
+    @Test
+    public void decode_what_we_encode(){
+	Random random = new Random(SAMPLES);
+	for (int i = 0; i < SAMPLES; i++){
+	    int len = 1 + random.nextInt(LongGeohash.MAX_HASH_LENGTH);
+	    double[] point = random_point(random);
+	    String geohash = GeoHash.encodeHash(point[0], point[1], len);
+	    assertEquals(geohash,
+			 LongGeohash.decode(LongGeohash.encode(geohash), len));
+	}
+    }
+
+    @Test
+    public void masks_split_the_bits(){
+	for (int len = 1; len <= LongGeohash.MAX_HASH_LENGTH; len++){
+	    long longitude_mask = LongGeohash.longitude_mask(len);
+	    long latitude_mask = LongGeohash.latitude_mask(len);
+	    int bits = len * LongGeohash.BITS_PER_CHAR;
+	    assertEquals(0, longitude_mask & latitude_mask);
+	    assertEquals((1L << bits) - 1, longitude_mask | latitude_mask);
+	    // longitude gets the odd one out
+	    assertEquals((bits + 1) / 2, Long.bitCount(longitude_mask));
+	    // and the first bit
+	    assertEquals(1L << (bits - 1),
+			 Long.highestOneBit(longitude_mask));
+	}
+    }
+
+    @Test
+    public void neighbours_like_geohash(){
+	Random random = new Random(SAMPLES);
+	for (int i = 0; i < SAMPLES; i++){
+	    int len = 1 + random.nextInt(LongGeohash.MAX_HASH_LENGTH);
+	    double[] point = random_point(random);
+	    String geohash = GeoHash.encodeHash(point[0], point[1], len);
+	    long hash = LongGeohash.encode(geohash);
+	    long latitude_mask = LongGeohash.latitude_mask(len);
+	    long longitude_mask = LongGeohash.longitude_mask(len);
+	    double center = GeoHash.decodeHash(geohash).getLat();
+	    double half_height = GeoHash.heightDegrees(len) / 2;
+
+	    check_neighbour("top of " + geohash,
+			    center + half_height >= 90 ? null :
+			    GeoHash.top(geohash),
+			    LongGeohash.top(hash, latitude_mask), len);
+	    check_neighbour("bottom of " + geohash,
+			    center - half_height <= -90 ? null :
+			    GeoHash.bottom(geohash),
+			    LongGeohash.bottom(hash, latitude_mask), len);
+	    check_neighbour("right of " + geohash, GeoHash.right(geohash),
+			    LongGeohash.right(hash, longitude_mask), len);
+	    check_neighbour("left of " + geohash, GeoHash.left(geohash),
+			    LongGeohash.left(hash, longitude_mask), len);
+	}
+    }
+
+    /**
+     * expected is null on the poles
+     */
+    static void check_neighbour(String what, String expected,
+				long neighbour, int len){
+	if (expected == null)
+	    assertEquals(what, LongGeohash.NO_NEIGHBOUR, neighbour);
+	else
+	    assertEquals(what, expected, neighbour == LongGeohash.NO_NEIGHBOUR ?
+			 "none" : LongGeohash.decode(neighbour, len));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void not_a_geohash(){
+	LongGeohash.encode("9qa");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void too_long(){
+	LongGeohash.encode("9q8yyk8ytpxr0");
+    }
+}
@@ -0,0 +1,77 @@
+package ca.markjenkins.geoclusterrocks;
+
+import ca.markjenkins.geoclusterrocks.Clustering;
+import ca.markjenkins.geoclusterrocks.GeohashGroupStore;
+import ca.markjenkins.geoclusterrocks.LocationsQuery;
+import ca.markjenkins.geoclusterrocks.MappedGroupSource;
+import ca.markjenkins.geoclusterrocks.PointColumns;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Groups from a points file for bounds on either side of the antimeridian
+ */
+public class MappedGroupSourceTest {
+    // along the equator
+    static final double[] LONGITUDES = {-179.5, -90, 0, 7, 90, 179.5};
+
+    static File points_file;
+    static MappedGroupSource source;
+
+    @BeforeClass
+    public static void write_points() throws IOException {
+	PointColumns.Builder builder = new PointColumns.Builder();
+	for (double longitude: LONGITUDES)
+	    builder.add(longitude, 0, "point", null,
+			PointColumns.NO_ICON_GROUP);
+	points_file = File.createTempFile("points", ".gcpc");
+	builder.write(points_file);
+	source = new MappedGroupSource(points_file, null);
+    }
+
+    @AfterClass
+    public static void remove_points(){
+	points_file.delete();
+    }
+
+    // the points in the groups for bounds at zoom
+    static long points_in(String bounds, int zoom){
+	GeohashGroupStore geohash_groups = source.load_groups
+	    (new LocationsQuery
+	     (bounds, zoom, null, null, false, 1,
+	      Clustering.GEOCLUSTER_DEFAULT_DISTANCE,
+	      new HashMap<String, List<String>>(), new ArrayList<String>(),
+	      null),
+	     null);
+	long points = 0;
+	for (int row = 0; row < geohash_groups.size(); row++)
+	    points += geohash_groups.counts[row];
+	return points;
+    }
+
+    @Test
+    public void not_across(){
+	assertEquals(3, points_in("-100,-1,10,1", 8));
+    }
+
+    @Test
+    public void across(){
+	assertEquals(2, points_in("179,-1,-179,1", 8));
+    }
+
+    @Test
+    public void across_nearly_everything(){
+	// the cells covering each side are big enough to take in both
+	assertEquals(5, points_in("10,-1,5,1", 2));
+    }
+}